@@ -0,0 +1,22 @@
+package com.skyefractal.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the gc profiler and {@link ProcessProfiler} always on, so every result comes with its
+ * allocation rate, gc count, cpu time and heap peak.
+ * Takes the usual JMH command line options, i.e. a benchmark name regex or -p events=10000000.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class)
+                .addProfiler(ProcessProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,52 @@
+package com.skyefractal.bench;
+
+import com.skyefractal.midi.MidiHelp;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MidiHelp.dumpSequence with debug logging off (the normal case, where it should cost next to nothing) and on.
+ * Log output goes to a null appender so the numbers are the cost of building the messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog4j.configurationFile=log4j2-bench.xml"})
+public class DumpBenchmark {
+
+    @Param({"10000", "100000"})
+    public int events;
+
+    @Param({"false", "true"})
+    public boolean debug;
+
+    private Sequence sequence;
+
+    @Setup
+    public void setUp() throws InvalidMidiDataException {
+        sequence = Sequences.polyphonic(events);
+        Configurator.setLevel(MidiHelp.class.getName(), debug ? Level.DEBUG : Level.INFO);
+    }
+
+    @Benchmark
+    public void dumpSequence() {
+        MidiHelp.dumpSequence(sequence);
+    }
+}
@@ -0,0 +1,183 @@
+package com.skyefractal.bench;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * An in-memory TargetDataLine that hands back audio as fast as it is read: a fixed number of frames of a
+ * 440Hz tone and then silence. Lets the capture and wav writing path run without an audio interface and
+ * without waiting on real time.
+ */
+class FakeTargetDataLine implements TargetDataLine {
+
+    private final long toneFrames;
+    private final byte[] tone;
+    private AudioFormat format;
+    private int bufferSize;
+    private long position = 0;
+    private boolean open = false;
+    private boolean running = false;
+
+    /**
+     * @param format the format the line will be opened with
+     * @param toneFrames frames of tone to deliver before going silent
+     */
+    FakeTargetDataLine(AudioFormat format, long toneFrames) {
+        this.format = format;
+        this.toneFrames = toneFrames;
+        //one second of tone, 16 bit little endian on every channel
+        int frameRate = (int) format.getFrameRate();
+        tone = new byte[frameRate * format.getFrameSize()];
+        for (int i = 0; i < frameRate; i++) {
+            short sample = (short) (0.5 * Short.MAX_VALUE * Math.sin(2 * Math.PI * 440 * i / frameRate));
+            for (int c = 0; c < format.getChannels(); c++) {
+                int at = i * format.getFrameSize() + c * 2;
+                tone[at] = (byte) sample;
+                tone[at + 1] = (byte) (sample >> 8);
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int frameSize = format.getFrameSize();
+        len -= len % frameSize;
+        for (int done = 0; done < len; done += frameSize) {
+            if (position < toneFrames) {
+                System.arraycopy(tone, (int) (position % (tone.length / frameSize)) * frameSize, b, off + done,
+                        frameSize);
+            }
+            else {
+                for (int i = 0; i < frameSize; i++) {
+                    b[off + done + i] = 0;
+                }
+            }
+            position++;
+        }
+        return len;
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.bufferSize = bufferSize;
+        open = true;
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open(format, format.getFrameSize() * 4096);
+    }
+
+    @Override
+    public void open() {
+        open(format);
+    }
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public int available() {
+        return bufferSize;
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) position;
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return position;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return (long) (position * 1000000.0 / format.getFrameRate());
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(TargetDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        running = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("no controls on a fake line");
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
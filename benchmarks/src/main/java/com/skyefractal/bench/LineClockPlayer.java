@@ -0,0 +1,63 @@
+package com.skyefractal.bench;
+
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.midi.Sequence;
+import javax.sound.sampled.TargetDataLine;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a sequence on the clock of the line being recorded rather than the wall clock: it is playing until the
+ * line has delivered as many frames as the sequence lasts. With a {@link FakeTargetDataLine}, which delivers
+ * audio as fast as it is read, a take runs for the sequence's full length without waiting that long. Nothing
+ * is sent anywhere; the fake line makes up the sound.
+ */
+class LineClockPlayer implements TrackPlayer {
+
+    private final Sequence sequence;
+    private final TargetDataLine line;
+    private final long lengthFrames;
+    private long startFrame = 0;
+    private boolean playing = false;
+
+    LineClockPlayer(Sequence sequence, TargetDataLine line) {
+        this.sequence = sequence;
+        this.line = line;
+        this.lengthFrames = (long) (sequence.getMicrosecondLength() * (double) line.getFormat().getFrameRate() / 1e6);
+    }
+
+    @Override
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void start(int track, long fromTick) {
+        startFrame = line.getLongFramePosition();
+        playing = true;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        if (playing && line.getLongFramePosition() - startFrame >= lengthFrames) {
+            playing = false;
+        }
+        return playing;
+    }
+
+    @Override
+    public boolean awaitEnd(long timeout, TimeUnit unit) {
+        //time only moves when the line is read
+        return !isPlaying();
+    }
+
+    @Override
+    public void stop() {
+        playing = false;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+}
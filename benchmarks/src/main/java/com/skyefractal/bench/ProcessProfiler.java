@@ -0,0 +1,72 @@
+package com.skyefractal.bench;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * CPU time used by the whole benchmark JVM, on every thread, and the heap peak for each iteration. The peak is
+ * the sum of each heap pool's own peak, so it can be a little over the true peak. Real-time benchmarks such as
+ * {@link SessionBenchmark} spend most of their wall clock time waiting, and these show what the work between
+ * the waits costs.
+ */
+public class ProcessProfiler implements InternalProfiler {
+
+    private long cpuStart;
+
+    @Override
+    public String getDescription() {
+        return "process cpu time and heap peak per iteration";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        cpuStart = cpuNanos();
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams, IterationResult result) {
+        List<Result> results = new ArrayList<>();
+        long cpu = cpuNanos();
+        if (cpu >= 0) {
+            results.add(new ScalarResult("process.cpu", (cpu - cpuStart) / 1e6, "ms", AggregationPolicy.AVG));
+        }
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        results.add(new ScalarResult("heap.peak", peak / 1048576.0, "MB", AggregationPolicy.MAX));
+        return results;
+    }
+
+    /**
+     * @return cpu time of the whole process, or -1 if this JVM does not say
+     */
+    private static long cpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package com.skyefractal.bench;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.Random;
+
+/**
+ * Builds repeatable synthetic sequences for the benchmarks.
+ */
+final class Sequences {
+
+    private Sequences() {
+    }
+
+    /**
+     * A single track of overlapping notes over two octaves, like a busy keyboard part.
+     * @param events number of note on plus note off events
+     * @return a PPQ 960 sequence with the notes in track 0
+     */
+    static Sequence polyphonic(int events) throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, 960);
+        Track track = sequence.createTrack();
+        Random random = new Random(42);
+        for (int i = 0; i < events / 2; i++) {
+            int note = 48 + random.nextInt(24);
+            long on = i * 120L;
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 64 + random.nextInt(64)), on));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0),
+                    on + 240 + random.nextInt(960)));
+        }
+        return sequence;
+    }
+
+    /**
+     * One note held for the given time, at the default 120 bpm.
+     * @return a PPQ 960 sequence with the note in track 0
+     */
+    static Sequence held(int seconds) throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(Sequence.PPQ, 960);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 69, 100), 0));
+        //two beats a second
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 69, 0), seconds * 2L * 960));
+        return sequence;
+    }
+}
@@ -0,0 +1,90 @@
+package com.skyefractal.bench;
+
+import com.skyefractal.RecordingOptions;
+import com.skyefractal.device.DeviceRegistry;
+import com.skyefractal.midi.SequenceSplitter;
+import com.skyefractal.session.Rig;
+import com.skyefractal.session.TrackScheduler;
+import com.skyefractal.sim.SimulatedStudio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole session with no hardware: split a polyphonic track into voices, write and read back the multitrack
+ * file, then record every voice on simulated synths through the same device lookups as a real studio. The
+ * recording runs in real time, so each iteration is one session timed on its own. Compare runs by the
+ * session's wall clock time and the cpu and heap figures from {@link ProcessProfiler} and the gc profiler.
+ * Stems are written to ./recording_N.wav and deleted afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog4j.configurationFile=log4j2-bench.xml"})
+public class SessionBenchmark {
+
+    @Param({"24"})
+    public int events;
+
+    @Param({"1", "4"})
+    public int rigs;
+
+    @Param({"0"})
+    public double jitterMillis;
+
+    //seconds between forced line overruns, 0 for none
+    @Param({"0"})
+    public double overrunEvery;
+
+    private Sequence source;
+    private File midi;
+    private int tracks;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        DeviceRegistry.get().install(new SimulatedStudio(rigs, 0, Math.round(jitterMillis * 1e6), overrunEvery));
+        source = Sequences.polyphonic(events);
+        midi = File.createTempFile("session", ".mid");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        DeviceRegistry.get().close();
+        midi.delete();
+        for (int i = 0; i < tracks; i++) {
+            new File("./recording_" + i + ".wav").delete();
+        }
+    }
+
+    @Benchmark
+    public long session() throws Exception {
+        Sequence split = new SequenceSplitter(SequenceSplitter.Mode.VOICE, new ArrayList<int[]>()).split(source);
+        MidiSystem.write(split, 1, midi);
+        Sequence sequence = MidiSystem.getSequence(midi);
+        tracks = sequence.getTracks().length;
+        List<Rig> list = new ArrayList<>();
+        for (int port = 1; port <= rigs; port++) {
+            list.add(Rig.hardware(SimulatedStudio.MIDI_INTERFACE, port, SimulatedStudio.INPUT + " " + port));
+        }
+        return new TrackScheduler(list, new RecordingOptions()).record(sequence).getSessionNanos();
+    }
+}
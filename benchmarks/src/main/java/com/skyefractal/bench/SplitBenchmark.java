@@ -0,0 +1,73 @@
+package com.skyefractal.bench;
+
+import com.skyefractal.midi.MidiHelp;
+import com.skyefractal.midi.SequenceSplitter;
+import com.skyefractal.midi.SmfReader;
+import com.skyefractal.midi.SmfSequence;
+import com.skyefractal.midi.SmfSplitter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splitting a polyphonic track into per-note tracks: the single track javax.sound.midi path, the parallel
+ * SequenceSplitter used by -s, and the primitive array SMF path used by batch mode (-b), which makes the same
+ * stems as SequenceSplitter. Sizes up to 10M events can be run with -p events=10000000 given a large enough
+ * heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dlog4j.configurationFile=log4j2-bench.xml"})
+public class SplitBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int events;
+
+    private Sequence sequence;
+    private ByteBuffer smf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidMidiDataException, IOException {
+        sequence = Sequences.polyphonic(events);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MidiSystem.write(sequence, 0, out);
+        smf = ByteBuffer.wrap(out.toByteArray());
+    }
+
+    @Benchmark
+    public Sequence splitTrack() throws InvalidMidiDataException {
+        return MidiHelp.splitTrack(sequence.getTracks()[0]);
+    }
+
+    @Benchmark
+    public Sequence sequenceSplitter() throws InvalidMidiDataException {
+        return new SequenceSplitter(SequenceSplitter.Mode.NOTE, new ArrayList<int[]>()).split(sequence);
+    }
+
+    @Benchmark
+    public SmfSequence smfReadAndSplit() throws InvalidMidiDataException {
+        smf.rewind();
+        return SmfSplitter.split(SmfReader.read(smf));
+    }
+}
@@ -0,0 +1,64 @@
+package com.skyefractal.bench;
+
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.audio.AudioRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole AudioRecorder take, from capture through the ring and stem writer to the finished wav, fed from an
+ * in-memory line. The track is one note held for the given number of seconds, played on the line's clock so
+ * the take records that much tone, as fast as it can be written, before the tail detector hears it stop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog4j.configurationFile=log4j2-bench.xml"})
+public class WavBenchmark {
+
+    //the only track in the sequence. the take is written to ./recording_0.wav and deleted afterwards.
+    private static final int TRACK = 0;
+
+    @Param({"60", "600"})
+    public int seconds;
+
+    private Sequence sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidMidiDataException {
+        sequence = Sequences.held(seconds);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File("./recording_" + TRACK + ".wav").delete();
+    }
+
+    @Benchmark
+    public long recordTake() {
+        //the tone lasts as long as the note
+        FakeTargetDataLine line = new FakeTargetDataLine(AudioHelp.CD_AUDIO,
+                (long) seconds * (long) AudioHelp.CD_AUDIO.getFrameRate());
+        AudioRecorder recorder = new AudioRecorder(line, new LineClockPlayer(sequence, line), TRACK);
+        recorder.run();
+        return recorder.getCapturedFrames();
+    }
+}
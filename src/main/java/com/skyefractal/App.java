@@ -1,16 +1,42 @@
 package com.skyefractal;
 
 import com.skyefractal.audio.AudioHelp;
-import com.skyefractal.audio.AudioRecorder;
+import com.skyefractal.audio.Deinterleaver;
+import com.skyefractal.audio.LatencyCalibrator;
+import com.skyefractal.audio.Mixdown;
+import com.skyefractal.audio.OfflineRenderer;
+import com.skyefractal.audio.StemCompressor;
+import com.skyefractal.daemon.SessionDaemon;
+import com.skyefractal.device.DeviceRegistry;
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.midi.BatchSplitter;
+import com.skyefractal.midi.DirectPlayer;
 import com.skyefractal.midi.MidiHelp;
 
 import javax.sound.midi.*;
 import javax.sound.sampled.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import com.skyefractal.midi.MidiListener;
+import com.skyefractal.midi.SequenceSplitter;
+import com.skyefractal.midi.SequencerPlayer;
+import com.skyefractal.midi.TrackPlayer;
+import com.skyefractal.sim.LoopbackLine;
+import com.skyefractal.sim.LoopbackReceiver;
+import com.skyefractal.sim.SimulatedStudio;
+import com.skyefractal.session.MultichannelSession;
+import com.skyefractal.session.Rig;
+import com.skyefractal.session.SessionManifest;
+import com.skyefractal.session.StemCache;
+import com.skyefractal.session.TakePipeline;
+import com.skyefractal.session.TrackScheduler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import picocli.CommandLine;
 
 
 /**
@@ -24,8 +50,121 @@ public class App
 
     private static final String MOTUMIDIEXPRESS = "Express  128: Port";
 
+    //the first thing that went wrong in this run, or null
+    private IOException failure;
+
     public static void main( String[] args ) throws MidiUnavailableException {
+        if (args.length > 0 && args[0].equals("-d")) {
+            //stay up with the devices open and take jobs over a socket or from a directory
+            System.exit(new CommandLine(new SessionDaemon()).execute(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        try {
+            run(args);
+        }
+        catch (IOException e) {
+            //already logged where it happened
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Run one job, given the same way as on the command line, i.e. -r song.mid "Express  128: Port" 1 MOTU.
+     * Called once by main, or by the daemon for every job it is sent.
+     * @param args the mode, its positional arguments and any -- options
+     * @throws IOException if the mode failed, after everything it started has been cleaned up
+     */
+    public static void run(String[] args) throws MidiUnavailableException, IOException {
         App app = new App();
+        //options like --sparse can go anywhere. the rest are positional.
+        List<String> flags = new ArrayList<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                flags.add(arg);
+            }
+            else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[positional.size()]);
+        //settings shared by every recording mode
+        RecordingOptions options = new RecordingOptions();
+        //only record the parts of each track that have notes
+        options.setSparse(flags.contains("--sparse"));
+        options.setDirectPlayback(flags.contains("--direct"));
+        options.setCalibrate(flags.contains("--calibrate"));
+        //swap each stem for a flac in the background once it is recorded
+        if (flags.contains("--flac")) {
+            options.setCompressor(new StemCompressor(flags.contains("--verify")));
+        }
+        //live counters over jmx, summarised to session_metrics.json at the end
+        SessionMetrics.get().register();
+        for (String flag : flags) {
+            if (flag.startsWith("--latency-ms=")) {
+                options.setLatencyMillis(Double.parseDouble(flag.substring("--latency-ms=".length())));
+            }
+            //reuse the stems of tracks that have not changed since they were last recorded
+            else if (flag.equals("--cache") || flag.startsWith("--cache=")) {
+                File dir = new File(flag.contains("=") ? flag.substring("--cache=".length()) : "./stem_cache");
+                try {
+                    options.setCache(new StemCache(dir));
+                }
+                catch (IOException e) {
+                    logger.error("not caching stems", e);
+                }
+            }
+        }
+        for (String flag : flags) {
+            if (options.getCache() == null) {
+                break;
+            }
+            if (flag.startsWith("--cache-max-mb=")) {
+                options.getCache().setMaxBytes(Long.parseLong(flag.substring("--cache-max-mb=".length())) << 20);
+            }
+            else if (flag.startsWith("--cache-max-days=")) {
+                options.getCache().setMaxAgeDays(Long.parseLong(flag.substring("--cache-max-days=".length())));
+            }
+        }
+        //stand in synths and inputs found under the same names as hardware, i.e. "Sim Synth: Port" 1 "Sim Input 1"
+        //a daemon keeps the studio its first --sim job installed
+        SimulatedStudio studio = DeviceRegistry.get().getStudio();
+        if (flags.contains("--sim") && studio == null) {
+            double latencyMillis = 0;
+            double jitterMillis = 0;
+            double overrunEvery = 0;
+            for (String flag : flags) {
+                if (flag.startsWith("--sim-latency-ms=")) {
+                    latencyMillis = Double.parseDouble(flag.substring("--sim-latency-ms=".length()));
+                }
+                else if (flag.startsWith("--sim-jitter-ms=")) {
+                    jitterMillis = Double.parseDouble(flag.substring("--sim-jitter-ms=".length()));
+                }
+                else if (flag.startsWith("--sim-overrun-every=")) {
+                    overrunEvery = Double.parseDouble(flag.substring("--sim-overrun-every=".length()));
+                }
+            }
+            studio = new SimulatedStudio(SimulatedStudio.DEFAULT_PORTS, Math.round(latencyMillis * 1e6),
+                    Math.round(jitterMillis * 1e6), overrunEvery);
+            DeviceRegistry.get().install(studio);
+        }
+        boolean recording = args[0].equals("-r") || args[0].equals("-m") || args[0].equals("-c");
+        if (recording) {
+            //a new session, even in a daemon that has recorded others
+            SessionMetrics.get().reset();
+            //every finished take is checkpointed so an interrupted session can be picked up with --resume
+            File manifestFile = new File("./" + SessionManifest.FILE_NAME);
+            options.setResume(flags.contains("--resume"));
+            options.setManifest(new SessionManifest(manifestFile, args[1]));
+            if (options.isResume()) {
+                try {
+                    options.setManifest(SessionManifest.load(manifestFile, args[1]));
+                }
+                catch (IOException e) {
+                    logger.error("could not read " + manifestFile + ", recording every track", e);
+                }
+            }
+        }
         /*
         Runtime.getRuntime().addShutdownHook(new Thread()
         {
@@ -47,48 +186,296 @@ public class App
             logger.info("splitting midi file " + args[1] + " into multiple tracks and saving as " + args[2]);
             app.splitTrack(args[1], args[2]);
         }
+        else if (args[0].equals("-b"))
+        {
+            //split every midi file in a directory or matching a glob, optionally writing to another directory
+            try {
+                int failed = 0;
+                List<BatchSplitter.Result> results = BatchSplitter.splitAll(args[1],
+                        args.length > 2 ? new File(args[2]) : null);
+                for (BatchSplitter.Result result : results) {
+                    if (result.getFailure() != null) {
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    app.failed(failed + " of " + results.size() + " files could not be split", null);
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                app.failed("batch split of " + args[1] + " failed", e);
+            }
+        }
+        else if (args[0].equals("-v"))
+        {
+            //split a track into the fewest monophonic voices. optional voice ranges like 36-59,60-84
+            logger.info("packing midi file " + args[1] + " into monophonic voices and saving as " + args[2]);
+            app.splitVoices(args[1], args[2], args.length > 3 ? parseRanges(args[3]) : new ArrayList<int[]>());
+        }
         else if (args[0].equals("-r"))
         {
             //record a track
             logger.info("recording multitrack midi file " + args[1] + " as separate audio stems.");
-            app.recordMultitrackMidi(args[1], args[2], Integer.parseInt(args[3]), args[4]);
+            //optional tail detection settings: threshold in dBFS and hold time in milliseconds
+            if (args.length > 5) {
+                options.setTailThresholdDb(Double.parseDouble(args[5]));
+            }
+            if (args.length > 6) {
+                options.setTailHoldMillis(Integer.parseInt(args[6]));
+            }
+            app.recordMultitrackMidi(args[1], args[2], Integer.parseInt(args[3]), args[4], options);
+        }
+        else if (args[0].equals("-m"))
+        {
+            //record on several rigs at once. each rig is "loopback[:ms]" or "interface|port|mixer"
+            logger.info("recording multitrack midi file " + args[1] + " on " + (args.length - 2) + " rigs");
+            List<Rig> rigs = new ArrayList<>();
+            for (int i = 2; i < args.length; i++) {
+                rigs.add(Rig.parse(args[i], rigs.size()));
+            }
+            app.recordOnRigs(args[1], rigs, options);
+        }
+        else if (args[0].equals("-c"))
+        {
+            //record through one multichannel input. input is a mixer name or "loopback[:ms]", channel groups are like
+            //1-2,3-4 and each group needs a MIDI port given as "interface|port"
+            logger.info("recording multitrack midi file " + args[1] + " on channel groups " + args[3] + " of "
+                    + args[2]);
+            if (args[2].startsWith("loopback")) {
+                app.recordMultichannelLoopback(args[1], Deinterleaver.parseGroups(args[3]),
+                        Rig.loopbackLatencyNanos(args[2]), options);
+            }
+            else {
+                app.recordMultichannel(args[1], args[2], Deinterleaver.parseGroups(args[3]),
+                        Arrays.copyOfRange(args, 4, args.length), options);
+            }
+        }
+        else if (args[0].equals("-o"))
+        {
+            //render through the software synth instead of recording, optionally with a soundbank file
+            logger.info("rendering multitrack midi file " + args[1] + " offline");
+            app.renderOffline(args[1], args.length > 2 ? new File(args[2]) : null, options);
+        }
+        else if (args[0].equals("-x"))
+        {
+            //mix the recording_N.wav stems in a directory into one master, 24 bit or with --float 32 bit float
+            logger.info("mixing the stems in " + args[1] + " down to " + args[2]);
+            app.mixdown(new File(args[1]), new File(args[2]), flags.contains("--float"));
         }
         else if (args[0].equals("-p"))
         {
             //play a track
             logger.info("playing midi file " + args[1] + " over " + args[2] + " - " + args[3]);
-            app.playSequence(args[1], args[2], Integer.parseInt(args[3]));
+            app.playSequence(args[1], args[2], Integer.parseInt(args[3]), options.isDirectPlayback());
         }
 
-        System.exit(0);
+        if (options.getCompressor() != null) {
+            //the last stems may still be compressing
+            options.getCompressor().close();
+        }
+        if (studio != null && studio.getOverruns() > 0) {
+            logger.warn(studio.getOverruns() + " simulated line overruns");
+        }
+        if (recording && SessionMetrics.get().getTakes().length > 0) {
+            try {
+                SessionMetrics.get().writeSummary(new File("./session_metrics.json"));
+            }
+            catch (IOException e) {
+                logger.warn("could not write the session metrics", e);
+            }
+        }
+        if (app.failure != null) {
+            throw app.failure;
+        }
+    }
 
+    /**
+     * Log a failure and keep the first one, to be thrown by {@link #run(String[])} once it has cleaned up.
+     * @param e the cause, or null
+     */
+    private void failed(String message, Exception e) {
+        logger.error(message, e);
+        if (failure == null) {
+            failure = new IOException(message, e);
+        }
     }
 
 
     /**
-     * This expects a midi file with 1 polyphonic track. It will create a new track for each note
-     * (all of the same notes). So if your original track used 5 notes, you will get five tracks. All played
-     * together it will sound like the original. The point of splitting, though is to enable a monosynth to play
-     * each track and record the audio from it. Merging all the audio stems will create a polyphonic version
+     * This takes a Type 0 or Type 1 midi file and creates a new track for each note value (all of the same notes)
+     * on each channel of each source track. So if your original track used 5 notes, you will get five tracks. All
+     * played together it will sound like the original. The point of splitting, though is to enable a monosynth to
+     * play each track and record the audio from it. Merging all the audio stems will create a polyphonic version
      * from a monosynth, saving you from much tedium.
      * @param midi the midi file to read and split into multiple tracks (one per note)
      * @param multiTrackMidi the name of new multitrack midi file to write the data to
      */
     public void splitTrack(String midi, String multiTrackMidi) {
-        Sequencer sequencer = null;
+        split(midi, multiTrackMidi, new SequenceSplitter(SequenceSplitter.Mode.NOTE, new ArrayList<int[]>()));
+    }
 
+    /**
+     * Like {@link #splitTrack(String, String)} but packs the notes into as few monophonic tracks as possible
+     * instead of one track per note value. Every track is a real-time recording pass, so this is usually
+     * far quicker to record.
+     * @param midi the midi file to read and split into multiple tracks (one per voice)
+     * @param multiTrackMidi the name of new multitrack midi file to write the data to
+     * @param ranges {low, high} note range for each of the first voices. May be empty.
+     */
+    public void splitVoices(String midi, String multiTrackMidi, List<int[]> ranges) {
+        split(midi, multiTrackMidi, new SequenceSplitter(SequenceSplitter.Mode.VOICE, ranges));
+    }
+
+    private void split(String midi, String multiTrackMidi, SequenceSplitter splitter) {
         try (InputStream midiData = this.getClass().getClassLoader().getResourceAsStream(midi)) {
-            // Set the sequence for the sequencer
+            // source tracks are split in parallel and merged back in a fixed order
             Sequence sequence = MidiSystem.getSequence(midiData);
-            //this sequence should only have one track. wrong if more.
-            if (sequence.getTracks().length > 2) {
-                throw new InvalidMidiDataException("midi file has more than 2 tracks");
-           }
-            Sequence multiTrack = MidiHelp.splitTrack(sequence.getTracks()[1]);
+            Sequence multiTrack = splitter.split(sequence);
             MidiSystem.write(multiTrack, 1, new File(multiTrackMidi));
         } catch (IOException | InvalidMidiDataException e) {
-            logger.error("invalid data or midi file not found", e);
+            failed("invalid data or midi file not found", e);
+        }
+    }
+
+    /**
+     * Parse voice ranges given as comma separated low-high note numbers, i.e. "36-59,60-84".
+     */
+    private static List<int[]> parseRanges(String ranges) {
+        List<int[]> parsed = new ArrayList<>();
+        for (String range : ranges.split(",")) {
+            String[] bounds = range.trim().split("-");
+            parsed.add(new int[]{Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])});
         }
+        return parsed;
+    }
+
+    /**
+     * Like {@link #recordMultitrackMidi(String, String, int, String, RecordingOptions)} but spreads the tracks
+     * over several synths, each on its own MIDI port and audio input, and records them at the same time.
+     * @param midiFile a Type 1 multitrack midi file
+     * @param rigs the synths to record with
+     * @param options tail detection and sparse recording settings
+     */
+    public void recordOnRigs(String midiFile, List<Rig> rigs, RecordingOptions options) {
+        try (InputStream inputMidi = this.getClass().getClassLoader().getResourceAsStream(midiFile)) {
+            Sequence sequence = MidiSystem.getSequence(inputMidi);
+            new TrackScheduler(rigs, options).record(sequence);
+        }
+        catch (IOException | MidiUnavailableException | InvalidMidiDataException | InterruptedException e) {
+            failed("multi rig recording of " + midiFile + " failed", e);
+        }
+    }
+
+    /**
+     * Record through one multichannel audio input, one track per channel group per pass. Each group has its own
+     * synth and MIDI port.
+     * @param midiFile a Type 1 multitrack midi file
+     * @param mixerName part of the name of the multichannel mixer
+     * @param groups line channels (from 0) recorded by each synth
+     * @param ports MIDI port for each group as "interface|port", i.e. "Express  128: Port|1"
+     * @param options tail detection settings
+     */
+    public void recordMultichannel(String midiFile, String mixerName, int[][] groups, String[] ports,
+                                   RecordingOptions options) {
+        try {
+            List<Receiver> receivers = new ArrayList<>();
+            for (String port : ports) {
+                String[] parts = port.split("\\|");
+                receivers.add(DeviceRegistry.get().getReceiver(Integer.parseInt(parts[1].trim()), parts[0]));
+            }
+            AudioFormat format = AudioHelp.withChannels(channelCount(groups));
+            recordMultichannel(midiFile, DeviceRegistry.get().getLine(mixerName, format), format, groups,
+                    receivers, options);
+        }
+        catch (MidiUnavailableException | LineUnavailableException e) {
+            failed("multichannel recording of " + midiFile + " failed", e);
+        }
+    }
+
+    /**
+     * Render every track of a multitrack midi file through the software synth, as fast as the CPU allows. The
+     * stems are laid out exactly like recorded ones, so the whole pipeline can be checked without hardware.
+     * @param midiFile a Type 1 multitrack midi file
+     * @param soundbank instruments to render with, or null for the synth's default bank
+     * @param options tail detection settings
+     */
+    public void renderOffline(String midiFile, File soundbank, RecordingOptions options) {
+        try (InputStream inputMidi = this.getClass().getClassLoader().getResourceAsStream(midiFile)) {
+            Sequence sequence = MidiSystem.getSequence(inputMidi);
+            OfflineRenderer renderer = new OfflineRenderer(OfflineRenderer.loadSoundbank(soundbank));
+            renderer.setTail(options.getTailThresholdDb(), options.getTailHoldMillis());
+            renderer.render(sequence);
+        }
+        catch (IOException | MidiUnavailableException | InvalidMidiDataException | InterruptedException e) {
+            failed("offline render of " + midiFile + " failed", e);
+        }
+    }
+
+    /**
+     * Sum a session's stems into one master normalised to {@link Mixdown#DEFAULT_PEAK_DB}.
+     * @param dir directory holding the recording_N.wav stems
+     * @param master the wav file to write
+     * @param floatMaster true for a 32 bit float master, false for 24 bit
+     */
+    public void mixdown(File dir, File master, boolean floatMaster) {
+        List<File> stems = Mixdown.findStems(dir);
+        if (stems.isEmpty()) {
+            failed("no recording_N.wav stems in " + dir, null);
+            return;
+        }
+        Mixdown mixdown = new Mixdown(stems);
+        mixdown.setFloat(floatMaster);
+        try {
+            mixdown.mix(master);
+        }
+        catch (IOException | InterruptedException e) {
+            failed("mixdown of " + dir + " failed", e);
+        }
+    }
+
+    /**
+     * Same as {@link #recordMultichannel(String, String, int[][], String[], RecordingOptions)} with stand in
+     * synths and a stand in line, for trying it out without hardware.
+     * @param latencyNanos how long the stand in synths take to be heard
+     */
+    public void recordMultichannelLoopback(String midiFile, int[][] groups, long latencyNanos,
+                                           RecordingOptions options) {
+        AudioFormat format = AudioHelp.withChannels(channelCount(groups));
+        LoopbackReceiver[] channels = new LoopbackReceiver[format.getChannels()];
+        List<Receiver> receivers = new ArrayList<>();
+        for (int[] group : groups) {
+            LoopbackReceiver receiver = new LoopbackReceiver(latencyNanos);
+            for (int channel : group) {
+                channels[channel] = receiver;
+            }
+            receivers.add(receiver);
+        }
+        recordMultichannel(midiFile, new LoopbackLine(channels, format), format, groups, receivers, options);
+    }
+
+    private void recordMultichannel(String midiFile, TargetDataLine line, AudioFormat format, int[][] groups,
+                                    List<Receiver> receivers, RecordingOptions options) {
+        try (InputStream inputMidi = this.getClass().getClassLoader().getResourceAsStream(midiFile)) {
+            Sequence sequence = MidiSystem.getSequence(inputMidi);
+            new MultichannelSession(line, format, groups, receivers, options).record(sequence);
+        }
+        catch (IOException | MidiUnavailableException | InvalidMidiDataException | LineUnavailableException
+                | InterruptedException e) {
+            failed("multichannel recording of " + midiFile + " failed", e);
+        }
+    }
+
+    /**
+     * @return channels the line needs to reach the highest channel in any group
+     */
+    private static int channelCount(int[][] groups) {
+        int channels = 0;
+        for (int[] group : groups) {
+            for (int channel : group) {
+                channels = Math.max(channels, channel + 1);
+            }
+        }
+        return channels;
     }
 
     /**
@@ -100,45 +487,36 @@ public class App
      */
     public void playSequence(String midi, String midiInterface, int port)
     {
-        Sequencer sequencer = null;
-        Receiver recv;
-        Transmitter mitter;
+        playSequence(midi, midiInterface, port, false);
+    }
 
+    /**
+     * Same as {@link #playSequence(String, String, int)}.
+     * @param direct true to send events straight to the interface with a {@link DirectPlayer} rather than
+     *               through the JDK sequencer
+     */
+    public void playSequence(String midi, String midiInterface, int port, boolean direct)
+    {
         try (InputStream midiData = this.getClass().getClassLoader().getResourceAsStream(midi))
         {
-            //try to kill default synth in the OS. Why? It keeps playing all the time.
-            MidiHelp.disableDefaultSynth();
-            // Get a Sequencer instance
-            sequencer = MidiSystem.getSequencer();
-            // Open the sequencer
-            sequencer.open();
-            // Set the sequence for the sequencer
             Sequence sequence = MidiSystem.getSequence(midiData);
-            sequencer.setSequence(sequence);
-
             //examine all events in the sequence
             MidiHelp.dumpSequence(sequence);
-            mitter = sequencer.getTransmitter();
             // Start playing the sequence on the specified MIDI output port of the interface
-            recv = MidiHelp.getReceiver(port, midiInterface);
-            //set to transmit on this port to device
-            mitter.setReceiver(recv);
-            //play a file. sequencer apparently makes own thread.
-            sequencer.addMetaEventListener(new MidiListener());
-            sequencer.start();
-
-            while (sequencer.isRunning())
-            {
-                //noop
-                Thread.sleep(200);
+            Receiver recv = MidiHelp.getReceiver(port, midiInterface);
+            try (TrackPlayer player = MidiHelp.openPlayer(sequence, recv, direct);
+                 MidiListener listener = new MidiListener()) {
+                if (player instanceof SequencerPlayer) {
+                    //tempo changes and markers are logged off the sequencer's thread
+                    ((SequencerPlayer) player).getSequencer().addMetaEventListener(listener);
+                }
+                //play a file. the player makes its own thread and tells us when it is done.
+                player.start(TrackPlayer.ALL_TRACKS, 0);
+                player.awaitEnd(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
             }
-
         }
         catch (IOException | MidiUnavailableException | InvalidMidiDataException | InterruptedException e) {
-            e.printStackTrace();
-        }
-        finally {
-            sequencer.close();
+            failed("playing " + midi + " failed", e);
         }
     }
 
@@ -149,58 +527,83 @@ public class App
      * @param midiFile a Type 1 multitrack midi file
      */
     public void recordMultitrackMidi(String midiFile, String midiInterface, int port, String mixerName) throws MidiUnavailableException {
-        MidiHelp.disableDefaultSynth();
-        Sequencer sequencer;
-        Receiver recv;
-        Transmitter mitter;
+        recordMultitrackMidi(midiFile, midiInterface, port, mixerName, new RecordingOptions());
+    }
+
+    /**
+     * Same as {@link #recordMultitrackMidi(String, String, int, String)} but with control over how each take is
+     * recorded and when it ends.
+     * @param options tail detection and sparse recording settings
+     */
+    public void recordMultitrackMidi(String midiFile, String midiInterface, int port, String mixerName,
+                                     RecordingOptions options) throws MidiUnavailableException {
+        long start = System.nanoTime();
+        DeviceRegistry devices = DeviceRegistry.get();
         TargetDataLine line = null;
 
-        byte[] audio = new byte[20000000];
-        OutputStream audioRecord;
-        AudioFileFormat.Type fileType = AudioFileFormat.Type.WAVE;
-        AudioInputStream audioInputStream;
-        AudioHelp.showMixers();
+        if (logger.isDebugEnabled()) {
+            AudioHelp.showMixers();
+        }
         InputStream inputMidi =  this.getClass().getClassLoader().getResourceAsStream(midiFile);
+        TrackPlayer player = null;
         try
         {
-            // Get a Sequencer instance
-            sequencer = MidiSystem.getSequencer();
-            // Open the sequencer
-            sequencer.open();
-            // Set the sequence for the sequencer
             Sequence sequence = MidiSystem.getSequence(inputMidi);
-            sequencer.setSequence(sequence);
-            //mute all tracks
             int trackCount = sequence.getTracks().length;
-            for (int j = 0; j < trackCount; j++) {
-                sequencer.setTrackMute(j, true);
-            }
 
             //examine all events in the sequence
             MidiHelp.dumpSequence(sequence);
-            mitter = sequencer.getTransmitter();
             // Start playing the sequence on the specified MIDI output port of the MOTU express
-            recv = MidiHelp.getReceiver(port, midiInterface);
-            //set to transmit on this port to device
-            mitter.setReceiver(recv);
+            Receiver recv = devices.getReceiver(port, midiInterface);
+            //plays one track at a time, every other track muted
+            player = MidiHelp.openPlayer(sequence, recv, options.isDirectPlayback(), SessionMetrics.get());
 
-            //try to kill default synth in the OS. Why? It keeps playing all the time.
-            MidiHelp.disableDefaultSynth();
-            Mixer recordingMixer = AudioHelp.getMixer(mixerName);
+            Mixer recordingMixer = devices.getMixer(mixerName);
             logger.info("using mixer " + recordingMixer.getMixerInfo());
+            logger.info(String.format("ready to record after %.1f ms", (System.nanoTime() - start) / 1e6));
+
+            long latency = options.getLatencyFrames(AudioHelp.CD_AUDIO);
+            if (options.isCalibrate()) {
+                line = devices.getLine(mixerName, AudioHelp.CD_AUDIO);
+                long measured = new LatencyCalibrator(line, AudioHelp.CD_AUDIO,
+                        LatencyCalibrator.allChannels(AudioHelp.CD_AUDIO)).measure(recv);
+                if (measured >= 0) {
+                    latency = measured;
+                }
+            }
 
             //play each separate track in the midi file and record the audio to separate files
-            for (int i = 0; i < trackCount; i++) {
-                //use the specified mixer
-                line = AudioSystem.getTargetDataLine(AudioHelp.CD_AUDIO, recordingMixer.getMixerInfo());
-                AudioRecorder recorder = new AudioRecorder(line, sequencer, i);
-                recorder.run();
-                logger.info("completed recording track " + i);
+            List<Integer> tracks = options.tracksToRecord(sequence);
+            logger.info("recording " + tracks.size() + " of " + trackCount + " tracks");
+            //use the specified mixer. one line for every take, opened once and kept running between them.
+            line = devices.getLine(mixerName, AudioHelp.CD_AUDIO);
+            TakePipeline pipeline = new TakePipeline(line, player, options, latency);
+            try {
+                pipeline.setCacheSetup(midiInterface + "|" + port + "|" + mixerName + "|"
+                        + options.describe(AudioHelp.CD_AUDIO));
+                pipeline.record(sequence, tracks, null);
+            }
+            finally {
+                pipeline.close();
+            }
+            //the pipeline only counts its failed takes once it is closed
+            if (pipeline.getFailed() > 0) {
+                failed(pipeline.getFailed() + " of " + tracks.size() + " takes failed, record them again with --resume",
+                        null);
+            }
+            if (options.getCache() != null) {
+                logger.info(options.getCache().getHits() + " tracks reused from " + options.getCache().getDir()
+                        + ", " + options.getCache().getMisses() + " recorded");
             }
         }
         catch(IOException | MidiUnavailableException | InvalidMidiDataException | LineUnavailableException e)
         {
-            e.printStackTrace();
+            failed("recording " + midiFile + " failed", e);
+        }
+        finally {
+            if (player != null) {
+                player.close();
+            }
         }
     }
     }
@@ -0,0 +1,215 @@
+package com.skyefractal;
+
+import com.skyefractal.audio.AudioRecorder;
+import com.skyefractal.audio.StemCompressor;
+import com.skyefractal.audio.TailDetector;
+import com.skyefractal.session.SessionManifest;
+import com.skyefractal.session.StemCache;
+
+import javax.sound.midi.Sequence;
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Settings for a multitrack recording session that are not needed to find the devices.
+ */
+public class RecordingOptions {
+
+    private static final Logger logger = LogManager.getLogger(RecordingOptions.class);
+
+    private double tailThresholdDb = TailDetector.DEFAULT_THRESHOLD_DB;
+    private int tailHoldMillis = TailDetector.DEFAULT_HOLD_MILLIS;
+    private boolean sparse = false;
+    private boolean directPlayback = false;
+    private boolean calibrate = false;
+    private double latencyMillis = 0;
+    private StemCompressor compressor = null;
+    private SessionManifest manifest = null;
+    private boolean resume = false;
+    private StemCache cache = null;
+
+    /**
+     * @return level in dBFS that counts as silence once a track has finished playing
+     */
+    public double getTailThresholdDb() {
+        return tailThresholdDb;
+    }
+
+    public void setTailThresholdDb(double tailThresholdDb) {
+        this.tailThresholdDb = tailThresholdDb;
+    }
+
+    /**
+     * @return how long the audio must stay below the threshold before a take ends
+     */
+    public int getTailHoldMillis() {
+        return tailHoldMillis;
+    }
+
+    public void setTailHoldMillis(int tailHoldMillis) {
+        this.tailHoldMillis = tailHoldMillis;
+    }
+
+    /**
+     * @return true to record only the parts of each track that have notes in them
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * @return true to play tracks with {@link com.skyefractal.midi.DirectPlayer} instead of the JDK sequencer
+     */
+    public boolean isDirectPlayback() {
+        return directPlayback;
+    }
+
+    public void setDirectPlayback(boolean directPlayback) {
+        this.directPlayback = directPlayback;
+    }
+
+    /**
+     * @return true to measure each synth's midi to audio latency before recording, see
+     * {@link com.skyefractal.audio.LatencyCalibrator}
+     */
+    public boolean isCalibrate() {
+        return calibrate;
+    }
+
+    public void setCalibrate(boolean calibrate) {
+        this.calibrate = calibrate;
+    }
+
+    /**
+     * @return midi to audio latency trimmed from the start of every take when it is not calibrated
+     */
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public void setLatencyMillis(double latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return {@link #getLatencyMillis()} in frames of the given format
+     */
+    public long getLatencyFrames(AudioFormat format) {
+        return Math.round(latencyMillis * format.getFrameRate() / 1000);
+    }
+
+    /**
+     * @return compresses stems in the background as they are finished, or null to keep them as wav
+     */
+    public StemCompressor getCompressor() {
+        return compressor;
+    }
+
+    public void setCompressor(StemCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return where finished takes are recorded, or null to keep no record
+     */
+    public SessionManifest getManifest() {
+        return manifest;
+    }
+
+    public void setManifest(SessionManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * @return true to keep the takes in the manifest that are still whole and record only the rest
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return where stems of unchanged tracks are reused from, or null to record every track
+     */
+    public StemCache getCache() {
+        return cache;
+    }
+
+    public void setCache(StemCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the settings that change how a take sounds, for {@link StemCache#fingerprint}. A measured
+     * latency is left out, it varies by a few frames from run to run.
+     */
+    public String describe(AudioFormat format) {
+        return format + "|tail " + tailThresholdDb + " dB " + tailHoldMillis + " ms|sparse " + sparse + "|direct "
+                + directPlayback + "|latency " + (calibrate ? "calibrated" : latencyMillis + " ms");
+    }
+
+    /**
+     * @return indexes of the tracks still to record: all of them, or when resuming, those without a good take
+     * in the manifest
+     */
+    public List<Integer> tracksToRecord(Sequence sequence) {
+        int tracks = sequence.getTracks().length;
+        List<Integer> todo = new ArrayList<>(tracks);
+        for (int i = 0; i < tracks; i++) {
+            if (resume && manifest != null && manifest.isComplete(i, sequence)) {
+                logger.info("track " + i + " is already recorded, skipping it");
+                continue;
+            }
+            todo.add(i);
+        }
+        return todo;
+    }
+
+    /**
+     * Call once a take has been recorded without error. Adds it to the manifest, then hands the stem on like
+     * {@link #stemFinished(File)}.
+     * @param track index of the track
+     * @param sequence the sequence the track was played from
+     * @param stem the finished wav
+     */
+    public void takeFinished(int track, Sequence sequence, File stem) throws IOException, InterruptedException {
+        if (manifest != null) {
+            manifest.add(track, sequence, stem);
+        }
+        stemFinished(stem);
+    }
+
+    /**
+     * Call once a stem is completely written. Blocks if the compressor has fallen behind.
+     * @param stem the finished wav
+     */
+    public void stemFinished(File stem) throws InterruptedException {
+        if (compressor != null) {
+            compressor.submit(stem);
+        }
+    }
+
+    /**
+     * Apply these settings to a recorder.
+     * @param recorder the recorder for one take
+     * @param format the format it records in
+     */
+    public void configure(AudioRecorder recorder, AudioFormat format) {
+        recorder.setTailDetector(new TailDetector(format, tailThresholdDb, tailHoldMillis));
+        recorder.setSparse(sparse);
+        recorder.setLatencyFrames(getLatencyFrames(format));
+    }
+}
@@ -1,4 +1,5 @@
 package com.skyefractal.audio;
+import com.skyefractal.device.DeviceRegistry;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiSystem;
 import javax.sound.sampled.*;
@@ -19,6 +20,15 @@ public class AudioHelp {
 
     private static final Logger logger = LogManager.getLogger(AudioHelp.class);
     public static final AudioFormat CD_AUDIO = new AudioFormat(44000.0f, 16, 2, true, false);
+
+    /**
+     * @return the same format as {@link #CD_AUDIO} with any number of channels, for multichannel interfaces
+     */
+    public static AudioFormat withChannels(int channels)
+    {
+        return new AudioFormat(CD_AUDIO.getSampleRate(), CD_AUDIO.getSampleSizeInBits(), channels, true, false);
+    }
+
     /**
      * Writes a byte array to the given file name.
      * @param data audio or any other byte array
@@ -38,26 +48,38 @@ public class AudioHelp {
         }
     }
 
+    /**
+     * Decode one signed little endian PCM sample.
+     * @param data audio bytes
+     * @param offset index of the sample's first (least significant) byte
+     * @param sampleBytes bytes per sample, 1 to 4
+     * @return the sample sign extended to an int
+     */
+    public static int sampleAt(byte[] data, int offset, int sampleBytes)
+    {
+        int value = 0;
+        for (int i = 0; i < sampleBytes; i++) {
+            value |= (data[offset + i] & 0xFF) << (8 * i);
+        }
+        //shift up and back down to sign extend from the top byte
+        int unused = 32 - 8 * sampleBytes;
+        return (value << unused) >> unused;
+    }
+
+    /**
+     * Find an audio input by name. Mixers are listed once and remembered, see {@link DeviceRegistry}.
+     * @param mixerName part of the name of the mixer
+     * @return a mixer that can record, or null if there is none with that name
+     */
     public static Mixer getMixer(String mixerName)
     {
-        Line.Info targetDLInfo = new Line.Info(TargetDataLine.class);
-        Mixer.Info[] info = AudioSystem.getMixerInfo();
-        Mixer mixer = null;
-        for (int i = 0; i < info.length; i++) {
-            logger.debug(info[i]);
-            //scan for interface name and the port. String form is unknown so look for both. not great.
-            if (info[i].toString().contains(mixerName))
-            {
-                mixer = AudioSystem.getMixer(info[i]);
-                if (mixer.isLineSupported(targetDLInfo))
-                {
-                    //found mixer that is an audio input
-                    logger.info("found mixer input: " + info[i]);
-                    break;
-                }
-            }
+        try {
+            return DeviceRegistry.get().getMixer(mixerName);
+        }
+        catch (LineUnavailableException e) {
+            logger.warn(e.getMessage());
+            return null;
         }
-        return mixer;
     }
 
     public static void showMixers() {
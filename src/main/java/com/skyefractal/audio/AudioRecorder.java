@@ -1,8 +1,22 @@
 package com.skyefractal.audio;
 
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.metrics.TakeMetrics;
+import com.skyefractal.midi.ActiveRegion;
+import com.skyefractal.midi.SequencerPlayer;
+import com.skyefractal.midi.TempoMap;
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 import javax.sound.sampled.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,97 +25,542 @@ public class AudioRecorder implements Runnable {
 
     private static final Logger logger = LogManager.getLogger(AudioRecorder.class);
     private TargetDataLine line = null;
-    private Sequencer sequencer = null;
+    private TrackPlayer player = null;
     private int track = 0;
-    AudioFileFormat.Type fileType = AudioFileFormat.Type.WAVE;
+    static final int RING_SLOTS = 256;
+    //frames per read. at 44k this is about 46ms, so the capture thread wakes ~20 times a second
+    static final int CHUNK_FRAMES = 2048;
+    //the line's own buffer holds several chunks so a late wakeup never loses audio
+    static final int LINE_BUFFER_CHUNKS = 8;
+    //generated silence at the start of every stem
+    public static final int PRE_ROLL_SECONDS = 2;
+    //upper bound on the tail. the tail detector normally ends it much sooner.
+    static final int MAX_TAIL_SECONDS = 10;
+    //sparse mode: start each region this far ahead of its first note
+    private static final long REGION_LEAD_MICROS = 50000;
+    //sparse mode: rests shorter than this are recorded rather than skipped
+    private static final long REGION_MIN_GAP_MICROS = 4000000;
+    private long capturedFrames = 0;
+    //frames that made it into the ring, counting the silence written for chunks lost to overruns
+    private long keptFrames = 0;
+    //bytes lost to overruns that are still to be made up with silence
+    private long lostBytes = 0;
+    private byte silence = 0;
+    private TailDetector tailDetector = null;
+    private boolean sparse = false;
+    //midi to audio round trip, from LatencyCalibrator
+    private long latencyFrames = 0;
+    private final TakeMetrics metrics;
+    //when playback started and when the last frame was captured, for the take timings
+    private long playNanos = 0;
+    private long capturedNanos = 0;
+    private volatile Exception failure = null;
+    private boolean keepLineOpen = false;
+    //stem made ahead of time by prepare()
+    private OpenStem prepared = null;
 
 
     public AudioRecorder (TargetDataLine line, Sequencer sequencer, int track) {
+        this(line, new SequencerPlayer(sequencer), track);
+    }
+
+    /**
+     * @param line the line to record from, not yet open
+     * @param player plays the track to the synth being recorded
+     * @param track index of the track to record
+     */
+    public AudioRecorder (TargetDataLine line, TrackPlayer player, int track) {
         this.line = line;
-        this.sequencer = sequencer;
+        this.player = player;
         this.track = track;
+        this.metrics = SessionMetrics.get().take(track);
+    }
+
+    /**
+     * Set how the end of the release tail is detected. Defaults to {@link TailDetector}'s defaults.
+     * @param tailDetector detector for the format being recorded
+     */
+    public void setTailDetector(TailDetector tailDetector) {
+        this.tailDetector = tailDetector;
+    }
+
+    /**
+     * In sparse mode only the parts of the track that have notes are played and recorded. The silent stretches
+     * are skipped and filled back in with generated silence afterwards, giving the same full length stem.
+     * @param sparse true to skip silent regions
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+
+    /**
+     * Leave the line open and running after the take so the next take on the same line starts without opening
+     * it again. The line may also be opened and started before the first take. Whoever made the line closes it.
+     * @param keepLineOpen true to keep the line open
+     */
+    public void setKeepLineOpen(boolean keepLineOpen) {
+        this.keepLineOpen = keepLineOpen;
+    }
+
+    /**
+     * Every take is trimmed so the track's first tick lands exactly at the end of the pre-roll. The audio before
+     * playback started is always trimmed; this is the extra delay before the synth is heard.
+     * @param latencyFrames midi to audio latency, see {@link LatencyCalibrator}
+     */
+    public void setLatencyFrames(long latencyFrames) {
+        this.latencyFrames = latencyFrames;
     }
 
 
     @Override
     public void run() {
+        //finish the stem on this thread before returning
+        FutureTask<Void> finish = record();
+        if (finish != null) {
+            finish.run();
+        }
+    }
+
+    /**
+     * Record the take, but leave the stem to be finished on another thread: draining the writer, patching the
+     * wav header and in sparse mode laying the regions out. Returns as soon as the last frame is captured, so
+     * the next take can start while this one is still being written.
+     * @param finisher runs the rest of the take
+     * @return done once the stem is finished. {@link #getFailure()} says whether it worked.
+     */
+    public Future<?> record(Executor finisher) {
+        FutureTask<Void> finish = record();
+        if (finish == null) {
+            finish = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+            finish.run();
+        }
+        else {
+            finisher.execute(finish);
+        }
+        return finish;
+    }
 
-        OutputStream audioFile;
-        //stereo cd audio is 176400 bytes per second- thi sis good for one minute but will grow as needed
-        ByteArrayOutputStream audio = new ByteArrayOutputStream(10000000);
-        int bufferSize = 8192;
-        byte[] chunk = new byte[bufferSize];
-        // Open the target data line for recording
+    /**
+     * @return the task that finishes the stem, or null if the take failed
+     */
+    private FutureTask<Void> record() {
+        final AudioFormat format = AudioHelp.CD_AUDIO;
+        final File stem = getStem();
+        final long start = System.nanoTime();
+        failure = null;
+        playNanos = 0;
+        final Sequence sequence = player.getSequence();
+        List<ActiveRegion> regions = null;
+        //sparse mode captures the regions back to back into a scratch file then lays them out on the timeline
+        final File take = sparse ? new File("./recording_" + track + ".sparse.wav") : stem;
+        final OpenStem open;
         try {
-            //by opening with a certain buffer size, this should guarantee each read cycle will not exceed that amount
-            line.open(AudioHelp.CD_AUDIO, bufferSize);
-            // Start recording
-            line.start();
-            int count = 0;
-            //play a file and record the audio.
-            //unmute current track
-            sequencer.setTrackMute(track, false);
-            sequencer.setTrackSolo(track, true);
-
-            //record before sequencer starts
-            long startTime = System.currentTimeMillis();
-            long currentTime = 0;
-
-            //record two seconds
-            //FIXME could just insert a number of zeroes
-            while(currentTime - startTime < 2000)
-            {
-                currentTime = System.currentTimeMillis();
-                //read into a small buffer
-                line.read(chunk, 0,bufferSize);
-                //append to the bytearrayoutputstream
-                audio.write(chunk, 0, chunk.length);
+            if (sparse) {
+                regions = ActiveRegion.find(sequence.getTracks()[track], new TempoMap(sequence),
+                        REGION_LEAD_MICROS, REGION_MIN_GAP_MICROS);
+                logger.info("track " + track + ": recording " + regions.size() + " active regions");
+            }
+            open = open(take, format, regions);
+        }
+        catch (LineUnavailableException | IOException | InterruptedException | RuntimeException e)
+        {
+            failure = e;
+            e.printStackTrace();
+            return null;
+        }
+        return new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finish(open);
+                    if (sparse) {
+                        long preRoll = (long) PRE_ROLL_SECONDS * (long) format.getFrameRate();
+                        long length = preRoll + toFrames(sequence.getMicrosecondLength(), format);
+                        StemAssembler.assemble(take, open.placements, stem, format, length);
+                        if (!take.delete()) {
+                            logger.warn("could not delete " + take);
+                        }
+                    }
+                }
+                catch (IOException | InterruptedException | RuntimeException e)
+                {
+                    failure = e;
+                    e.printStackTrace();
+                }
+                finally {
+                    metrics.setTimings(playNanos - start, capturedNanos - playNanos,
+                            System.nanoTime() - capturedNanos);
+                }
             }
+        }, null);
+    }
+
+    /**
+     * A stem whose audio has all been captured but may not all be on disk yet.
+     */
+    private static class OpenStem {
+        final WavWriter audio;
+        final AudioRingBuffer ring;
+        final StemWriter writer;
+        final Thread writerThread;
+        List<StemAssembler.Placement> placements;
 
-            //ensures back at the beginning for each track
-            sequencer.setMicrosecondPosition(0);
-            sequencer.start();
+        OpenStem(WavWriter audio, AudioRingBuffer ring, StemWriter writer, Thread writerThread) {
+            this.audio = audio;
+            this.ring = ring;
+            this.writer = writer;
+            this.writerThread = writerThread;
+        }
+    }
 
-            while (sequencer.isRunning()) {
-                //read into a small buffer
-                //logger.debug("bytes available = " + line.available());
-                count = line.read(chunk, 0, line.available());
-                //append to the bytearrayoutputstream
-                audio.write(chunk, 0, count);
+    /**
+     * Capture the track into a wav file. Returns once the audio is captured, with the writer still draining it.
+     * @param file where to write the audio
+     * @param regions the regions to record, or null to play the whole track
+     */
+    private OpenStem open(File file, AudioFormat format, List<ActiveRegion> regions)
+            throws IOException, LineUnavailableException, InterruptedException {
+        OpenStem open;
+        synchronized (this) {
+            open = prepared;
+            prepared = null;
+        }
+        if (open == null || regions != null) {
+            if (open != null) {
+                //prepared for a whole track take. sparse mode has no pre-roll and records to a scratch file.
+                discard(open);
             }
+            open = create(file, format, regions == null);
+        }
+        try {
+            open.placements = capture(open.ring, format, regions);
+        }
+        catch (LineUnavailableException | RuntimeException e) {
+            discard(open);
+            throw e;
+        }
+        return open;
+    }
 
-            //need to keep recording (for extra 10 seconds) to get any audio tails.
-            startTime = System.currentTimeMillis();
-            currentTime = 0;
-
-            while(currentTime - startTime < 10000)
-            {
-                currentTime = System.currentTimeMillis();
-                //read into a small buffer
-                line.read(chunk, 0, bufferSize);
-                //append to the bytearrayoutputstream
-                audio.write(chunk, 0, chunk.length);
+    /**
+     * Create the wav file, write the pre-roll and start the writer thread.
+     */
+    private OpenStem create(File file, AudioFormat format, boolean preRoll) throws IOException {
+        int chunkSize = CHUNK_FRAMES * format.getFrameSize();
+        //the ring holds about 12 seconds of cd audio so the writer can ride out long disk stalls
+        AudioRingBuffer ring = new AudioRingBuffer(RING_SLOTS, chunkSize);
+        // audio goes straight to disk as it is captured.
+        WavWriter audio = new WavWriter(file, format);
+        try {
+            if (preRoll) {
+                //pre-roll is generated, not recorded. nothing is playing yet so there is nothing to hear.
+                audio.writeSilence((long) PRE_ROLL_SECONDS * (long) format.getFrameRate());
             }
+            StemWriter writer = new StemWriter(ring, audio);
+            return new OpenStem(audio, ring, writer, writer.start("stem-writer-" + track));
+        }
+        catch (IOException | RuntimeException e) {
+            audio.close();
+            throw e;
+        }
+    }
 
-            //finish recording and free resources to get ready for next run
-            if (!sequencer.isRunning()) {
-                //prepare to play next track by muting track just played
-                sequencer.setTrackMute(track, true);
-                sequencer.setTrackSolo(track, false);
-                sequencer.stop();  //redundant I think
-                //write the audio recorded
-                line.stop();
-                line.close();
-                int size = audio.size();
-                InputStream stream = new ByteArrayInputStream(audio.toByteArray(), 0, size);
-                AudioInputStream audioInputStream = new AudioInputStream(stream, AudioHelp.CD_AUDIO, size);
-                audioFile = new FileOutputStream(new File("./recording_" + track + ".wav"));
-                AudioSystem.write(audioInputStream, fileType, audioFile);
+    private static void discard(OpenStem open) throws IOException, InterruptedException {
+        open.ring.close();
+        open.writerThread.join();
+        open.audio.close();
+    }
+
+    /**
+     * Create the stem and write its pre-roll ahead of time, so the take starts playing as soon as it is run.
+     * Can be called on any thread, typically while the previous take is still recording. Sparse takes do not
+     * use it.
+     */
+    public void prepare() throws IOException {
+        OpenStem open = create(getStem(), AudioHelp.CD_AUDIO, true);
+        synchronized (this) {
+            prepared = open;
+        }
+    }
+
+    /**
+     * Wait for the writer to drain the ring and close the wav.
+     */
+    private void finish(OpenStem open) throws IOException, InterruptedException {
+        try {
+            open.ring.close();
+            open.writerThread.join();
+            logger.info("track " + track + ": captured " + capturedFrames + " frames, ring high-water mark "
+                    + open.ring.getHighWaterMark() + "/" + open.ring.getCapacity() + " chunks, "
+                    + open.ring.getOverruns() + " overruns");
+            if (open.writer.getFailure() != null) {
+                throw open.writer.getFailure();
             }
         }
-        catch (LineUnavailableException | IOException e)
-        {
-            e.printStackTrace();
+        finally {
+            //closing the writer patches the wav header with the final sizes
+            open.audio.close();
+        }
+    }
+
+    /**
+     * Runs on the capture thread. It only reads the line into ring slots; all file I/O is on the writer thread.
+     * Every read blocks until a whole chunk of frames has arrived, so the thread sleeps while the line fills
+     * and tail lengths are exact frame counts rather than wall clock time.
+     */
+    private List<StemAssembler.Placement> capture(AudioRingBuffer ring, AudioFormat format, List<ActiveRegion> regions)
+            throws LineUnavailableException {
+        int frameRate = (int) format.getFrameRate();
+        TailDetector tail = tailDetector != null ? tailDetector : new TailDetector(format);
+        List<StemAssembler.Placement> placements = null;
+        //used when the ring is full so the line is still drained and does not overrun as well
+        byte[] discard = new byte[ring.getSlotSize()];
+        if (!line.isOpen()) {
+            line.open(format, lineBufferSize(format));
+        }
+        capturedFrames = 0;
+        keptFrames = 0;
+        lostBytes = 0;
+        silence = WavWriter.silence(format);
+        playNanos = 0;
+        // Start recording. a primed line has been running since the last take, drop what it picked up since.
+        line.flush();
+        line.start();
+        //play a file and record the audio.
+        if (regions == null) {
+            //always from the beginning. the take ends with this track, not with the longest in the sequence.
+            player.start(track, 0);
+            playNanos = System.nanoTime();
+            align(discard);
+            //the capture thread has to keep draining the line, so rather than block on the player's end of track
+            //signal it checks it once per chunk. that is a latch read, never a call into the sequencer.
+            while (player.isPlaying()) {
+                read(ring, discard, ring.getSlotSize(), null);
+            }
+            player.stop();
+
+            //keep recording until the audio tail has died away (but never more than 10 seconds)
+            tail.reset();
+            long tailFrames = readTail(ring, discard, (long) MAX_TAIL_SECONDS * frameRate, tail);
+            fillLost(ring);
+            logger.debug("track " + track + ": tail ended after " + tailFrames + " frames");
+        }
+        else {
+            placements = new ArrayList<>(regions.size());
+            long preRoll = (long) PRE_ROLL_SECONDS * frameRate;
+            for (int i = 0; i < regions.size(); i++) {
+                ActiveRegion region = regions.get(i);
+                //the tail may run up to the start of the next region but no further
+                long maxTail = (long) MAX_TAIL_SECONDS * frameRate;
+                if (i + 1 < regions.size()) {
+                    maxTail = Math.min(maxTail, toFrames(regions.get(i + 1).getStartMicros()
+                            - region.getEndMicros(), format));
+                }
+                long before = keptFrames;
+                //drop whatever the line picked up between regions
+                line.flush();
+                player.start(track, region.getStartTick());
+                if (playNanos == 0) {
+                    playNanos = System.nanoTime();
+                }
+                align(discard);
+                readFrames(ring, discard, toFrames(region.getEndMicros() - region.getStartMicros(), format));
+                tail.reset();
+                readTail(ring, discard, maxTail, tail);
+                player.stop();
+                fillLost(ring);
+                placements.add(new StemAssembler.Placement(preRoll + toFrames(region.getStartMicros(), format),
+                        keptFrames - before));
+            }
+        }
+
+        //finish recording and free resources to get ready for next run
+        capturedNanos = System.nanoTime();
+        player.stop();
+        if (!keepLineOpen) {
+            line.stop();
+            line.close();
+        }
+        return placements;
+    }
+
+    /**
+     * Called just after playback starts. Drops the audio captured before the start, plus the latency, so the
+     * next frame kept is the one where the first tick can be heard.
+     */
+    private void align(byte[] discard) {
+        int frameSize = line.getFormat().getFrameSize();
+        //frames already captured but not read yet. playback started at the end of them.
+        long startFrame = line.available() / frameSize;
+        long trim = startFrame + latencyFrames;
+        logger.info("track " + track + ": playback started " + startFrame + " frames into the take, trimming "
+                + trim + " frames");
+        long remaining = trim * frameSize;
+        while (remaining > 0) {
+            int count = line.read(discard, 0, (int) Math.min(remaining, discard.length));
+            if (count <= 0) {
+                break;
+            }
+            capturedFrames += count / frameSize;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * @return size in bytes to open a line with, for a line opened ahead of the first take
+     */
+    public static int lineBufferSize(AudioFormat format) {
+        return CHUNK_FRAMES * format.getFrameSize() * LINE_BUFFER_CHUNKS;
+    }
+
+    private static long toFrames(long micros, AudioFormat format) {
+        return Math.round(micros * (double) format.getFrameRate() / 1000000.0);
+    }
+
+    /**
+     * Capture exactly the given number of frames.
+     */
+    private void readFrames(AudioRingBuffer ring, byte[] discard, long frames) {
+        int frameSize = line.getFormat().getFrameSize();
+        long remaining = frames * frameSize;
+        while (remaining > 0) {
+            int count = read(ring, discard, (int) Math.min(remaining, ring.getSlotSize()), null);
+            if (count <= 0) {
+                //line was stopped or closed underneath us
+                break;
+            }
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Capture until the tail detector reports silence or the frame limit is reached.
+     * @return number of frames captured
+     */
+    private long readTail(AudioRingBuffer ring, byte[] discard, long maxFrames, TailDetector tail) {
+        int frameSize = line.getFormat().getFrameSize();
+        long remaining = maxFrames * frameSize;
+        while (remaining > 0 && !tail.isSilent()) {
+            int length = (int) Math.min(remaining, ring.getSlotSize());
+            int count = read(ring, discard, length, tail);
+            if (count <= 0) {
+                //line was stopped or closed underneath us
+                break;
+            }
+            remaining -= count;
+        }
+        return maxFrames - remaining / frameSize;
+    }
+
+    /**
+     * Blocking read of whole frames from the line into the next free ring slot.
+     * @param tail if not null the captured audio is also fed to this detector
+     * @return number of bytes read
+     */
+    private int read(AudioRingBuffer ring, byte[] discard, int length, TailDetector tail) {
+        //silence for chunks lost earlier goes in first, so this one lands where it was played
+        commitLost(ring);
+        byte[] slot = ring.claim();
+        byte[] target = slot != null ? slot : discard;
+        int fill = SessionMetrics.get().lineFill(line.available(), line.getBufferSize());
+        metrics.fill(fill);
+        //if there is no slot the writer is behind. the chunk is lost but the line keeps flowing, and it is made
+        //up with the same length of silence once the writer catches up.
+        int count = line.read(target, 0, length);
+        if (slot == null) {
+            metrics.overrun();
+            SessionMetrics.get().overrun();
+            if (count > 0) {
+                lostBytes += count;
+                metrics.lost(count / line.getFormat().getFrameSize());
+            }
+        }
+        if (count < length) {
+            metrics.shortRead();
+            SessionMetrics.get().shortRead();
+        }
+        if (tail != null && count > 0) {
+            tail.process(target, 0, count);
+        }
+        if (slot != null && count > 0) {
+            ring.commit(count);
+            keptFrames += count / line.getFormat().getFrameSize();
+        }
+        if (count > 0) {
+            capturedFrames += count / line.getFormat().getFrameSize();
+            metrics.captured(count);
+            SessionMetrics.get().captured(count);
+        }
+        return count;
+    }
+
+    /**
+     * Write as much of the silence owed for lost chunks as there are free slots for.
+     */
+    private void commitLost(AudioRingBuffer ring) {
+        if (lostBytes > 0) {
+            long owed = lostBytes;
+            lostBytes = ring.commitSilence(owed, silence);
+            keptFrames += (owed - lostBytes) / line.getFormat().getFrameSize();
+        }
+    }
+
+    /**
+     * Write the rest of the silence owed for lost chunks, waiting for the writer to free slots for it, so the
+     * stem or region is as long as what was played.
+     */
+    private void fillLost(AudioRingBuffer ring) {
+        commitLost(ring);
+        while (lostBytes > 0) {
+            LockSupport.parkNanos(1000000);
+            commitLost(ring);
         }
     }
+
+    /**
+     * @return the wav file the take is written to
+     */
+    public File getStem() {
+        return new File("./recording_" + track + ".wav");
+    }
+
+    /**
+     * @return why the last take failed, or null if it was recorded. A failed take's stem is incomplete.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when playback of the last take started, 0 if it never did
+     */
+    public long getPlayNanos() {
+        return playNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the last frame of the last take was captured
+     */
+    public long getCapturedNanos() {
+        return capturedNanos;
+    }
+
+    /**
+     * @return what happened during the take, also listed in {@link SessionMetrics}
+     */
+    public TakeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return frames read from the line in the last take, including any lost to overruns and replaced with
+     * silence. Excludes the generated pre-roll.
+     */
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
 }
@@ -0,0 +1,164 @@
+package com.skyefractal.audio;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single producer, single consumer ring of preallocated audio chunks. The capture thread claims a slot,
+ * reads the line straight into it and commits it. The writer thread takes committed slots, drains them to
+ * disk and releases them. Neither side locks or allocates once the buffer is built.
+ *
+ * If the writer falls behind and every slot is full the producer gets no slot back and should count the
+ * chunk as an overrun, and make it up with {@link #commitSilence(long, byte)} once slots are free again. The
+ * buffer keeps the overrun count and the high-water mark (most slots ever in use) so a long take can be shown to
+ * have been captured without gaps.
+ */
+public class AudioRingBuffer {
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final int mask;
+    private final int slotSize;
+
+    //next slot the consumer will take. only written by the consumer.
+    private final AtomicLong head = new AtomicLong();
+    //next slot the producer will fill. only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile Thread consumer;
+
+    //producer side statistics
+    private volatile long overruns = 0;
+    private volatile int highWaterMark = 0;
+
+    /**
+     * @param slotCount number of chunks the buffer can hold. Rounded up to a power of two.
+     * @param slotSize size of each chunk in bytes
+     */
+    public AudioRingBuffer(int slotCount, int slotSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+        this.slots = new byte[capacity][slotSize];
+        this.lengths = new int[capacity];
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Producer: get the next free slot to fill.
+     * @return the slot, or null if the consumer has not freed one yet (an overrun)
+     */
+    public byte[] claim() {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            overruns++;
+            return null;
+        }
+        return slots[(int) (t & mask)];
+    }
+
+    /**
+     * Producer: publish the slot returned by the last {@link #claim()}.
+     * @param length number of valid bytes in the slot
+     */
+    public void commit(int length) {
+        long t = tail.get();
+        lengths[(int) (t & mask)] = length;
+        //lazySet is enough to make the slot contents visible before the new tail
+        tail.lazySet(t + 1);
+        int used = (int) (t + 1 - head.get());
+        if (used > highWaterMark) {
+            highWaterMark = used;
+        }
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Producer: fill free slots with silence in place of chunks lost to overruns, so what is committed after
+     * them stays in time. Never counts an overrun itself.
+     * @param bytes silence owed, in whole frames
+     * @param fill the silent byte, see {@link WavWriter#silence(javax.sound.sampled.AudioFormat)}
+     * @return the bytes still owed once every slot is full
+     */
+    public long commitSilence(long bytes, byte fill) {
+        while (bytes > 0 && tail.get() - head.get() <= mask) {
+            int length = (int) Math.min(bytes, slotSize);
+            Arrays.fill(slots[(int) (tail.get() & mask)], 0, length, fill);
+            commit(length);
+            bytes -= length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Producer: no more chunks will be committed. The consumer drains whatever is left and then stops.
+     */
+    public void close() {
+        closed = true;
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    /**
+     * Consumer: wait for the next committed slot. Call {@link #length()} for its size and
+     * {@link #release()} when finished with it.
+     * @return the slot, or null once the buffer is closed and empty
+     */
+    public byte[] take() {
+        consumer = Thread.currentThread();
+        long h = head.get();
+        while (tail.get() == h) {
+            if (closed) {
+                //check again- a commit may have landed just before close
+                if (tail.get() == h) {
+                    return null;
+                }
+                break;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        return slots[(int) (h & mask)];
+    }
+
+    /**
+     * @return number of valid bytes in the slot returned by the last {@link #take()}
+     */
+    public int length() {
+        return lengths[(int) (head.get() & mask)];
+    }
+
+    /**
+     * Consumer: hand the slot returned by the last {@link #take()} back to the producer.
+     */
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * @return number of chunks the producer could not store because the buffer was full
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * @return the largest number of slots that were ever waiting to be written
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
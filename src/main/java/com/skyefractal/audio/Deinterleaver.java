@@ -0,0 +1,110 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Pulls groups of channels (a mono input, a stereo pair, ...) out of interleaved multichannel audio. The byte
+ * layout of every group is worked out up front, so splitting a buffer is a plain copy loop with no allocation
+ * and no per sample arithmetic beyond an index lookup.
+ */
+public class Deinterleaver {
+
+    private final AudioFormat source;
+    private final int frameSize;
+    //for each group, the byte offset in a source frame of each byte of an output frame
+    private final int[][] offsets;
+    private final AudioFormat[] formats;
+
+    /**
+     * @param source format of the interleaved audio
+     * @param groups source channel indexes (from 0) for each output, i.e. {{0, 1}, {2, 3}, {4}}
+     */
+    public Deinterleaver(AudioFormat source, int[][] groups) {
+        this.source = source;
+        this.frameSize = source.getFrameSize();
+        int sampleBytes = source.getSampleSizeInBits() / 8;
+        offsets = new int[groups.length][];
+        formats = new AudioFormat[groups.length];
+        for (int g = 0; g < groups.length; g++) {
+            if (groups[g].length == 0) {
+                throw new IllegalArgumentException("channel group " + g + " is empty");
+            }
+            offsets[g] = new int[groups[g].length * sampleBytes];
+            for (int c = 0; c < groups[g].length; c++) {
+                int channel = groups[g][c];
+                if (channel < 0 || channel >= source.getChannels()) {
+                    throw new IllegalArgumentException("channel " + channel + " is not in " + source);
+                }
+                for (int b = 0; b < sampleBytes; b++) {
+                    offsets[g][c * sampleBytes + b] = channel * sampleBytes + b;
+                }
+            }
+            formats[g] = new AudioFormat(source.getEncoding(), source.getSampleRate(), source.getSampleSizeInBits(),
+                    groups[g].length, groups[g].length * sampleBytes, source.getFrameRate(), source.isBigEndian());
+        }
+    }
+
+    /**
+     * @return number of outputs
+     */
+    public int getGroups() {
+        return offsets.length;
+    }
+
+    public AudioFormat getSourceFormat() {
+        return source;
+    }
+
+    /**
+     * @return format of one output
+     */
+    public AudioFormat getFormat(int group) {
+        return formats[group];
+    }
+
+    /**
+     * Split interleaved audio into the outputs.
+     * @param data interleaved audio
+     * @param offset where the audio starts in data
+     * @param length bytes of audio. Any partial frame at the end is ignored.
+     * @param outputs one buffer per group, each big enough for the frames being split. A null output is skipped.
+     * @return number of frames split
+     */
+    public int split(byte[] data, int offset, int length, byte[][] outputs) {
+        int frames = length / frameSize;
+        for (int g = 0; g < offsets.length; g++) {
+            byte[] out = outputs[g];
+            if (out == null) {
+                continue;
+            }
+            int[] map = offsets[g];
+            int at = 0;
+            for (int f = offset, end = offset + frames * frameSize; f < end; f += frameSize) {
+                for (int b = 0; b < map.length; b++) {
+                    out[at++] = data[f + map[b]];
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Parse channel groups given on the command line as comma separated channel numbers or ranges counting
+     * from 1, i.e. "1-2,3-4,5" for two stereo pairs and a mono input.
+     * @return channel indexes counting from 0
+     */
+    public static int[][] parseGroups(String groups) {
+        String[] parts = groups.split(",");
+        int[][] parsed = new int[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            String[] bounds = parts[i].trim().split("-");
+            int low = Integer.parseInt(bounds[0].trim());
+            int high = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : low;
+            parsed[i] = new int[high - low + 1];
+            for (int c = low; c <= high; c++) {
+                parsed[i][c - low] = c - 1;
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,496 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Decodes FLAC files back to PCM, mainly to check what {@link FlacEncoder} wrote. It handles fixed block size
+ * streams of 8 to 24 bit audio with constant, verbatim, fixed and LPC subframes and checks every frame's CRCs
+ * as it goes.
+ */
+public class FlacDecoder implements Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final BitReader in;
+    private final AudioFormat format;
+    private final int channels;
+    private final int bits;
+    private final long totalFrames;
+    private final byte[] md5 = new byte[16];
+    private int maxBlockSize;
+    private int[][] samples;
+    private long[] residual;
+
+    /**
+     * Open a file and read its STREAMINFO.
+     * @throws IOException if it is not a flac file
+     */
+    public FlacDecoder(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too long to map");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in = new BitReader(data);
+            if (in.read(32) != 0x664C6143) {
+                throw new IOException(file + " is not a flac file");
+            }
+            int rate = 0;
+            int channelCount = 0;
+            int sampleBits = 0;
+            long frames = 0;
+            boolean last = false;
+            while (!last) {
+                last = in.read(1) == 1;
+                int type = (int) in.read(7);
+                int length = (int) in.read(24);
+                if (type == 0) {
+                    in.read(16);
+                    maxBlockSize = (int) in.read(16);
+                    in.read(24);
+                    in.read(24);
+                    rate = (int) in.read(20);
+                    channelCount = (int) in.read(3) + 1;
+                    sampleBits = (int) in.read(5) + 1;
+                    frames = (in.read(4) << 32) | in.read(32);
+                    for (int i = 0; i < md5.length; i++) {
+                        md5[i] = (byte) in.read(8);
+                    }
+                }
+                else {
+                    in.skipBytes(length);
+                }
+            }
+            if (rate == 0) {
+                throw new IOException(file + " has no STREAMINFO");
+            }
+            this.channels = channelCount;
+            this.bits = sampleBits;
+            this.totalFrames = frames;
+            this.format = new AudioFormat(rate, bits, channels, bits > 8, false);
+            this.samples = new int[channels][maxBlockSize];
+            this.residual = new long[maxBlockSize];
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return format of the decoded audio, little endian PCM
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * @return the most frames in any block, so a buffer for {@link #read(ByteBuffer)} needs this many frames
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * @return MD5 of the unencoded audio as stored in the STREAMINFO block
+     */
+    public byte[] getMd5() {
+        return md5.clone();
+    }
+
+    /**
+     * Decode the next frame.
+     * @param out filled with interleaved little endian samples. Must hold a whole block.
+     * @return number of bytes decoded, or -1 at the end of the stream
+     * @throws IOException if the frame is damaged
+     */
+    public int read(ByteBuffer out) throws IOException {
+        if (in.remainingBytes() == 0) {
+            return -1;
+        }
+        int start = in.bytePosition();
+        if (in.read(14) != 0x3FFE) {
+            throw new IOException(file + ": lost frame sync at byte " + start);
+        }
+        in.read(2);
+        int sizeCode = (int) in.read(4);
+        int rateCode = (int) in.read(4);
+        int assignment = (int) in.read(4);
+        in.read(3);
+        in.read(1);
+        skipUtf8();
+        int count;
+        if (sizeCode == 1) {
+            count = 192;
+        }
+        else if (sizeCode >= 2 && sizeCode <= 5) {
+            count = 576 << (sizeCode - 2);
+        }
+        else if (sizeCode == 6) {
+            count = (int) in.read(8) + 1;
+        }
+        else if (sizeCode == 7) {
+            count = (int) in.read(16) + 1;
+        }
+        else if (sizeCode >= 8) {
+            count = 256 << (sizeCode - 8);
+        }
+        else {
+            throw new IOException(file + ": reserved block size at byte " + start);
+        }
+        if (rateCode == 12) {
+            in.read(8);
+        }
+        else if (rateCode == 13 || rateCode == 14) {
+            in.read(16);
+        }
+        int headerEnd = in.bytePosition();
+        if (in.read(8) != FlacEncoder.crc8(in.bytes(start, headerEnd - start), 0, headerEnd - start)) {
+            throw new IOException(file + ": bad frame header crc at byte " + start);
+        }
+        if (count > samples[0].length) {
+            samples = new int[channels][count];
+            residual = new long[count];
+        }
+        for (int c = 0; c < channels; c++) {
+            //the side channel has one extra bit
+            boolean isSide = (assignment == 8 && c == 1) || (assignment == 9 && c == 0)
+                    || (assignment == 10 && c == 1);
+            decodeSubframe(samples[c], count, bits + (isSide ? 1 : 0));
+        }
+        in.alignToByte();
+        int frameEnd = in.bytePosition();
+        if (in.read(16) != FlacEncoder.crc16(in.bytes(start, frameEnd - start), 0, frameEnd - start)) {
+            throw new IOException(file + ": bad frame crc at byte " + start);
+        }
+        decorrelate(assignment, count);
+
+        int sampleBytes = (bits + 7) / 8;
+        int length = count * channels * sampleBytes;
+        if (out.remaining() < length) {
+            throw new IllegalArgumentException("need room for " + length + " bytes");
+        }
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < channels; c++) {
+                int sample = samples[c][i];
+                //8 bit wav is unsigned
+                if (bits <= 8) {
+                    sample += 128;
+                }
+                for (int b = 0; b < sampleBytes; b++) {
+                    out.put((byte) (sample >> (8 * b)));
+                }
+            }
+        }
+        return length;
+    }
+
+    private void decorrelate(int assignment, int count) {
+        int[] a = samples[0];
+        int[] b = channels > 1 ? samples[1] : null;
+        switch (assignment) {
+            case 8:
+                //left, side
+                for (int i = 0; i < count; i++) {
+                    b[i] = a[i] - b[i];
+                }
+                break;
+            case 9:
+                //side, right
+                for (int i = 0; i < count; i++) {
+                    a[i] += b[i];
+                }
+                break;
+            case 10:
+                //mid, side
+                for (int i = 0; i < count; i++) {
+                    int side = b[i];
+                    int mid = (a[i] << 1) | (side & 1);
+                    a[i] = (mid + side) >> 1;
+                    b[i] = (mid - side) >> 1;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void decodeSubframe(int[] x, int count, int sampleBits) throws IOException {
+        in.read(1);
+        int type = (int) in.read(6);
+        int wasted = 0;
+        if (in.read(1) == 1) {
+            wasted = (int) in.readUnary() + 1;
+            sampleBits -= wasted;
+        }
+        if (type == 0) {
+            Arrays.fill(x, 0, count, in.readSigned(sampleBits));
+        }
+        else if (type == 1) {
+            for (int i = 0; i < count; i++) {
+                x[i] = in.readSigned(sampleBits);
+            }
+        }
+        else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[i] = in.readSigned(sampleBits);
+            }
+            readResidual(count, order);
+            for (int i = order; i < count; i++) {
+                long r = residual[i];
+                switch (order) {
+                    case 0:
+                        x[i] = (int) r;
+                        break;
+                    case 1:
+                        x[i] = (int) (r + x[i - 1]);
+                        break;
+                    case 2:
+                        x[i] = (int) (r + 2L * x[i - 1] - x[i - 2]);
+                        break;
+                    case 3:
+                        x[i] = (int) (r + 3L * x[i - 1] - 3L * x[i - 2] + x[i - 3]);
+                        break;
+                    default:
+                        x[i] = (int) (r + 4L * x[i - 1] - 6L * x[i - 2] + 4L * x[i - 3] - x[i - 4]);
+                }
+            }
+        }
+        else if (type >= 32) {
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                x[i] = in.readSigned(sampleBits);
+            }
+            int precision = (int) in.read(4) + 1;
+            int shift = in.readSigned(5);
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = in.readSigned(precision);
+            }
+            readResidual(count, order);
+            for (int i = order; i < count; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - j - 1];
+                }
+                x[i] = (int) (residual[i] + (sum >> shift));
+            }
+        }
+        else {
+            throw new IOException(file + ": reserved subframe type " + type);
+        }
+        if (wasted > 0) {
+            for (int i = 0; i < count; i++) {
+                x[i] <<= wasted;
+            }
+        }
+    }
+
+    private void readResidual(int count, int order) throws IOException {
+        int method = (int) in.read(2);
+        if (method > 1) {
+            throw new IOException(file + ": reserved residual coding method " + method);
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = (int) in.read(4);
+        int partitions = 1 << partitionOrder;
+        int i = order;
+        for (int part = 0; part < partitions; part++) {
+            int end = (part + 1) * (count >> partitionOrder);
+            int k = (int) in.read(parameterBits);
+            if (k == escape) {
+                int rawBits = (int) in.read(5);
+                for (; i < end; i++) {
+                    residual[i] = rawBits == 0 ? 0 : in.readSigned(rawBits);
+                }
+            }
+            else {
+                for (; i < end; i++) {
+                    long folded = (in.readUnary() << k) | in.read(k);
+                    residual[i] = (folded >>> 1) ^ -(folded & 1);
+                }
+            }
+        }
+    }
+
+    private void skipUtf8() throws IOException {
+        int first = (int) in.read(8);
+        int extra = 0;
+        while ((first & (0x80 >> extra)) != 0) {
+            extra++;
+        }
+        for (int i = 1; i < extra; i++) {
+            in.read(8);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Decode a flac file and check it matches a wav sample for sample, and that both match the MD5 the
+     * encoder stored.
+     * @param flac the compressed file
+     * @param wav the original
+     * @return true if they hold the same audio
+     * @throws IOException if either file cannot be read or the flac is damaged
+     */
+    public static boolean verify(File flac, File wav) throws IOException {
+        try (FlacDecoder decoder = new FlacDecoder(flac);
+             FileChannel original = FileChannel.open(wav.toPath(), StandardOpenOption.READ)) {
+            WavInfo info = WavInfo.read(original, wav);
+            AudioFormat format = info.getFormat();
+            if (format.getChannels() != decoder.channels || format.getSampleSizeInBits() != decoder.bits
+                    || format.getSampleRate() != decoder.format.getSampleRate()
+                    || info.getFrames() != decoder.totalFrames) {
+                return false;
+            }
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            ByteBuffer decoded = ByteBuffer.allocate(decoder.maxBlockSize * format.getFrameSize());
+            ByteBuffer expected = ByteBuffer.allocate(decoded.capacity());
+            long position = info.getDataOffset();
+            long end = position + info.getDataLength();
+            int count;
+            while (true) {
+                decoded.clear();
+                count = decoder.read(decoded);
+                if (count < 0) {
+                    break;
+                }
+                if (position + count > end) {
+                    return false;
+                }
+                expected.clear();
+                expected.limit(count);
+                while (expected.hasRemaining()) {
+                    if (original.read(expected, position + expected.position()) < 0) {
+                        return false;
+                    }
+                }
+                position += count;
+                decoded.flip();
+                expected.flip();
+                if (!decoded.equals(expected)) {
+                    return false;
+                }
+                md5.update(expected.array(), 0, count);
+            }
+            return position == end && Arrays.equals(md5.digest(), decoder.md5);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Big endian bit reader over the whole file.
+     */
+    private static class BitReader {
+        private final ByteBuffer data;
+        private int position = 0;
+        private long cache = 0;
+        private int cacheBits = 0;
+
+        BitReader(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private void fill(int needed) throws IOException {
+            while (cacheBits < needed) {
+                if (position >= data.limit()) {
+                    throw new IOException("unexpected end of flac stream");
+                }
+                cache = (cache << 8) | (data.get(position++) & 0xFF);
+                cacheBits += 8;
+            }
+        }
+
+        /**
+         * @param count 0 to 32 bits
+         */
+        long read(int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            fill(count);
+            cacheBits -= count;
+            return (cache >>> cacheBits) & ((1L << count) - 1);
+        }
+
+        int readSigned(int count) throws IOException {
+            long value = read(count);
+            //sign extend from the top bit read
+            return (int) (value << (64 - count) >> (64 - count));
+        }
+
+        /**
+         * @return number of zeros before the next one
+         */
+        long readUnary() throws IOException {
+            long zeros = 0;
+            while (true) {
+                fill(1);
+                long bits = cache & ((1L << cacheBits) - 1);
+                if (bits == 0) {
+                    zeros += cacheBits;
+                    cacheBits = 0;
+                    continue;
+                }
+                int leading = Long.numberOfLeadingZeros(bits) - (64 - cacheBits);
+                zeros += leading;
+                cacheBits -= leading + 1;
+                return zeros;
+            }
+        }
+
+        void alignToByte() {
+            cacheBits -= cacheBits % 8;
+        }
+
+        /**
+         * @return position of the next unread byte. Only meaningful when byte aligned.
+         */
+        int bytePosition() {
+            return position - cacheBits / 8;
+        }
+
+        int remainingBytes() {
+            return data.limit() - bytePosition();
+        }
+
+        void skipBytes(int count) {
+            int buffered = cacheBits / 8;
+            int fromCache = Math.min(count, buffered);
+            cacheBits -= fromCache * 8;
+            position += count - fromCache;
+        }
+
+        byte[] bytes(int start, int length) {
+            byte[] copy = new byte[length];
+            for (int i = 0; i < length; i++) {
+                copy[i] = data.get(start + i);
+            }
+            return copy;
+        }
+    }
+}
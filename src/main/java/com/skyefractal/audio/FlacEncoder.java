@@ -0,0 +1,532 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Encodes a wav file as FLAC. Each block of samples tries the four ways of coding a stereo pair (left/right,
+ * left/side, side/right and mid/side) and the fixed polynomial predictors of order 0 to 4 on each channel, and
+ * keeps whichever leaves the smallest residual. Residuals are Rice coded with the partition order and Rice
+ * parameters picked per block. There is no LPC, which costs a few percent against the reference encoder but
+ * keeps encoding cheap enough to run alongside a recording.
+ *
+ * The wav is read one block at a time and the STREAMINFO block (sample count, frame sizes, MD5) is patched in at
+ * the end, so memory use does not depend on the length of the stem.
+ */
+public class FlacEncoder {
+
+    static final int BLOCK_SIZE = 4096;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    //"fLaC", the metadata block header and STREAMINFO
+    static final int HEADER_SIZE = 4 + 4 + 34;
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int bits;
+    private final int sampleBytes;
+    //[channel][sample] for the block being encoded, plus the side and mid channels for stereo
+    private final int[][] samples;
+    private final int[] side = new int[BLOCK_SIZE];
+    private final int[] mid = new int[BLOCK_SIZE];
+    private final int[] residual = new int[BLOCK_SIZE];
+    private final BitWriter frame = new BitWriter(BLOCK_SIZE * 8);
+    private long frameNumber = 0;
+    private int minFrameSize = Integer.MAX_VALUE;
+    private int maxFrameSize = 0;
+
+    /**
+     * @param format signed little endian 16 or 24 bit PCM, 1 to 8 channels
+     */
+    public FlacEncoder(AudioFormat format) {
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.isBigEndian()
+                || (format.getSampleSizeInBits() != 16 && format.getSampleSizeInBits() != 24)
+                || format.getChannels() < 1 || format.getChannels() > 8) {
+            throw new IllegalArgumentException("can only encode 16 or 24 bit little endian PCM: " + format);
+        }
+        this.format = format;
+        this.channels = format.getChannels();
+        this.bits = format.getSampleSizeInBits();
+        this.sampleBytes = bits / 8;
+        this.samples = new int[channels][BLOCK_SIZE];
+    }
+
+    /**
+     * Compress a wav file.
+     * @param wav the wav to read
+     * @param flac the flac file to create or overwrite
+     * @return size of the flac file in bytes
+     * @throws IOException if either file cannot be read or written
+     */
+    public static long encode(File wav, File flac) throws IOException {
+        try (FileChannel in = FileChannel.open(wav.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(flac.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            WavInfo info = WavInfo.read(in, wav);
+            return new FlacEncoder(info.getFormat()).encode(in, info.getDataOffset(), info.getDataLength(), out);
+        }
+    }
+
+    /**
+     * @param in channel holding the audio
+     * @param offset position of the audio in the channel
+     * @param length bytes of audio, whole frames
+     * @param out where to write the flac stream, from position 0
+     * @return bytes written
+     */
+    long encode(FileChannel in, long offset, long length, FileChannel out) throws IOException {
+        MessageDigest md5 = md5();
+        int frameSize = format.getFrameSize();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE * frameSize);
+        //placeholder header, patched once the totals are known
+        writeFully(out, streamInfo(0, new byte[16]), 0);
+        long written = HEADER_SIZE;
+        long read = 0;
+        while (read < length) {
+            block.clear();
+            block.limit((int) Math.min(block.capacity(), length - read));
+            while (block.hasRemaining()) {
+                if (in.read(block, offset + read + block.position()) < 0) {
+                    throw new IOException("wav ended " + (length - read - block.position()) + " bytes early");
+                }
+            }
+            read += block.limit();
+            md5.update(block.array(), 0, block.limit());
+            int count = block.limit() / frameSize;
+            byte[] data = block.array();
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < channels; c++) {
+                    samples[c][i] = AudioHelp.sampleAt(data, i * frameSize + c * sampleBytes, sampleBytes);
+                }
+            }
+            encodeFrame(count);
+            ByteBuffer encoded = ByteBuffer.wrap(frame.bytes(), 0, frame.size());
+            writeFully(out, encoded, written);
+            written += frame.size();
+            minFrameSize = Math.min(minFrameSize, frame.size());
+            maxFrameSize = Math.max(maxFrameSize, frame.size());
+        }
+        writeFully(out, streamInfo(length / frameSize, md5.digest()), 0);
+        return written;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            //every JRE has to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += out.write(data, position);
+        }
+    }
+
+    private ByteBuffer streamInfo(long totalSamples, byte[] md5) {
+        BitWriter header = new BitWriter(HEADER_SIZE);
+        header.write(0x664C6143, 32);
+        //last metadata block, type 0 (STREAMINFO), 34 bytes long
+        header.write(1, 1);
+        header.write(0, 7);
+        header.write(34, 24);
+        header.write(BLOCK_SIZE, 16);
+        header.write(BLOCK_SIZE, 16);
+        header.write(minFrameSize == Integer.MAX_VALUE ? 0 : minFrameSize, 24);
+        header.write(maxFrameSize, 24);
+        header.write((int) format.getSampleRate(), 20);
+        header.write(channels - 1, 3);
+        header.write(bits - 1, 5);
+        header.write(totalSamples >>> 32, 4);
+        header.write(totalSamples, 32);
+        for (byte b : md5) {
+            header.write(b, 8);
+        }
+        return ByteBuffer.wrap(header.bytes(), 0, header.size());
+    }
+
+    private void encodeFrame(int count) {
+        frame.reset();
+        //sync code, reserved bit and fixed block size strategy
+        frame.write(0x3FFE, 14);
+        frame.write(0, 2);
+        int sizeCode = count == BLOCK_SIZE ? 12 : 7;
+        frame.write(sizeCode, 4);
+        int rateCode = rateCode((int) format.getSampleRate());
+        frame.write(rateCode, 4);
+        int assignment = channels == 2 ? chooseStereo(count) : channels - 1;
+        frame.write(assignment, 4);
+        frame.write(bits == 16 ? 4 : 6, 3);
+        frame.write(0, 1);
+        writeUtf8(frameNumber++);
+        if (sizeCode == 7) {
+            frame.write(count - 1, 16);
+        }
+        if (rateCode == 13) {
+            frame.write((int) format.getSampleRate(), 16);
+        }
+        frame.write(crc8(frame.bytes(), 0, frame.size()), 8);
+
+        switch (assignment) {
+            case 8:
+                encodeSubframe(samples[0], count, bits);
+                encodeSubframe(side, count, bits + 1);
+                break;
+            case 9:
+                encodeSubframe(side, count, bits + 1);
+                encodeSubframe(samples[1], count, bits);
+                break;
+            case 10:
+                encodeSubframe(mid, count, bits);
+                encodeSubframe(side, count, bits + 1);
+                break;
+            default:
+                for (int c = 0; c < channels; c++) {
+                    encodeSubframe(samples[c], count, bits);
+                }
+        }
+        frame.alignToByte();
+        frame.write(crc16(frame.bytes(), 0, frame.size()), 16);
+    }
+
+    private static int rateCode(int rate) {
+        switch (rate) {
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                //13 = rate in Hz at the end of the header, 0 = see STREAMINFO
+                return rate <= 0xFFFF ? 13 : 0;
+        }
+    }
+
+    /**
+     * Pick the channel assignment for a stereo block by estimating how well each channel predicts.
+     * @return 1 for left/right, 8 for left/side, 9 for side/right, 10 for mid/side
+     */
+    private int chooseStereo(int count) {
+        int[] left = samples[0];
+        int[] right = samples[1];
+        for (int i = 0; i < count; i++) {
+            side[i] = left[i] - right[i];
+            mid[i] = (left[i] + right[i]) >> 1;
+        }
+        long l = bestFixedCost(left, count);
+        long r = bestFixedCost(right, count);
+        long s = bestFixedCost(side, count);
+        long m = bestFixedCost(mid, count);
+        long[] costs = {l + r, l + s, s + r, m + s};
+        int[] codes = {1, 8, 9, 10};
+        int best = 0;
+        for (int i = 1; i < costs.length; i++) {
+            if (costs[i] < costs[best]) {
+                best = i;
+            }
+        }
+        return codes[best];
+    }
+
+    /**
+     * @return sum of the absolute residuals of the best fixed predictor, a stand in for its coded size
+     */
+    private static long bestFixedCost(int[] x, int count) {
+        long best = Long.MAX_VALUE;
+        for (int order = 0; order <= Math.min(MAX_FIXED_ORDER, count - 1); order++) {
+            best = Math.min(best, fixedCost(x, count, order));
+        }
+        return best;
+    }
+
+    private static long fixedCost(int[] x, int count, int order) {
+        long sum = 0;
+        for (int i = order; i < count; i++) {
+            sum += Math.abs((long) predictResidual(x, i, order));
+        }
+        return sum;
+    }
+
+    private static int predictResidual(int[] x, int i, int order) {
+        switch (order) {
+            case 0:
+                return x[i];
+            case 1:
+                return x[i] - x[i - 1];
+            case 2:
+                return x[i] - 2 * x[i - 1] + x[i - 2];
+            case 3:
+                return x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            default:
+                return x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+        }
+    }
+
+    private void encodeSubframe(int[] x, int count, int sampleBits) {
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            frame.write(0, 8);
+            frame.write(x[0], sampleBits);
+            return;
+        }
+        int order = 0;
+        long best = Long.MAX_VALUE;
+        for (int o = 0; o <= Math.min(MAX_FIXED_ORDER, count - 1); o++) {
+            long cost = fixedCost(x, count, o);
+            if (cost < best) {
+                best = cost;
+                order = o;
+            }
+        }
+        for (int i = order; i < count; i++) {
+            residual[i] = predictResidual(x, i, order);
+        }
+        int[] partition = new int[1];
+        long residualBits = bestPartitioning(count, order, partition);
+        long fixedBits = 8 + (long) order * sampleBits + residualBits;
+        if (fixedBits >= 8 + (long) count * sampleBits) {
+            //noise: the residual would be bigger than the samples
+            frame.write(1 << 1, 8);
+            for (int i = 0; i < count; i++) {
+                frame.write(x[i], sampleBits);
+            }
+            return;
+        }
+        frame.write((8 | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            frame.write(x[i], sampleBits);
+        }
+        writeResidual(count, order, partition[0]);
+    }
+
+    /**
+     * Estimate the coded size of the residual at every partition order.
+     * @param chosen set to the cheapest partition order
+     * @return estimated size in bits at that order
+     */
+    private long bestPartitioning(int count, int order, int[] chosen) {
+        long best = Long.MAX_VALUE;
+        for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+            int partitions = 1 << p;
+            if (count % partitions != 0 || (count >> p) <= order) {
+                break;
+            }
+            long total = 6;
+            int start = order;
+            for (int part = 0; part < partitions; part++) {
+                int end = (part + 1) * (count >> p);
+                long sum = foldedSum(start, end);
+                int n = end - start;
+                total += 4 + riceBits(n, sum, riceParameter(n, sum));
+                start = end;
+            }
+            if (total < best) {
+                best = total;
+                chosen[0] = p;
+            }
+        }
+        return best;
+    }
+
+    private long foldedSum(int start, int end) {
+        long sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += fold(residual[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Map signed to unsigned so small negative values stay small: 0, -1, 1, -2... become 0, 1, 2, 3...
+     */
+    private static long fold(int value) {
+        long v = value;
+        return (v << 1) ^ (v >> 63);
+    }
+
+    /**
+     * @return the Rice parameter that best fits n values adding up to sum once folded
+     */
+    private static int riceParameter(int n, long sum) {
+        int k = 0;
+        while (k < 30 && ((long) n << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private static long riceBits(int n, long sum, int k) {
+        return (long) n * (k + 1) + (sum >> k);
+    }
+
+    private void writeResidual(int count, int order, int partitionOrder) {
+        int partitions = 1 << partitionOrder;
+        int[] parameters = new int[partitions];
+        int maxParameter = 0;
+        int start = order;
+        for (int part = 0; part < partitions; part++) {
+            int end = (part + 1) * (count >> partitionOrder);
+            parameters[part] = riceParameter(end - start, foldedSum(start, end));
+            maxParameter = Math.max(maxParameter, parameters[part]);
+            start = end;
+        }
+        //method 0 has 4 bit parameters (15 is reserved), method 1 has 5 bits
+        int parameterBits = maxParameter < 15 ? 4 : 5;
+        frame.write(parameterBits == 4 ? 0 : 1, 2);
+        frame.write(partitionOrder, 4);
+        start = order;
+        for (int part = 0; part < partitions; part++) {
+            int end = (part + 1) * (count >> partitionOrder);
+            int k = parameters[part];
+            frame.write(k, parameterBits);
+            for (int i = start; i < end; i++) {
+                long folded = fold(residual[i]);
+                frame.writeUnary(folded >>> k);
+                frame.write(folded, k);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Frame numbers use the same variable length coding as UTF-8.
+     */
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            frame.write(value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (value >= (1L << (5 * bytes + 1))) {
+            bytes++;
+        }
+        int shift = 6 * (bytes - 1);
+        frame.write(((0xFF << (8 - bytes)) & 0xFF) | (value >>> shift), 8);
+        for (shift -= 6; shift >= 0; shift -= 6) {
+            frame.write(0x80 | ((value >>> shift) & 0x3F), 8);
+        }
+    }
+
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xFF;
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    /**
+     * CRC-8 with polynomial x^8 + x^2 + x + 1, used for frame headers.
+     */
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * CRC-16 with polynomial x^16 + x^15 + x^2 + 1, used for whole frames.
+     */
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC16[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Big endian bit packer for one frame.
+     */
+    static class BitWriter {
+        private byte[] buffer;
+        private int size = 0;
+        private long cache = 0;
+        private int cacheBits = 0;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        /**
+         * Write the low bits of a value, most significant first.
+         * @param bitCount 0 to 32
+         */
+        void write(long value, int bitCount) {
+            if (bitCount == 0) {
+                return;
+            }
+            cache = (cache << bitCount) | (value & ((1L << bitCount) - 1));
+            cacheBits += bitCount;
+            while (cacheBits >= 8) {
+                cacheBits -= 8;
+                put((int) (cache >>> cacheBits));
+            }
+        }
+
+        /**
+         * Write value zeros and then a one.
+         */
+        void writeUnary(long value) {
+            while (value >= 32) {
+                write(0, 32);
+                value -= 32;
+            }
+            write(1, (int) value + 1);
+        }
+
+        void alignToByte() {
+            if (cacheBits > 0) {
+                write(0, 8 - cacheBits);
+            }
+        }
+
+        private void put(int b) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        void reset() {
+            size = 0;
+            cache = 0;
+            cacheBits = 0;
+        }
+
+        byte[] bytes() {
+            return buffer;
+        }
+
+        /**
+         * @return number of whole bytes written
+         */
+        int size() {
+            return size;
+        }
+    }
+}
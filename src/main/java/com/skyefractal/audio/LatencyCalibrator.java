@@ -0,0 +1,213 @@
+package com.skyefractal.audio;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Measures how long it takes from sending a note to hearing it: MIDI interface, synth attack and the audio
+ * converters all together. A short test note is sent a few times and each time the first captured sample above
+ * the noise floor is found. The answer is the median, in frames.
+ *
+ * The frame a note is sent at is taken as the frames read so far plus the frames waiting in the line's buffer,
+ * which is how {@link AudioRecorder} marks the start of playback too, so any error in that estimate cancels
+ * out when takes are trimmed.
+ */
+public class LatencyCalibrator {
+
+    private static final Logger logger = LogManager.getLogger(LatencyCalibrator.class);
+    public static final int DEFAULT_NOTE = 72;
+    private static final int PINGS = 5;
+    private static final int VELOCITY = 110;
+    //quiet time measured before each ping, and how long to listen for it
+    private static final int FLOOR_MILLIS = 100;
+    private static final int LISTEN_MILLIS = 500;
+    //and how long the note is left to die away after
+    private static final int RELEASE_MILLIS = 300;
+    //the onset has to be this far above the noise floor, and never below -50dBFS
+    private static final double FLOOR_HEADROOM = 4.0;
+    private static final double MIN_THRESHOLD_DB = -50.0;
+
+    private final TargetDataLine line;
+    private final AudioFormat format;
+    private final int[] channels;
+    private final int sampleBytes;
+    private final byte[] buffer;
+    private long readFrames = 0;
+    private int note = DEFAULT_NOTE;
+    private int midiChannel = 0;
+
+    /**
+     * @param line the line the synth is recorded on, not yet open
+     * @param format format to open it with, 16 or 24 bit signed little endian
+     * @param channels the line channels (from 0) the synth is heard on
+     */
+    public LatencyCalibrator(TargetDataLine line, AudioFormat format, int[] channels) {
+        this.line = line;
+        this.format = format;
+        this.channels = channels;
+        this.sampleBytes = format.getSampleSizeInBits() / 8;
+        //about 5ms per read keeps the onset search fine grained without spinning
+        this.buffer = new byte[Math.max(1, (int) (format.getFrameRate() / 200)) * format.getFrameSize()];
+    }
+
+    /**
+     * @param note the note to test with. Pick one the synth sounds clearly on.
+     */
+    public void setNote(int note) {
+        this.note = note;
+    }
+
+    /**
+     * @param midiChannel MIDI channel (from 0) the synth listens on
+     */
+    public void setMidiChannel(int midiChannel) {
+        this.midiChannel = midiChannel;
+    }
+
+    /**
+     * Ping the synth and time the round trip.
+     * @param receiver where the synth listens
+     * @return median latency in frames, or -1 if the test note was never heard
+     * @throws LineUnavailableException if the line cannot be opened
+     */
+    public long measure(Receiver receiver) throws LineUnavailableException {
+        boolean wasOpen = line.isOpen();
+        if (!wasOpen) {
+            line.open(format, buffer.length * 16);
+        }
+        line.flush();
+        line.start();
+        readFrames = 0;
+        long[] latencies = new long[PINGS];
+        int heard = 0;
+        try {
+            for (int i = 0; i < PINGS; i++) {
+                long latency = ping(receiver);
+                if (latency >= 0) {
+                    latencies[heard++] = latency;
+                }
+            }
+        }
+        finally {
+            line.stop();
+            if (!wasOpen) {
+                line.close();
+            }
+        }
+        if (heard == 0) {
+            logger.warn("calibration note was never heard, check the synth is plugged in and turned up");
+            return -1;
+        }
+        long[] found = Arrays.copyOf(latencies, heard);
+        Arrays.sort(found);
+        long median = found[heard / 2];
+        logger.info(String.format("midi to audio latency %d frames (%.2f ms), %d of %d pings heard, spread %d frames",
+                median, median * 1000.0 / format.getFrameRate(), heard, PINGS, found[heard - 1] - found[0]));
+        return median;
+    }
+
+    /**
+     * @return latency of one test note in frames, or -1 if it was not heard
+     */
+    private long ping(Receiver receiver) {
+        int floor = 0;
+        long floorFrames = millisToFrames(FLOOR_MILLIS);
+        long until = readFrames + floorFrames;
+        while (readFrames < until) {
+            int frames = read();
+            if (frames <= 0) {
+                return -1;
+            }
+            floor = Math.max(floor, peak(frames));
+        }
+        double fullScale = (1L << (format.getSampleSizeInBits() - 1)) - 1;
+        int threshold = (int) Math.max(floor * FLOOR_HEADROOM, fullScale * Math.pow(10, MIN_THRESHOLD_DB / 20));
+
+        long sentAt = readFrames + line.available() / format.getFrameSize();
+        send(receiver, ShortMessage.NOTE_ON, VELOCITY);
+        long onset = -1;
+        until = readFrames + millisToFrames(LISTEN_MILLIS);
+        while (onset < 0 && readFrames < until) {
+            long start = readFrames;
+            int frames = read();
+            if (frames <= 0) {
+                break;
+            }
+            int at = onset(frames, threshold);
+            if (at >= 0) {
+                onset = start + at;
+            }
+        }
+        send(receiver, ShortMessage.NOTE_OFF, 0);
+        until = readFrames + millisToFrames(RELEASE_MILLIS);
+        while (readFrames < until && read() > 0) {
+            //let the release die away before the next ping
+        }
+        return onset < 0 ? -1 : Math.max(0, onset - sentAt);
+    }
+
+    private void send(Receiver receiver, int command, int velocity) {
+        try {
+            receiver.send(new ShortMessage(command, midiChannel, note, velocity), -1);
+        }
+        catch (InvalidMidiDataException e) {
+            throw new IllegalArgumentException("bad calibration note " + note + " on channel " + midiChannel, e);
+        }
+    }
+
+    private int read() {
+        int count = line.read(buffer, 0, buffer.length);
+        int frames = Math.max(0, count) / format.getFrameSize();
+        readFrames += frames;
+        return frames;
+    }
+
+    private int peak(int frames) {
+        int peak = 0;
+        for (int f = 0; f < frames; f++) {
+            for (int channel : channels) {
+                int offset = f * format.getFrameSize() + channel * sampleBytes;
+                peak = Math.max(peak, Math.abs(AudioHelp.sampleAt(buffer, offset, sampleBytes)));
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return first frame in the buffer with a sample at or above the threshold, or -1
+     */
+    private int onset(int frames, int threshold) {
+        for (int f = 0; f < frames; f++) {
+            for (int channel : channels) {
+                int offset = f * format.getFrameSize() + channel * sampleBytes;
+                if (Math.abs(AudioHelp.sampleAt(buffer, offset, sampleBytes)) >= threshold) {
+                    return f;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private long millisToFrames(int millis) {
+        return (long) (millis * (double) format.getFrameRate() / 1000);
+    }
+
+    /**
+     * @return every channel of a format, for a synth heard on all of them
+     */
+    public static int[] allChannels(AudioFormat format) {
+        int[] all = new int[format.getChannels()];
+        for (int c = 0; c < all.length; c++) {
+            all[c] = c;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,364 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sums recorded stems into one polyphonic master. Every stem is memory mapped and the timeline is cut into
+ * fixed size blocks that worker threads sum independently, so heap use depends on the block size and thread
+ * count, never on how many stems there are or how long they run.
+ *
+ * It takes two passes. The first sums every block just to find the peak of the mix; the second sums again,
+ * scales so that peak lands on the target level and writes the master as 24 bit PCM or 32 bit float. Summing
+ * twice is cheaper than keeping the whole mix around, and the stems are in the page cache by the second pass.
+ *
+ * Stems compressed with <code>--flac</code> are decoded to scratch wav files first, so they can be mapped like
+ * the rest, and the scratch files are deleted once the master is written.
+ */
+public class Mixdown {
+
+    private static final Logger logger = LogManager.getLogger(Mixdown.class);
+    //about 1.5 seconds of cd audio
+    static final int BLOCK_FRAMES = 65536;
+    public static final double DEFAULT_PEAK_DB = -1.0;
+
+    /**
+     * One mapped stem.
+     */
+    private static class Stem {
+        final File file;
+        final AudioFormat format;
+        final MappedByteBuffer data;
+        final long frames;
+        //the decoded copy of a flac stem, or null
+        final File scratch;
+
+        Stem(File file, AudioFormat format, MappedByteBuffer data, File scratch) {
+            this.file = file;
+            this.format = format;
+            this.data = data;
+            this.frames = data.capacity() / format.getFrameSize();
+            this.scratch = scratch;
+        }
+    }
+
+    private final List<File> files;
+    private boolean floatMaster = false;
+    private double peakDb = DEFAULT_PEAK_DB;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int blockFrames = BLOCK_FRAMES;
+
+    /**
+     * @param stems 16 bit PCM wav or flac files, all with the same rate and channel count
+     */
+    public Mixdown(List<File> stems) {
+        if (stems.isEmpty()) {
+            throw new IllegalArgumentException("nothing to mix");
+        }
+        this.files = stems;
+    }
+
+    /**
+     * @param floatMaster true to write the master as 32 bit float, false for 24 bit PCM
+     */
+    public void setFloat(boolean floatMaster) {
+        this.floatMaster = floatMaster;
+    }
+
+    /**
+     * @param peakDb level in dBFS the loudest sample of the mix is scaled to
+     */
+    public void setPeakDb(double peakDb) {
+        this.peakDb = peakDb;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setBlockFrames(int blockFrames) {
+        this.blockFrames = Math.max(1, blockFrames);
+    }
+
+    /**
+     * Find the stems a session wrote.
+     * @param dir directory holding recording_N.wav or recording_N.flac files
+     * @return the stems in track order. Scratch files from sparse takes are left out, and so is a track's flac
+     * while its wav is still there, as it is until the flac has been written and verified.
+     */
+    public static List<File> findStems(File dir) {
+        File[] found = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().matches("recording_\\d+\\.(wav|flac)");
+            }
+        });
+        List<File> stems = new ArrayList<>();
+        if (found != null) {
+            for (File stem : found) {
+                if (!stem.getName().endsWith(".flac")
+                        || !new File(dir, "recording_" + track(stem) + ".wav").isFile()) {
+                    stems.add(stem);
+                }
+            }
+        }
+        Collections.sort(stems, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Integer.compare(track(a), track(b));
+            }
+        });
+        return stems;
+    }
+
+    private static int track(File stem) {
+        String name = stem.getName();
+        return Integer.parseInt(name.substring("recording_".length(), name.lastIndexOf('.')));
+    }
+
+    /**
+     * @return the master's format for stems in the given format
+     */
+    public AudioFormat getMasterFormat(AudioFormat stemFormat) {
+        int channels = stemFormat.getChannels();
+        float rate = stemFormat.getSampleRate();
+        if (floatMaster) {
+            return new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, 32, channels, channels * 4, rate, false);
+        }
+        return new AudioFormat(rate, 24, channels, true, false);
+    }
+
+    /**
+     * Mix the stems down.
+     * @param master the wav file to write
+     * @return peak of the mix before normalising, 1.0 being full scale
+     * @throws IOException if a stem cannot be read or the master cannot be written
+     */
+    public double mix(File master) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        final List<Stem> stems = new ArrayList<>(files.size());
+        try {
+            for (File file : files) {
+                stems.add(map(file));
+            }
+            return mix(stems, master, start);
+        }
+        finally {
+            for (Stem stem : stems) {
+                if (stem.scratch != null && !stem.scratch.delete()) {
+                    //still mapped on some platforms
+                    stem.scratch.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private double mix(final List<Stem> stems, File master, long start) throws IOException, InterruptedException {
+        AudioFormat format = stems.get(0).format;
+        long frames = 0;
+        for (Stem stem : stems) {
+            if (stem.format.getChannels() != format.getChannels()
+                    || stem.format.getSampleRate() != format.getSampleRate()) {
+                throw new IOException(stem.file + " is " + stem.format + " but " + stems.get(0).file + " is " + format);
+            }
+            frames = Math.max(frames, stem.frames);
+        }
+        final int channels = format.getChannels();
+        final long totalFrames = frames;
+        int blocks = (int) ((frames + blockFrames - 1) / blockFrames);
+        final ThreadLocal<float[]> sums = new ThreadLocal<float[]>() {
+            @Override
+            protected float[] initialValue() {
+                return new float[blockFrames * channels];
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AudioFormat masterFormat = getMasterFormat(format);
+        float peak = 0;
+        try (WavWriter out = new WavWriter(master, masterFormat)) {
+            //first pass: only the peak is kept
+            List<Future<Float>> peaks = new ArrayList<>(blocks);
+            for (int b = 0; b < blocks; b++) {
+                final int block = b;
+                peaks.add(pool.submit(new Callable<Float>() {
+                    @Override
+                    public Float call() {
+                        float[] sum = sums.get();
+                        int samples = sum(stems, block, totalFrames, sum);
+                        float blockPeak = 0;
+                        for (int i = 0; i < samples; i++) {
+                            blockPeak = Math.max(blockPeak, Math.abs(sum[i]));
+                        }
+                        return blockPeak;
+                    }
+                }));
+            }
+            for (Future<Float> blockPeak : peaks) {
+                peak = Math.max(peak, blockPeak.get());
+            }
+            final float gain = peak > 0 ? (float) (Math.pow(10, peakDb / 20) / peak) : 1;
+
+            //second pass: blocks are summed out of order but written in order. only a few are in flight at
+            //once so finished blocks never pile up waiting for a slow one.
+            Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+            for (int b = 0; b < blocks; b++) {
+                if (pending.size() >= threads * 2) {
+                    out.write(pending.poll().get());
+                }
+                final int block = b;
+                pending.add(pool.submit(new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() {
+                        float[] sum = sums.get();
+                        int samples = sum(stems, block, totalFrames, sum);
+                        return encode(sum, samples, gain);
+                    }
+                }));
+            }
+            while (!pending.isEmpty()) {
+                out.write(pending.poll().get());
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double audioSeconds = frames / (double) format.getFrameRate();
+            logger.info(String.format("mixed %d stems into %s: %.1f s of audio in %.2f s (%.0fx real time), peak %.1f"
+                    + " dBFS, gain %.1f dB, %d bit %s", stems.size(), master, audioSeconds, seconds,
+                    audioSeconds / seconds, 20 * Math.log10(peak), 20 * Math.log10(gain),
+                    masterFormat.getSampleSizeInBits(), floatMaster ? "float" : "pcm"));
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException("mixdown failed", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+        return peak;
+    }
+
+    /**
+     * Sum one block of every stem. Stems that have already ended add nothing.
+     * @param sum where to put the mix, 1.0 being full scale
+     * @return number of samples (frames times channels) in the block
+     */
+    private int sum(List<Stem> stems, int block, long totalFrames, float[] sum) {
+        long first = (long) block * blockFrames;
+        int channels = stems.get(0).format.getChannels();
+        int samples = (int) Math.min(blockFrames, totalFrames - first) * channels;
+        Arrays.fill(sum, 0, samples, 0f);
+        for (Stem stem : stems) {
+            if (first >= stem.frames) {
+                continue;
+            }
+            int count = (int) Math.min(samples, (stem.frames - first) * channels);
+            //absolute gets leave the buffer's position alone, so every thread can share the mapping
+            int offset = (int) (first * stem.format.getFrameSize());
+            for (int i = 0; i < count; i++) {
+                sum[i] += stem.data.getShort(offset + 2 * i);
+            }
+        }
+        for (int i = 0; i < samples; i++) {
+            sum[i] /= 32768f;
+        }
+        return samples;
+    }
+
+    private ByteBuffer encode(float[] sum, int samples, float gain) {
+        ByteBuffer out = ByteBuffer.allocate(samples * (floatMaster ? 4 : 3)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            float value = sum[i] * gain;
+            if (floatMaster) {
+                out.putFloat(value);
+            }
+            else {
+                long scaled = Math.round(value * 8388607.0);
+                int sample = (int) Math.max(-8388608, Math.min(8388607, scaled));
+                out.put((byte) sample);
+                out.put((byte) (sample >> 8));
+                out.put((byte) (sample >> 16));
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Map the data chunk of a wav file, or of a scratch wav decoded from a flac file.
+     */
+    private static Stem map(File file) throws IOException {
+        if (file.getName().endsWith(".flac")) {
+            File scratch = decode(file);
+            try {
+                Stem decoded = map(scratch);
+                return new Stem(file, decoded.format, decoded.data, scratch);
+            }
+            catch (IOException | RuntimeException e) {
+                if (!scratch.delete()) {
+                    scratch.deleteOnExit();
+                }
+                throw e;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WavInfo wav = WavInfo.read(channel, file);
+            AudioFormat format = wav.getFormat();
+            if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.getSampleSizeInBits() != 16) {
+                throw new IOException(file + " must be 16 bit PCM to mix, not " + format);
+            }
+            if (wav.getDataLength() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too long to map");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, wav.getDataOffset(),
+                    wav.getDataLength());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            return new Stem(file, format, data, null);
+        }
+    }
+
+    /**
+     * Decode a flac stem to a scratch wav next to the system's other temporary files.
+     */
+    private static File decode(File flac) throws IOException {
+        File scratch = File.createTempFile(flac.getName() + "-", ".wav");
+        try (FlacDecoder decoder = new FlacDecoder(flac);
+             WavWriter wav = new WavWriter(scratch, decoder.getFormat())) {
+            ByteBuffer block = ByteBuffer.allocate(decoder.getMaxBlockSize() * decoder.getFormat().getFrameSize());
+            while (true) {
+                block.clear();
+                if (decoder.read(block) < 0) {
+                    break;
+                }
+                block.flip();
+                wav.write(block);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            if (!scratch.delete()) {
+                scratch.deleteOnExit();
+            }
+            throw e;
+        }
+        return scratch;
+    }
+}
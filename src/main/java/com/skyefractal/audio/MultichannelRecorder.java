@@ -0,0 +1,318 @@
+package com.skyefractal.audio;
+
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.metrics.TakeMetrics;
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records several tracks in one pass from a single multichannel line, one channel group per track. Every chunk
+ * read from the line is de-interleaved straight into the ring buffer slots of each stem, so the capture thread
+ * does no allocation and no file I/O; each stem has its own {@link StemWriter} thread.
+ *
+ * Each group finishes on its own, like a take from {@link AudioRecorder}: when its track has played to the end
+ * its release tail is recorded until the {@link TailDetector} hears silence, then nothing more is written to
+ * its stem. The pass ends when every group has finished. The line stays open between passes.
+ */
+public class MultichannelRecorder implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(MultichannelRecorder.class);
+    private static final int PLAYING = 0;
+    private static final int TAIL = 1;
+    private static final int DONE = 2;
+
+    private final TargetDataLine line;
+    private final Deinterleaver deinterleaver;
+    private final TailDetector[] tails;
+    private final long[] capturedFrames;
+    //midi to audio latency of each group's synth
+    private final long[] latencyFrames;
+    //reused every pass
+    private final byte[] chunk;
+    private final byte[][] discard;
+    private final byte[][] targets;
+    private final boolean[] claimed;
+    //bytes lost to overruns that are still to be made up with silence, by group
+    private final long[] lostBytes;
+    private final byte[] silence;
+    private final SessionMetrics session = SessionMetrics.get();
+    //this pass, by group
+    private final TakeMetrics[] metrics;
+    //when playback started and when the last frame was captured in the last pass
+    private long playNanos = 0;
+    private long capturedNanos = 0;
+
+    /**
+     * @param line the multichannel line, not yet open
+     * @param deinterleaver which line channels go to which stem
+     */
+    public MultichannelRecorder(TargetDataLine line, Deinterleaver deinterleaver) {
+        this(line, deinterleaver, TailDetector.DEFAULT_THRESHOLD_DB, TailDetector.DEFAULT_HOLD_MILLIS);
+    }
+
+    /**
+     * @param tailThresholdDb see {@link TailDetector}
+     * @param tailHoldMillis see {@link TailDetector}
+     */
+    public MultichannelRecorder(TargetDataLine line, Deinterleaver deinterleaver, double tailThresholdDb,
+                                int tailHoldMillis) {
+        this.line = line;
+        this.deinterleaver = deinterleaver;
+        int groups = deinterleaver.getGroups();
+        tails = new TailDetector[groups];
+        discard = new byte[groups][];
+        for (int g = 0; g < groups; g++) {
+            AudioFormat format = deinterleaver.getFormat(g);
+            tails[g] = new TailDetector(format, tailThresholdDb, tailHoldMillis);
+            discard[g] = new byte[AudioRecorder.CHUNK_FRAMES * format.getFrameSize()];
+        }
+        capturedFrames = new long[groups];
+        latencyFrames = new long[groups];
+        targets = new byte[groups][];
+        claimed = new boolean[groups];
+        lostBytes = new long[groups];
+        silence = new byte[groups];
+        for (int g = 0; g < groups; g++) {
+            silence[g] = WavWriter.silence(deinterleaver.getFormat(g));
+        }
+        metrics = new TakeMetrics[groups];
+        chunk = new byte[AudioRecorder.CHUNK_FRAMES * deinterleaver.getSourceFormat().getFrameSize()];
+    }
+
+    /**
+     * Each group's stems are trimmed so the first tick lands exactly at the end of the pre-roll, like
+     * {@link AudioRecorder#setLatencyFrames(long)}.
+     * @param group the channel group
+     * @param latencyFrames midi to audio latency of the synth on that group
+     */
+    public void setLatencyFrames(int group, long latencyFrames) {
+        this.latencyFrames[group] = latencyFrames;
+    }
+
+    /**
+     * Record one pass.
+     * @param players for each group, the player for its synth, or null if the group is unused this pass
+     * @param tracks for each used group, the track index to play
+     * @param stems for each used group, the wav file to write
+     */
+    public void record(TrackPlayer[] players, int[] tracks, File[] stems)
+            throws LineUnavailableException, IOException, InterruptedException {
+        long start = System.nanoTime();
+        playNanos = 0;
+        Arrays.fill(metrics, null);
+        int groups = deinterleaver.getGroups();
+        AudioFormat source = deinterleaver.getSourceFormat();
+        if (!line.isOpen()) {
+            line.open(source, chunk.length * AudioRecorder.LINE_BUFFER_CHUNKS);
+        }
+        WavWriter[] wavs = new WavWriter[groups];
+        AudioRingBuffer[] rings = new AudioRingBuffer[groups];
+        StemWriter[] writers = new StemWriter[groups];
+        Thread[] threads = new Thread[groups];
+        long preRoll = (long) AudioRecorder.PRE_ROLL_SECONDS * (long) source.getFrameRate();
+        try {
+            for (int g = 0; g < groups; g++) {
+                if (players[g] == null) {
+                    continue;
+                }
+                AudioFormat format = deinterleaver.getFormat(g);
+                wavs[g] = new WavWriter(stems[g], format);
+                wavs[g].writeSilence(preRoll);
+                rings[g] = new AudioRingBuffer(AudioRecorder.RING_SLOTS,
+                        AudioRecorder.CHUNK_FRAMES * format.getFrameSize());
+                writers[g] = new StemWriter(rings[g], wavs[g]);
+                threads[g] = writers[g].start("stem-writer-" + tracks[g]);
+                metrics[g] = session.take(tracks[g]);
+                metrics[g].setSource("group " + g);
+            }
+            try {
+                capture(players, tracks, rings);
+            }
+            finally {
+                for (int g = 0; g < groups; g++) {
+                    if (rings[g] != null) {
+                        rings[g].close();
+                        threads[g].join();
+                    }
+                }
+            }
+            for (int g = 0; g < groups; g++) {
+                if (rings[g] == null) {
+                    continue;
+                }
+                logger.info("track " + tracks[g] + ": captured " + capturedFrames[g] + " frames on channel group "
+                        + g + ", ring high-water mark " + rings[g].getHighWaterMark() + "/" + rings[g].getCapacity()
+                        + " chunks, " + rings[g].getOverruns() + " overruns");
+                if (writers[g].getFailure() != null) {
+                    throw writers[g].getFailure();
+                }
+            }
+        }
+        finally {
+            for (WavWriter wav : wavs) {
+                if (wav != null) {
+                    wav.close();
+                }
+            }
+            long end = System.nanoTime();
+            for (int g = 0; g < groups; g++) {
+                if (metrics[g] != null && playNanos != 0) {
+                    metrics[g].setTimings(playNanos - start, capturedNanos - playNanos, end - capturedNanos);
+                }
+            }
+        }
+    }
+
+    private void capture(TrackPlayer[] players, int[] tracks, AudioRingBuffer[] rings) {
+        int groups = deinterleaver.getGroups();
+        long maxTail = (long) AudioRecorder.MAX_TAIL_SECONDS * (long) deinterleaver.getSourceFormat().getFrameRate();
+        int[] state = new int[groups];
+        long[] tailLeft = new long[groups];
+        //frames still to drop from the start of each stem
+        long[] trim = new long[groups];
+        int sourceFrameSize = deinterleaver.getSourceFormat().getFrameSize();
+        int active = 0;
+        for (int g = 0; g < groups; g++) {
+            capturedFrames[g] = 0;
+            lostBytes[g] = 0;
+            if (players[g] == null) {
+                state[g] = DONE;
+                continue;
+            }
+            active++;
+        }
+        //drop whatever the line picked up since the last pass
+        line.flush();
+        line.start();
+        playNanos = System.nanoTime();
+        for (int g = 0; g < groups; g++) {
+            if (players[g] != null) {
+                players[g].start(tracks[g], 0);
+                //frames captured but not read yet. this group's playback started at the end of them.
+                long startFrame = line.available() / sourceFrameSize;
+                trim[g] = startFrame + latencyFrames[g];
+                logger.info("track " + tracks[g] + ": playback started " + startFrame
+                        + " frames into the pass, trimming " + trim[g] + " frames");
+            }
+        }
+
+        while (active > 0) {
+            for (int g = 0; g < groups; g++) {
+                if (state[g] == PLAYING && !players[g].isPlaying()) {
+                    players[g].stop();
+                    tails[g].reset();
+                    tailLeft[g] = maxTail;
+                    state[g] = TAIL;
+                }
+                claimed[g] = false;
+                targets[g] = null;
+                if (state[g] != DONE) {
+                    //silence for chunks lost earlier goes in first, so this one lands where it was played
+                    lostBytes[g] = rings[g].commitSilence(lostBytes[g], silence[g]);
+                    byte[] slot = rings[g].claim();
+                    claimed[g] = slot != null;
+                    //if there is no slot the writer is behind. the chunk is lost but the line keeps flowing, and
+                    //it is made up with the same length of silence once the writer catches up.
+                    targets[g] = slot != null ? slot : discard[g];
+                    if (slot == null) {
+                        metrics[g].overrun();
+                        session.overrun();
+                    }
+                }
+            }
+            int fill = session.lineFill(line.available(), line.getBufferSize());
+            int count = line.read(chunk, 0, chunk.length);
+            if (count < chunk.length) {
+                session.shortRead();
+            }
+            if (count <= 0) {
+                //line was stopped or closed underneath us
+                break;
+            }
+            session.captured(count);
+            int frames = deinterleaver.split(chunk, 0, count, targets);
+            for (int g = 0; g < groups; g++) {
+                if (targets[g] == null) {
+                    continue;
+                }
+                metrics[g].fill(fill);
+                if (count < chunk.length) {
+                    metrics[g].shortRead();
+                }
+                int frameSize = deinterleaver.getFormat(g).getFrameSize();
+                int kept = frames;
+                if (trim[g] > 0) {
+                    int drop = (int) Math.min(trim[g], frames);
+                    trim[g] -= drop;
+                    kept -= drop;
+                    //shuffle the rest of the chunk down. only ever happens in the first few chunks.
+                    System.arraycopy(targets[g], drop * frameSize, targets[g], 0, kept * frameSize);
+                }
+                int length = kept * frameSize;
+                if (claimed[g] && length > 0) {
+                    rings[g].commit(length);
+                }
+                else if (length > 0) {
+                    lostBytes[g] += length;
+                    metrics[g].lost(kept);
+                }
+                metrics[g].captured(frames * frameSize);
+                capturedFrames[g] += frames;
+                if (state[g] == TAIL) {
+                    tails[g].process(targets[g], 0, length);
+                    tailLeft[g] -= frames;
+                    if (tails[g].isSilent() || tailLeft[g] <= 0) {
+                        state[g] = DONE;
+                        active--;
+                    }
+                }
+            }
+        }
+        capturedNanos = System.nanoTime();
+        line.stop();
+        for (int g = 0; g < groups; g++) {
+            if (state[g] == PLAYING) {
+                players[g].stop();
+            }
+        }
+        //the rest of the silence owed, waiting for each writer to free slots for it
+        for (int g = 0; g < groups; g++) {
+            while (lostBytes[g] > 0) {
+                lostBytes[g] = rings[g].commitSilence(lostBytes[g], silence[g]);
+                if (lostBytes[g] > 0) {
+                    LockSupport.parkNanos(1000000);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return what happened to a group in the last pass, or null if it was unused
+     */
+    public TakeMetrics getMetrics(int group) {
+        return metrics[group];
+    }
+
+    /**
+     * @return frames recorded for a group in the last pass, excluding the generated pre-roll
+     */
+    public long getCapturedFrames(int group) {
+        return capturedFrames[group];
+    }
+
+    @Override
+    public void close() {
+        line.close();
+    }
+}
@@ -0,0 +1,331 @@
+package com.skyefractal.audio;
+
+import com.skyefractal.midi.TempoMap;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Renders tracks through the JDK's software synthesizer instead of recording a real one. The synth is opened
+ * as a pull stream rather than on a sound card, so audio is made as fast as the CPU allows and every event
+ * lands on its exact frame. Each track gets its own synth and tracks are rendered in parallel, one per core.
+ *
+ * The stems have the same layout as {@link AudioRecorder}'s: ./recording_N.wav, pre-roll silence, the track
+ * from its first tick, then the release tail until the {@link TailDetector} hears silence. The synth's own
+ * processing delay is measured once and trimmed, so the first tick lands exactly at the end of the pre-roll.
+ *
+ * The stream is opened through the JDK's internal AudioSynthesizer interface. On Java 9 and later run with
+ * --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED.
+ */
+public class OfflineRenderer {
+
+    private static final Logger logger = LogManager.getLogger(OfflineRenderer.class);
+    private static final String EXPORTS = "--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED";
+
+    private final Soundbank soundbank;
+    private final AudioFormat format;
+    private final int threads;
+    private double tailThresholdDb = TailDetector.DEFAULT_THRESHOLD_DB;
+    private int tailHoldMillis = TailDetector.DEFAULT_HOLD_MILLIS;
+    //frames between an event's time stamp and the synth sounding it, -1 until measured
+    private long latencyFrames = -1;
+
+    /**
+     * @param soundbank instruments to render with, or null for the synth's default bank
+     */
+    public OfflineRenderer(Soundbank soundbank) {
+        this(soundbank, AudioHelp.CD_AUDIO, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param soundbank instruments to render with, or null for the synth's default bank
+     * @param format signed little endian PCM format of the stems
+     * @param threads number of tracks rendered at once
+     */
+    public OfflineRenderer(Soundbank soundbank, AudioFormat format, int threads) {
+        this.soundbank = soundbank;
+        this.format = format;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param soundbank a soundfont (.sf2), DLS or other bank the JDK can read, or null for the default bank
+     */
+    public static Soundbank loadSoundbank(File soundbank) throws InvalidMidiDataException, IOException {
+        if (soundbank == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Soundbank bank = MidiSystem.getSoundbank(soundbank);
+        logger.info(String.format("loaded soundbank %s (%d instruments) in %.1f ms", bank.getName(),
+                bank.getInstruments().length, (System.nanoTime() - start) / 1e6));
+        return bank;
+    }
+
+    /**
+     * Set how the end of each release tail is detected, as for {@link AudioRecorder#setTailDetector(TailDetector)}.
+     */
+    public void setTail(double thresholdDb, int holdMillis) {
+        this.tailThresholdDb = thresholdDb;
+        this.tailHoldMillis = holdMillis;
+    }
+
+    /**
+     * Render every track of the sequence to ./recording_N.wav, N being the track index.
+     * @param sequence a Type 1 multitrack sequence
+     * @return frames rendered for each track, excluding the pre-roll
+     */
+    public long[] render(final Sequence sequence) throws MidiUnavailableException, IOException, InterruptedException {
+        int tracks = sequence.getTracks().length;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, tracks)));
+        long start = System.nanoTime();
+        long[] frames = new long[tracks];
+        try {
+            List<Future<Long>> futures = new ArrayList<>(tracks);
+            for (int i = 0; i < tracks; i++) {
+                final int track = i;
+                futures.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return renderTrack(sequence, track, new File("./recording_" + track + ".wav"));
+                    }
+                }));
+            }
+            for (int i = 0; i < tracks; i++) {
+                frames[i] = futures.get(i).get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MidiUnavailableException) {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("rendering failed", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+        long total = 0;
+        for (long f : frames) {
+            total += f;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double audioSeconds = total / (double) format.getFrameRate();
+        logger.info(String.format("rendered %d tracks in %.2f s, %.1f s of audio (%.1fx real time)", tracks,
+                seconds, audioSeconds, audioSeconds / seconds));
+        return frames;
+    }
+
+    /**
+     * Render one track on a synth of its own.
+     * @param sequence the sequence holding the track
+     * @param track index of the track to render
+     * @param stem the wav file to write
+     * @return frames rendered, excluding the pre-roll
+     */
+    public long renderTrack(Sequence sequence, int track, File stem) throws MidiUnavailableException, IOException {
+        long latency = getLatencyFrames();
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioInputStream stream = open(synth, format);
+        try (WavWriter audio = new WavWriter(stem, format)) {
+            long endMicros = queue(sequence, track, synth.getReceiver());
+            audio.writeSilence((long) AudioRecorder.PRE_ROLL_SECONDS * (long) format.getFrameRate());
+
+            byte[] chunk = new byte[AudioRecorder.CHUNK_FRAMES * format.getFrameSize()];
+            skip(stream, chunk, latency * format.getFrameSize());
+            long endFrame = Math.round(endMicros * (double) format.getFrameRate() / 1000000.0);
+            long frames = pull(stream, audio, chunk, endFrame, null);
+            TailDetector tail = new TailDetector(format, tailThresholdDb, tailHoldMillis);
+            long tailFrames = pull(stream, audio, chunk, (long) AudioRecorder.MAX_TAIL_SECONDS
+                    * (long) format.getFrameRate(), tail);
+            logger.debug("track " + track + ": rendered " + frames + " frames and a tail of " + tailFrames);
+            return frames + tailFrames;
+        }
+        finally {
+            stream.close();
+            synth.close();
+        }
+    }
+
+    /**
+     * How long the synth takes to sound a note after its time stamp. It is the same for every event (the synth
+     * works in fixed blocks) so it is measured once, with a note on at time 0 rendered at 32 bits so the very
+     * first sample of the attack is not lost below the bottom bit.
+     * @return the delay in frames
+     */
+    public synchronized long getLatencyFrames() throws MidiUnavailableException {
+        if (latencyFrames >= 0) {
+            return latencyFrames;
+        }
+        AudioFormat fine = new AudioFormat(format.getSampleRate(), 32, 1, true, false);
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioInputStream stream = open(synth, fine);
+        try {
+            synth.getReceiver().send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 127), 0);
+            byte[] data = new byte[(int) fine.getFrameRate() * fine.getFrameSize()];
+            int length = 0;
+            int count;
+            while (length < data.length && (count = stream.read(data, length, data.length - length)) > 0) {
+                length += count;
+            }
+            latencyFrames = 0;
+            for (int i = 0; i + 4 <= length; i += 4) {
+                if (AudioHelp.sampleAt(data, i, 4) != 0) {
+                    latencyFrames = i / 4;
+                    break;
+                }
+            }
+            logger.info(String.format("software synth latency %d frames (%.2f ms)", latencyFrames,
+                    latencyFrames * 1000.0 / fine.getFrameRate()));
+            return latencyFrames;
+        }
+        catch (InvalidMidiDataException | IOException e) {
+            throw new IllegalStateException("could not measure the software synth", e);
+        }
+        finally {
+            close(stream);
+            synth.close();
+        }
+    }
+
+    /**
+     * Open a synth as a stream with the soundbank loaded.
+     */
+    private AudioInputStream open(Synthesizer synth, AudioFormat streamFormat) throws MidiUnavailableException {
+        Map<String, Object> info = new HashMap<>();
+        //generating the default bank is slow, so skip it when there is a bank of our own
+        info.put("load default soundbank", soundbank == null);
+        AudioInputStream stream = null;
+        boolean opened = false;
+        try {
+            stream = openStream(synth, streamFormat, info);
+            if (soundbank != null && !synth.loadAllInstruments(soundbank)) {
+                throw new MidiUnavailableException("soundbank " + soundbank.getName() + " is not supported");
+            }
+            opened = true;
+            return stream;
+        }
+        finally {
+            //the caller only closes what it gets back
+            if (!opened) {
+                if (stream != null) {
+                    close(stream);
+                }
+                synth.close();
+            }
+        }
+    }
+
+    private static void close(AudioInputStream stream) {
+        try {
+            stream.close();
+        }
+        catch (IOException e) {
+            logger.warn("could not close synth stream", e);
+        }
+    }
+
+    private static void skip(AudioInputStream stream, byte[] chunk, long bytes) throws IOException {
+        while (bytes > 0) {
+            int count = stream.read(chunk, 0, (int) Math.min(bytes, chunk.length));
+            if (count <= 0) {
+                break;
+            }
+            bytes -= count;
+        }
+    }
+
+    /**
+     * Hand every event in the track to the synth up front, time stamped against the stream. Nothing is heard
+     * until the stream is read, so the synth plays each event on its exact frame.
+     * @return time of the end of the track in microseconds
+     */
+    private static long queue(Sequence sequence, int index, Receiver receiver) {
+        TempoMap tempo = new TempoMap(sequence);
+        Track track = sequence.getTracks()[index];
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            //tempo is already in the time stamps and the synth ignores the rest of the meta events
+            if (!(event.getMessage() instanceof MetaMessage)) {
+                receiver.send(event.getMessage(), tempo.toMicros(event.getTick()));
+            }
+        }
+        return tempo.toMicros(track.ticks());
+    }
+
+    /**
+     * Read frames from the synth into the stem.
+     * @param tail if not null, stop early once this hears silence
+     * @return number of frames written
+     */
+    private long pull(AudioInputStream stream, WavWriter audio, byte[] chunk, long maxFrames, TailDetector tail)
+            throws IOException {
+        int frameSize = format.getFrameSize();
+        long remaining = maxFrames * frameSize;
+        while (remaining > 0 && (tail == null || !tail.isSilent())) {
+            int count = stream.read(chunk, 0, (int) Math.min(remaining, chunk.length));
+            if (count <= 0) {
+                break;
+            }
+            audio.write(chunk, 0, count);
+            if (tail != null) {
+                tail.process(chunk, 0, count);
+            }
+            remaining -= count;
+        }
+        return maxFrames - remaining / frameSize;
+    }
+
+    /**
+     * Open the software synth as a stream. This is AudioSynthesizer.openStream, which is public but not part of
+     * the javax.sound API, so it is called reflectively.
+     */
+    static AudioInputStream openStream(Synthesizer synth, AudioFormat format, Map<String, Object> info)
+            throws MidiUnavailableException {
+        try {
+            Method open = synth.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+            return (AudioInputStream) open.invoke(synth, format, info);
+        }
+        catch (NoSuchMethodException e) {
+            throw new MidiUnavailableException(synth.getDeviceInfo().getName() + " cannot render offline");
+        }
+        catch (IllegalAccessException e) {
+            throw new MidiUnavailableException("the software synth is not accessible, run java with " + EXPORTS);
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException) {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            throw new IllegalStateException("could not open the software synth", e.getCause());
+        }
+    }
+}
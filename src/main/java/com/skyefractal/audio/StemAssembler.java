@@ -0,0 +1,82 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Rebuilds a full length stem from a sparse take. A sparse take is a wav holding only the regions that were
+ * actually played, back to back. Each region is copied to its place on the timeline and the gaps between
+ * are filled with silence, so the result lines up sample for sample with a stem recorded end to end.
+ */
+public class StemAssembler {
+
+    private static final Logger logger = LogManager.getLogger(StemAssembler.class);
+
+    /**
+     * Where a captured region belongs in the finished stem.
+     */
+    public static class Placement {
+        private final long startFrame;
+        private final long frames;
+
+        /**
+         * @param startFrame frame in the finished stem where the region starts
+         * @param frames number of frames captured for the region
+         */
+        public Placement(long startFrame, long frames) {
+            this.startFrame = startFrame;
+            this.frames = frames;
+        }
+
+        public long getStartFrame() {
+            return startFrame;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+    }
+
+    /**
+     * @param sparse wav file with the captured regions back to back, in the same order as placements
+     * @param placements where each region goes, in time order
+     * @param output the full length stem to write
+     * @param format format of both files
+     * @param minFrames pad the stem with silence to at least this length
+     * @throws IOException if either file cannot be read or written
+     */
+    public static void assemble(File sparse, List<Placement> placements, File output, AudioFormat format,
+                                long minFrames) throws IOException {
+        int frameSize = format.getFrameSize();
+        try (FileChannel in = FileChannel.open(sparse.toPath(), StandardOpenOption.READ);
+             WavWriter out = new WavWriter(output, format)) {
+            long sourceFrame = 0;
+            for (int i = 0; i < placements.size(); i++) {
+                Placement placement = placements.get(i);
+                long frames = placement.getFrames();
+                //a region's tail never runs into the next region
+                if (i + 1 < placements.size()) {
+                    frames = Math.min(frames, placements.get(i + 1).getStartFrame() - placement.getStartFrame());
+                }
+                long gap = placement.getStartFrame() - out.getFrames();
+                if (gap > 0) {
+                    out.writeSilence(gap);
+                }
+                out.transferFrom(in, WavWriter.HEADER_SIZE + sourceFrame * frameSize, frames * frameSize);
+                sourceFrame += placement.getFrames();
+            }
+            if (out.getFrames() < minFrames) {
+                out.writeSilence(minFrames - out.getFrames());
+            }
+            logger.info("assembled " + placements.size() + " regions (" + sourceFrame + " frames recorded) into "
+                    + out.getFrames() + " frames in " + output);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.skyefractal.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compresses finished stems to FLAC in the background while the next track records. Workers run at the lowest
+ * thread priority so the capture thread always wins, and only a few stems may be waiting at once: when the
+ * queue is full {@link #submit(File)} blocks until a worker catches up, so a slow disk or CPU holds up the start
+ * of the next take rather than letting work (and uncompressed stems) pile up.
+ *
+ * Each wav is deleted once its flac is written, and with verify on, only once the flac has been decoded and
+ * found to match it sample for sample.
+ */
+public class StemCompressor implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(StemCompressor.class);
+
+    private final ExecutorService pool;
+    //one permit per stem being encoded or waiting to be
+    private final Semaphore slots;
+    private final boolean verify;
+    private final AtomicInteger compressed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong wavBytes = new AtomicLong();
+    private final AtomicLong flacBytes = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private boolean closed = false;
+
+    /**
+     * One worker and up to two stems waiting.
+     * @param verify decode every flac and compare it with the wav before deleting the wav
+     */
+    public StemCompressor(boolean verify) {
+        this(1, 2, verify);
+    }
+
+    /**
+     * @param threads number of stems encoded at once
+     * @param queued number of finished stems that may wait for a worker before {@link #submit(File)} blocks
+     * @param verify decode every flac and compare it with the wav before deleting the wav
+     */
+    public StemCompressor(int threads, int queued, boolean verify) {
+        this.verify = verify;
+        this.slots = new Semaphore(threads + queued);
+        final AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "stem-compressor-" + count.incrementAndGet());
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue a finished stem for compression, waiting if too many are queued already.
+     * @param wav the stem. recording_N.wav becomes recording_N.flac.
+     */
+    public void submit(final File wav) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("compressor is closed");
+        }
+        if (!slots.tryAcquire()) {
+            long start = System.nanoTime();
+            slots.acquire();
+            logger.warn(String.format("waited %.0f ms for the compressor to catch up", (System.nanoTime() - start) / 1e6));
+        }
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compress(wav);
+                }
+                finally {
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    private void compress(File wav) {
+        String name = wav.getName();
+        File flac = new File(wav.getParentFile(), (name.endsWith(".wav") ? name.substring(0, name.length() - 4) : name)
+                + ".flac");
+        long start = System.nanoTime();
+        try {
+            long size = FlacEncoder.encode(wav, flac);
+            if (verify && !FlacDecoder.verify(flac, wav)) {
+                failed.incrementAndGet();
+                logger.error(flac + " does not match " + wav + ", keeping the wav");
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            long original = wav.length();
+            if (!wav.delete()) {
+                logger.warn("could not delete " + wav);
+            }
+            compressed.incrementAndGet();
+            wavBytes.addAndGet(original);
+            flacBytes.addAndGet(size);
+            busyNanos.addAndGet(nanos);
+            logger.info(String.format("%s: %.1f MB to %.1f MB (%.0f%%) in %.0f ms%s", flac.getName(), original / 1e6,
+                    size / 1e6, 100.0 * size / original, nanos / 1e6, verify ? ", verified" : ""));
+        }
+        catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            logger.error("could not compress " + wav + ", keeping it", e);
+            if (flac.exists() && !flac.delete()) {
+                logger.warn("could not delete " + flac);
+            }
+        }
+    }
+
+    /**
+     * @return number of stems compressed so far
+     */
+    public int getCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * @return number of stems that could not be compressed or did not verify, their wavs are kept
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Finish the stems already submitted and stop the workers.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("still compressing stems");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (compressed.get() > 0) {
+            logger.info(String.format("compressed %d stems from %.1f MB to %.1f MB (%.0f%%) in %.1f s of background"
+                    + " time, %d failed", compressed.get(), wavBytes.get() / 1e6, flacBytes.get() / 1e6,
+                    100.0 * flacBytes.get() / wavBytes.get(), busyNanos.get() / 1e9, failed.get()));
+        }
+    }
+}
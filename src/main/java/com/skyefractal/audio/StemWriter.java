@@ -0,0 +1,62 @@
+package com.skyefractal.audio;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Drains an {@link AudioRingBuffer} into a {@link WavWriter} on its own thread so disk stalls never hold up
+ * the thread reading the line. Runs until the ring is closed and empty.
+ */
+public class StemWriter implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(StemWriter.class);
+    private final AudioRingBuffer ring;
+    private final WavWriter wav;
+    private volatile IOException failure = null;
+
+    public StemWriter(AudioRingBuffer ring, WavWriter wav) {
+        this.ring = ring;
+        this.wav = wav;
+    }
+
+    @Override
+    public void run() {
+        byte[] slot;
+        while ((slot = ring.take()) != null) {
+            try {
+                if (failure == null) {
+                    wav.write(slot, 0, ring.length());
+                }
+            }
+            catch (IOException e) {
+                //keep draining so the capture side never blocks on a dead writer
+                logger.error("failed writing " + wav.getFile(), e);
+                failure = e;
+            }
+            finally {
+                ring.release();
+            }
+        }
+    }
+
+    /**
+     * Start the writer on a new thread.
+     * @param name thread name
+     * @return the running thread, to be joined once the ring is closed
+     */
+    public Thread start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setPriority(Thread.NORM_PRIORITY + 1);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return the first write error, if any. Only meaningful once the writer thread has finished.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,115 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Streaming envelope detector used to end a take once the synth's release tail has died away. Audio is
+ * measured in short blocks. A block is quiet when its RMS is below the threshold and its peak is no more
+ * than 12dB above it (so a slow decay with the odd spike is not cut early). The tail is over once quiet
+ * blocks have run on for the hold time.
+ */
+public class TailDetector {
+
+    public static final double DEFAULT_THRESHOLD_DB = -60.0;
+    public static final int DEFAULT_HOLD_MILLIS = 750;
+    private static final int BLOCK_MILLIS = 10;
+    //peak may sit this far above the rms threshold in a quiet block
+    private static final double PEAK_HEADROOM = 4.0;
+
+    private final double thresholdDb;
+    private final int holdMillis;
+    private final int sampleBytes;
+    private final int frameSize;
+    private final int blockFrames;
+    private final long holdFrames;
+    private final double rmsLimit;
+    private final double peakLimit;
+
+    //running state for the current block
+    private double sumSquares = 0;
+    private int peak = 0;
+    private int framesInBlock = 0;
+    private long quietFrames = 0;
+
+    /**
+     * @param format signed little endian PCM format of the audio being measured
+     * @param thresholdDb level in dBFS below which audio counts as silence
+     * @param holdMillis how long audio must stay below the threshold before the tail is over
+     */
+    public TailDetector(AudioFormat format, double thresholdDb, int holdMillis) {
+        this.thresholdDb = thresholdDb;
+        this.holdMillis = holdMillis;
+        this.sampleBytes = format.getSampleSizeInBits() / 8;
+        this.frameSize = format.getFrameSize();
+        this.blockFrames = Math.max(1, (int) (format.getFrameRate() * BLOCK_MILLIS / 1000));
+        this.holdFrames = (long) format.getFrameRate() * holdMillis / 1000;
+        double fullScale = (1L << (format.getSampleSizeInBits() - 1)) - 1;
+        this.rmsLimit = fullScale * Math.pow(10, thresholdDb / 20);
+        this.peakLimit = rmsLimit * PEAK_HEADROOM;
+    }
+
+    public TailDetector(AudioFormat format) {
+        this(format, DEFAULT_THRESHOLD_DB, DEFAULT_HOLD_MILLIS);
+    }
+
+    /**
+     * Forget anything measured so far. Call at the start of each tail.
+     */
+    public void reset() {
+        sumSquares = 0;
+        peak = 0;
+        framesInBlock = 0;
+        quietFrames = 0;
+    }
+
+    /**
+     * Feed the next run of captured audio. Must be whole frames.
+     * @param data audio bytes
+     * @param offset start of the audio in data
+     * @param length number of bytes
+     */
+    public void process(byte[] data, int offset, int length) {
+        int samplesPerFrame = frameSize / sampleBytes;
+        for (int pos = offset; pos + frameSize <= offset + length; pos += frameSize) {
+            for (int c = 0; c < samplesPerFrame; c++) {
+                int sample = AudioHelp.sampleAt(data, pos + c * sampleBytes, sampleBytes);
+                sumSquares += (double) sample * sample;
+                int magnitude = Math.abs(sample);
+                if (magnitude > peak) {
+                    peak = magnitude;
+                }
+            }
+            if (++framesInBlock == blockFrames) {
+                endBlock(samplesPerFrame);
+            }
+        }
+    }
+
+    private void endBlock(int samplesPerFrame) {
+        double rms = Math.sqrt(sumSquares / (framesInBlock * samplesPerFrame));
+        if (rms < rmsLimit && peak < peakLimit) {
+            quietFrames += framesInBlock;
+        }
+        else {
+            quietFrames = 0;
+        }
+        sumSquares = 0;
+        peak = 0;
+        framesInBlock = 0;
+    }
+
+    /**
+     * @return true once the audio has stayed below the threshold for the hold time
+     */
+    public boolean isSilent() {
+        return quietFrames >= holdFrames;
+    }
+
+    public double getThresholdDb() {
+        return thresholdDb;
+    }
+
+    public int getHoldMillis() {
+        return holdMillis;
+    }
+}
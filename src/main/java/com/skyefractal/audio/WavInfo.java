@@ -0,0 +1,115 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where the audio is in a wav file and what format it is in. Only the fmt and data chunks are looked at, so
+ * it reads any PCM or float wav, not just the ones {@link WavWriter} makes.
+ */
+public class WavInfo {
+
+    private static final int RIFF = 0x46464952;
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746D66;
+    private static final int DATA = 0x61746164;
+
+    private final AudioFormat format;
+    private final long dataOffset;
+    private final long dataLength;
+
+    private WavInfo(AudioFormat format, long dataOffset, long dataLength) {
+        this.format = format;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return position of the first audio byte in the file
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return number of audio bytes, always whole frames
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public long getFrames() {
+        return dataLength / format.getFrameSize();
+    }
+
+    /**
+     * @param channel the open wav file
+     * @param file the same file, for error messages
+     * @throws IOException if it is not a wav file or has no audio
+     */
+    public static WavInfo read(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0, file);
+        if (header.getInt(0) != RIFF || header.getInt(8) != WAVE) {
+            throw new IOException(file + " is not a wav file");
+        }
+        AudioFormat format = null;
+        long position = 12;
+        ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 8 <= channel.size()) {
+            chunk.clear().limit(8);
+            readFully(channel, chunk, position, file);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            if (id == FMT) {
+                chunk.clear();
+                readFully(channel, chunk, position + 8, file);
+                int tag = chunk.getShort(0);
+                int channels = chunk.getShort(2);
+                int rate = chunk.getInt(4);
+                int bits = chunk.getShort(14);
+                if (tag == 3) {
+                    format = new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, rate, bits, channels,
+                            channels * bits / 8, rate, false);
+                }
+                else if (tag == 1) {
+                    format = new AudioFormat(rate, bits, channels, bits > 8, false);
+                }
+                else {
+                    throw new IOException(file + " has unsupported wav format " + tag);
+                }
+            }
+            else if (id == DATA) {
+                if (format == null) {
+                    throw new IOException(file + " has no format before its data");
+                }
+                //a writer that never closed leaves the size at 0, so take whatever is there
+                long available = channel.size() - position - 8;
+                long length = size == 0 ? available : Math.min(size, available);
+                return new WavInfo(format, position + 8, length - length % format.getFrameSize());
+            }
+            //chunks are padded to an even length
+            position += 8 + size + (size & 1);
+        }
+        throw new IOException(file + " has no audio");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, File file)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException(file + " ends in the middle of its header");
+            }
+            position += count;
+        }
+    }
+}
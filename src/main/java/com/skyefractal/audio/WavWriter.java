@@ -0,0 +1,209 @@
+package com.skyefractal.audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes a PCM WAV file incrementally. A header with zero sizes is written when the file is opened, audio
+ * is appended as it arrives and the RIFF and data chunk sizes are patched in when the writer is closed.
+ * Heap use stays the same no matter how long the take is.
+ */
+public class WavWriter implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(WavWriter.class);
+    public static final int HEADER_SIZE = 44;
+    //RIFF sizes are unsigned 32 bit
+    private static final long MAX_DATA_BYTES = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    private final FileChannel channel;
+    private final AudioFormat format;
+    private final File file;
+    private long dataBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * Create the file (truncating any existing one) and write a placeholder header.
+     * @param file the wav file to write
+     * @param format signed little endian PCM (or unsigned for 8 bit), or 32 bit little endian float
+     * @throws IOException if the file cannot be created
+     */
+    public WavWriter(File file, AudioFormat format) throws IOException {
+        checkFormat(format);
+        this.file = file;
+        this.format = format;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(header(0), 0);
+    }
+
+    private static void checkFormat(AudioFormat format) {
+        if (format.getSampleSizeInBits() == 8) {
+            if (!AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding())) {
+                throw new IllegalArgumentException("8 bit wav data must be unsigned: " + format);
+            }
+        }
+        else if (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding())) {
+            if (format.getSampleSizeInBits() != 32 || format.isBigEndian()) {
+                throw new IllegalArgumentException("float wav data must be 32 bit little endian: " + format);
+            }
+        }
+        else if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.isBigEndian()) {
+            throw new IllegalArgumentException("wav data must be signed little endian PCM: " + format);
+        }
+    }
+
+    /**
+     * Append audio to the data chunk. Only whole frames should be written so the file stays valid.
+     * @param data audio bytes in the format given at construction
+     * @param offset start of the audio in data
+     * @param length number of bytes to append
+     * @throws IOException if the write fails or the file would exceed the 4GB wav limit
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Append the remaining bytes of a buffer to the data chunk.
+     * @param data audio in the format given at construction
+     * @throws IOException if the write fails or the file would exceed the 4GB wav limit
+     */
+    public void write(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (dataBytes + length > MAX_DATA_BYTES) {
+            throw new IOException("wav file " + file + " would exceed the 4GB RIFF limit");
+        }
+        writeFully(data, HEADER_SIZE + dataBytes);
+        dataBytes += length;
+    }
+
+    /**
+     * Append audio straight from another file without copying it through the heap.
+     * @param source channel to copy from
+     * @param position where in the source the audio starts
+     * @param length number of bytes to append
+     * @throws IOException if the copy fails or the source is too short
+     */
+    public void transferFrom(FileChannel source, long position, long length) throws IOException {
+        if (dataBytes + length > MAX_DATA_BYTES) {
+            throw new IOException("wav file " + file + " would exceed the 4GB RIFF limit");
+        }
+        long copied = 0;
+        while (copied < length) {
+            long count = channel.transferFrom(source.position(position + copied), HEADER_SIZE + dataBytes + copied,
+                    length - copied);
+            if (count <= 0) {
+                throw new IOException("source ended " + (length - copied) + " bytes early copying into " + file);
+            }
+            copied += count;
+        }
+        dataBytes += length;
+    }
+
+    /**
+     * Append silence. Handy for pre-roll or for padding between regions.
+     * @param frames number of silent frames to write
+     * @throws IOException if the write fails
+     */
+    public void writeSilence(long frames) throws IOException {
+        byte fill = silence(format);
+        byte[] zeros = new byte[frameSize() * 1024];
+        if (fill != 0) {
+            Arrays.fill(zeros, fill);
+        }
+        long remaining = frames * frameSize();
+        while (remaining > 0) {
+            int length = (int) Math.min(remaining, zeros.length);
+            write(zeros, 0, length);
+            remaining -= length;
+        }
+    }
+
+    /**
+     * @return the byte that fills a buffer with silence in this format
+     */
+    public static byte silence(AudioFormat format) {
+        //unsigned 8 bit silence is 0x80, everything else is zero
+        return format.getSampleSizeInBits() == 8 ? (byte) 0x80 : 0;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private int frameSize() {
+        return format.getChannels() * ((format.getSampleSizeInBits() + 7) / 8);
+    }
+
+    private ByteBuffer header(long dataLength) {
+        int blockAlign = frameSize();
+        int sampleRate = (int) format.getSampleRate();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[]{'R', 'I', 'F', 'F'});
+        header.putInt((int) (dataLength + HEADER_SIZE - 8));
+        header.put(new byte[]{'W', 'A', 'V', 'E'});
+        header.put(new byte[]{'f', 'm', 't', ' '});
+        header.putInt(16);
+        //1 = PCM, 3 = IEEE float
+        header.putShort((short) (AudioFormat.Encoding.PCM_FLOAT.equals(format.getEncoding()) ? 3 : 1));
+        header.putShort((short) format.getChannels());
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) format.getSampleSizeInBits());
+        header.put(new byte[]{'d', 'a', 't', 'a'});
+        header.putInt((int) dataLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @return number of audio bytes written so far (excludes the header)
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * @return number of whole frames written so far
+     */
+    public long getFrames() {
+        return dataBytes / frameSize();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Patch the header with the final sizes and close the file. Safe to call more than once.
+     * @throws IOException if the header cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeFully(header(dataBytes), 0);
+            channel.force(false);
+            logger.debug("wrote " + dataBytes + " bytes of audio to " + file);
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.skyefractal.daemon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One job sent to the daemon: the same arguments as a single run of the app, i.e.
+ * <code>-r song.mid "Express  128: Port" 1 MOTU --flac</code>, and when it was queued, started and finished.
+ */
+public class Job {
+
+    //the working directory's recording_N.wav stems, manifest and metrics. one recording session at a time.
+    static final String STEMS = "stems";
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final long id = ids.incrementAndGet();
+    private final String[] args;
+    private final String from;
+    private final long queuedNanos = System.nanoTime();
+    private volatile long startedNanos = 0;
+    private volatile long finishedNanos = 0;
+    private volatile Throwable failure;
+
+    /**
+     * @param args the mode, its positional arguments and any -- options
+     * @param from where the job came from, for the log
+     */
+    public Job(String[] args, String from) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("empty job");
+        }
+        this.args = args;
+        this.from = from;
+    }
+
+    /**
+     * Split a job line into arguments at spaces. Double quotes keep spaces in an argument, as in a shell.
+     * @param line i.e. <code>-p song.mid "Express  128: Port" 1</code>
+     */
+    public static String[] parse(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = new StringBuilder();
+        boolean quoted = false;
+        boolean any = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                any = true;
+            }
+            else if (Character.isWhitespace(c) && !quoted) {
+                if (any) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    any = false;
+                }
+            }
+            else {
+                arg.append(c);
+                any = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote in " + line);
+        }
+        if (any) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * What the job needs to itself while it runs: MIDI ports as "midi:interface port", audio inputs as
+     * "audio:mixer" and, for anything that writes stems to the working directory or mixes the stems there,
+     * {@link #STEMS}. Jobs that share none of these can run at the same time. Splitting, and mixing stems kept
+     * anywhere else, need nothing.
+     * @return the resources in the order they are locked
+     */
+    public SortedSet<String> resources() {
+        SortedSet<String> resources = new TreeSet<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        String mode = positional.get(0);
+        if (mode.equals("-p") && positional.size() > 3) {
+            resources.add("midi:" + positional.get(2) + " " + positional.get(3).trim());
+        }
+        else if (mode.equals("-r") && positional.size() > 4) {
+            resources.add(STEMS);
+            resources.add("midi:" + positional.get(2) + " " + positional.get(3).trim());
+            resources.add("audio:" + positional.get(4));
+        }
+        else if (mode.equals("-m")) {
+            resources.add(STEMS);
+            for (String rig : positional.subList(Math.min(2, positional.size()), positional.size())) {
+                String[] parts = rig.split("\\|");
+                if (parts.length == 3) {
+                    resources.add("midi:" + parts[0] + " " + parts[1].trim());
+                    resources.add("audio:" + parts[2]);
+                }
+            }
+        }
+        else if (mode.equals("-c")) {
+            resources.add(STEMS);
+            if (positional.size() > 2 && !positional.get(2).startsWith("loopback")) {
+                resources.add("audio:" + positional.get(2));
+                for (String port : positional.subList(Math.min(4, positional.size()), positional.size())) {
+                    String[] parts = port.split("\\|");
+                    if (parts.length == 2) {
+                        resources.add("midi:" + parts[0] + " " + parts[1].trim());
+                    }
+                }
+            }
+        }
+        else if (mode.equals("-o") || mode.equals("-r")) {
+            resources.add(STEMS);
+        }
+        else if (mode.equals("-x") && positional.size() > 1 && isWorkingDir(positional.get(1))) {
+            //a session recording there would be mixed half written
+            resources.add(STEMS);
+        }
+        return resources;
+    }
+
+    private static boolean isWorkingDir(String dir) {
+        return new File(dir).getAbsoluteFile().toPath().normalize().equals(
+                new File("").getAbsoluteFile().toPath().normalize());
+    }
+
+    void started() {
+        startedNanos = System.nanoTime();
+    }
+
+    void finished(Throwable failure) {
+        this.failure = failure;
+        finishedNanos = System.nanoTime();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String[] getArgs() {
+        return args.clone();
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return null unless the job threw
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return time from being queued to starting, or to now if it has not started
+     */
+    public double getQueueMillis() {
+        return ((startedNanos != 0 ? startedNanos : System.nanoTime()) - queuedNanos) / 1e6;
+    }
+
+    /**
+     * @return time from starting to finishing, or to now if it is still running
+     */
+    public double getServiceMillis() {
+        if (startedNanos == 0) {
+            return 0;
+        }
+        return ((finishedNanos != 0 ? finishedNanos : System.nanoTime()) - startedNanos) / 1e6;
+    }
+
+    /**
+     * @return one line on how the job went, as sent back to whoever queued it
+     */
+    public String report() {
+        String outcome = failure == null ? "ok" : "failed: " + failure;
+        return String.format("job %d %s, queued %.1f ms, ran %.1f ms", id, outcome, getQueueMillis(),
+                getServiceMillis());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder("job ").append(id).append(':');
+        for (String arg : args) {
+            line.append(' ').append(arg.contains(" ") ? '"' + arg + '"' : arg);
+        }
+        return line.toString();
+    }
+}
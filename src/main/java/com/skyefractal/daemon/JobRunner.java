@@ -0,0 +1,199 @@
+package com.skyefractal.daemon;
+
+import com.skyefractal.App;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the daemon's jobs on a few worker threads. A job only goes to a worker once every resource it needs (see
+ * {@link Job#resources()}) is free, and holds them all until it is done, so workers never sit waiting on a port
+ * while other jobs could run. Jobs on different synths, or that need no hardware at all, run side by side; jobs
+ * that share a port, an input or the working directory's stems run one after another in the order they were
+ * queued.
+ */
+public class JobRunner implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(JobRunner.class);
+
+    /**
+     * Told when a job is done, on the worker thread that ran it.
+     */
+    public interface Listener {
+        void finished(Job job);
+    }
+
+    /**
+     * A queued job and what it needs.
+     */
+    private static class Waiting {
+        final Job job;
+        final Listener listener;
+        final Set<String> resources;
+        boolean blocked = false;
+
+        Waiting(Job job, Listener listener) {
+            this.job = job;
+            this.listener = listener;
+            this.resources = job.resources();
+        }
+    }
+
+    private final ExecutorService workers;
+    private final int threads;
+    //in the order they were queued
+    private final List<Waiting> queue = new LinkedList<>();
+    //held by running jobs
+    private final Set<String> busy = new HashSet<>();
+    private boolean closed = false;
+    private int running = 0;
+    private long done = 0;
+    private double totalQueueMillis = 0;
+    private double totalServiceMillis = 0;
+
+    /**
+     * @param threads most jobs that can run at once
+     */
+    public JobRunner(int threads) {
+        this.threads = threads;
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "job-" + count.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Queue a job.
+     * @param listener told when the job is done, or null
+     * @throws RejectedExecutionException once the runner is closed
+     */
+    public synchronized void submit(Job job, Listener listener) {
+        if (closed) {
+            throw new RejectedExecutionException("not taking jobs, " + job + " dropped");
+        }
+        logger.info("queued " + job + " from " + job.getFrom());
+        queue.add(new Waiting(job, listener));
+        dispatch();
+    }
+
+    /**
+     * Start every queued job whose resources are free, while there are workers for them. A job may not pass
+     * an earlier one that wants any of the same resources.
+     */
+    private synchronized void dispatch() {
+        Set<String> wanted = new HashSet<>();
+        Iterator<Waiting> waiting = queue.iterator();
+        while (waiting.hasNext() && running < threads) {
+            final Waiting next = waiting.next();
+            if (Collections.disjoint(next.resources, busy) && Collections.disjoint(next.resources, wanted)) {
+                waiting.remove();
+                busy.addAll(next.resources);
+                running++;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        JobRunner.this.run(next);
+                    }
+                });
+            }
+            else {
+                if (!next.blocked) {
+                    next.blocked = true;
+                    logger.info("job " + next.job.getId() + " waiting for " + next.resources);
+                }
+                wanted.addAll(next.resources);
+            }
+        }
+    }
+
+    private void run(Waiting waiting) {
+        Job job = waiting.job;
+        Throwable failure = null;
+        try {
+            job.started();
+            execute(job);
+        }
+        catch (Exception e) {
+            failure = e;
+            logger.error(job + " failed", e);
+        }
+        finally {
+            job.finished(failure);
+            finished(waiting);
+        }
+        logger.info(job.report());
+        if (waiting.listener != null) {
+            waiting.listener.finished(job);
+        }
+    }
+
+    /**
+     * Run the job on this worker, with its resources held.
+     */
+    void execute(Job job) throws Exception {
+        App.run(job.getArgs());
+    }
+
+    private synchronized void finished(Waiting waiting) {
+        Job job = waiting.job;
+        busy.removeAll(waiting.resources);
+        running--;
+        done++;
+        totalQueueMillis += job.getQueueMillis();
+        totalServiceMillis += job.getServiceMillis();
+        dispatch();
+        notifyAll();
+    }
+
+    /**
+     * @return one line on the jobs run so far
+     */
+    public synchronized String status() {
+        return String.format("%d jobs done, %d running, %d waiting, mean queue %.1f ms, mean service %.1f ms",
+                done, running, queue.size(), done == 0 ? 0 : totalQueueMillis / done,
+                done == 0 ? 0 : totalServiceMillis / done);
+    }
+
+    /**
+     * Stop taking jobs and wait for the queued ones to finish.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (this) {
+                closed = true;
+                //queued jobs only reach the workers as others finish
+                while (!queue.isEmpty()) {
+                    wait(TimeUnit.SECONDS.toMillis(10));
+                    if (!queue.isEmpty()) {
+                        logger.info("waiting for jobs to finish, " + status());
+                    }
+                }
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.info("waiting for jobs to finish, " + status());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.skyefractal.daemon;
+
+import com.skyefractal.device.DeviceRegistry;
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.sim.SimulatedStudio;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import javax.sound.midi.Sequencer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stays up and runs jobs, so a script that re-records or re-splits many files pays for starting the JVM and
+ * finding the devices once instead of for every file. Devices are listed and the sequencer loaded before the
+ * first job, and MIDI ports stay open in the {@link DeviceRegistry} from one job to the next.
+ *
+ * A job is one line with the same arguments as a single run, i.e. <code>-r song.mid "Express  128: Port" 1
+ * MOTU</code>. Jobs come in on a local socket, one per line, with a "queued" line sent straight back and a
+ * report line once each has run, or as *.job files dropped into a watched directory, with the report written
+ * next to it as a .result file. A line that just says "shutdown" stops the daemon once the queued jobs are
+ * done. See {@link JobRunner} for which jobs can run at the same time.
+ */
+@Command(name = "-d", mixinStandardHelpOptions = true,
+        description = "Run jobs sent over a local socket or dropped into a directory, with the devices kept open.")
+public class SessionDaemon implements Callable<Integer> {
+
+    private static final Logger logger = LogManager.getLogger(SessionDaemon.class);
+    public static final int DEFAULT_PORT = 7478;
+
+    @Option(names = "--port", description = "local TCP port to take jobs on, 0 for none. Default ${DEFAULT-VALUE}.")
+    private int port = DEFAULT_PORT;
+
+    @Option(names = "--jobs", description = "directory to watch for *.job files")
+    private File jobDir;
+
+    @Option(names = "--workers", description = "most jobs run at once. Default ${DEFAULT-VALUE}.")
+    private int workers = 4;
+
+    @Option(names = "--open", description = "a rig to open before the first job, as interface|port|mixer")
+    private List<String> rigs = new ArrayList<>();
+
+    @Option(names = "--sim", description = "install the simulated synths and inputs")
+    private boolean sim;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile ServerSocket server;
+    private JobRunner runner;
+
+    @Override
+    public Integer call() throws Exception {
+        if (port <= 0 && jobDir == null) {
+            logger.error("nothing to take jobs from, give a --port or a --jobs directory");
+            return 2;
+        }
+        warm();
+        runner = new JobRunner(workers);
+        List<Thread> sources = new ArrayList<>();
+        if (jobDir != null) {
+            if (!jobDir.isDirectory() && !jobDir.mkdirs()) {
+                throw new IOException("could not create job directory " + jobDir);
+            }
+            sources.add(start("daemon-jobs", new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            }));
+        }
+        if (port > 0) {
+            server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            logger.info("taking jobs on " + server.getLocalSocketAddress());
+            sources.add(start("daemon-socket", new Runnable() {
+                @Override
+                public void run() {
+                    serve();
+                }
+            }));
+        }
+        stopped.await();
+        for (Thread source : sources) {
+            source.join();
+        }
+        runner.close();
+        logger.info("daemon stopped, " + runner.status());
+        DeviceRegistry.get().close();
+        return 0;
+    }
+
+    /**
+     * Do the slow parts of starting a session once, before any job asks for them.
+     */
+    private void warm() throws Exception {
+        long start = System.nanoTime();
+        SessionMetrics.get().register();
+        DeviceRegistry devices = DeviceRegistry.get();
+        if (sim) {
+            devices.install(new SimulatedStudio(SimulatedStudio.DEFAULT_PORTS, 0, 0, 0));
+        }
+        devices.getMidiDevices();
+        devices.getMixers();
+        //loads the sequencer and starts its thread, so the first job's player opens as fast as the rest
+        Sequencer sequencer = devices.getSequencer();
+        sequencer.open();
+        sequencer.close();
+        for (String rig : rigs) {
+            String[] parts = rig.split("\\|");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("--open takes interface|port|mixer: " + rig);
+            }
+            devices.getReceiver(Integer.parseInt(parts[1].trim()), parts[0]);
+            devices.getMixer(parts[2]);
+        }
+        logger.info(String.format("daemon ready in %.1f ms", (System.nanoTime() - start) / 1e6));
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stop taking jobs. The ones already queued still run.
+     */
+    public void stop() {
+        logger.info("shutting down");
+        stopped.countDown();
+        ServerSocket socket = server;
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                logger.debug("closing the job socket", e);
+            }
+        }
+    }
+
+    private boolean isStopped() {
+        return stopped.getCount() == 0;
+    }
+
+    private void serve() {
+        while (!isStopped()) {
+            try {
+                final Socket client = server.accept();
+                start("daemon-client-" + client.getPort(), new Runnable() {
+                    @Override
+                    public void run() {
+                        new Connection(client).run();
+                    }
+                });
+            }
+            catch (SocketException e) {
+                //closed by stop()
+                break;
+            }
+            catch (IOException e) {
+                logger.warn("could not accept a job connection", e);
+            }
+        }
+    }
+
+    /**
+     * One client. Reads job lines until the client stops sending, then stays open until its jobs are done.
+     */
+    private class Connection implements JobRunner.Listener {
+        private final Socket socket;
+        private PrintWriter out;
+        private int pending = 0;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            String from = "socket " + socket.getRemoteSocketAddress();
+            try (Socket closing = socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                         StandardCharsets.UTF_8))) {
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+                        true);
+                String line;
+                while (!isStopped() && (line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    if (line.equals("shutdown")) {
+                        reply("shutting down once queued jobs are done");
+                        stop();
+                        break;
+                    }
+                    if (line.equals("status")) {
+                        reply(runner.status());
+                        continue;
+                    }
+                    Job job;
+                    try {
+                        job = new Job(Job.parse(line), from);
+                    }
+                    catch (IllegalArgumentException e) {
+                        reply("error " + e.getMessage());
+                        continue;
+                    }
+                    synchronized (this) {
+                        pending++;
+                    }
+                    reply("queued " + job.getId());
+                    runner.submit(job, this);
+                }
+                synchronized (this) {
+                    while (pending > 0) {
+                        wait();
+                    }
+                }
+            }
+            catch (IOException e) {
+                logger.warn("lost job connection " + from, e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private synchronized void reply(String line) {
+            out.println(line);
+        }
+
+        @Override
+        public synchronized void finished(Job job) {
+            reply(job.report());
+            pending--;
+            notifyAll();
+        }
+    }
+
+    private void watch() {
+        Path dir = jobDir.toPath();
+        try (WatchService watcher = dir.getFileSystem().newWatchService()) {
+            //modified too, for files written in place whose first event arrived before their contents
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.info("taking jobs from " + dir.toAbsolutePath());
+            //anything left from before the daemon started
+            try (DirectoryStream<Path> waiting = Files.newDirectoryStream(dir, "*.job")) {
+                for (Path file : waiting) {
+                    take(file);
+                }
+            }
+            while (!isStopped()) {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.context() instanceof Path && event.context().toString().endsWith(".job")) {
+                        take(dir.resolve((Path) event.context()));
+                    }
+                }
+                key.reset();
+            }
+        }
+        catch (IOException e) {
+            logger.error("stopped watching " + dir, e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue the job in a .job file. The file is deleted once it is read, and the report is written to a .result
+     * file with the same name when the job is done. An empty file is left for its next event. Job files are best
+     * written elsewhere and moved in, so they are never read half written.
+     */
+    private void take(Path file) {
+        String name = file.getFileName().toString();
+        final Path result = file.resolveSibling(name.substring(0, name.length() - ".job".length()) + ".result");
+        String line = "";
+        try {
+            for (String candidate : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!candidate.trim().isEmpty()) {
+                    line = candidate.trim();
+                    break;
+                }
+            }
+            if (line.isEmpty()) {
+                return;
+            }
+            Files.delete(file);
+        }
+        catch (IOException e) {
+            //picked up by an earlier event, or taken away again
+            logger.debug("could not take " + file, e);
+            return;
+        }
+        if (line.equals("shutdown")) {
+            stop();
+            return;
+        }
+        try {
+            runner.submit(new Job(Job.parse(line), "file " + file), new JobRunner.Listener() {
+                @Override
+                public void finished(Job job) {
+                    write(result, job.report());
+                }
+            });
+        }
+        catch (IllegalArgumentException e) {
+            write(result, "error " + e.getMessage());
+        }
+    }
+
+    private static void write(Path file, String line) {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(line + "\n");
+        }
+        catch (IOException e) {
+            logger.warn("could not write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.skyefractal.device;
+
+import com.skyefractal.sim.SimulatedInput;
+import com.skyefractal.sim.SimulatedStudio;
+import com.skyefractal.sim.SimulatedSynth;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Finds MIDI ports and audio inputs once and hands out the same ones every time after that. Devices are looked
+ * up by the same name matching as {@link com.skyefractal.midi.MidiHelp#getReceiver(int, String)} and
+ * {@link com.skyefractal.audio.AudioHelp#getMixer(String)}, but the device lists are only read once, only the
+ * matching device is opened, and the result is kept under its name so later lookups cost nothing.
+ *
+ * Sequencers from here are never connected to the default synthesizer, so there is no need to silence it. The
+ * synthesizer is only loaded if something asks for it. How long each step takes is logged and kept.
+ *
+ * A {@link SimulatedStudio} can be installed so its stand in synths and inputs are found by the same lookups,
+ * ahead of any real devices, for sessions and benchmarks without hardware.
+ */
+public class DeviceRegistry {
+
+    private static final Logger logger = LogManager.getLogger(DeviceRegistry.class);
+    private static DeviceRegistry instance;
+
+    private MidiDevice.Info[] midiDevices;
+    private Mixer.Info[] mixers;
+    private final Map<String, Receiver> receivers = new HashMap<>();
+    private final Map<String, Mixer> inputs = new HashMap<>();
+    private final List<MidiDevice> opened = new ArrayList<>();
+    private Synthesizer synthesizer;
+    private final Map<String, Long> timings = new LinkedHashMap<>();
+    //installed stand ins, by the info they are listed under
+    private final Map<MidiDevice.Info, MidiDevice> simulatedDevices = new LinkedHashMap<>();
+    private final Map<Mixer.Info, Mixer> simulatedMixers = new LinkedHashMap<>();
+    private SimulatedStudio studio;
+
+    /**
+     * @return the registry shared by the whole application
+     */
+    public static synchronized DeviceRegistry get() {
+        if (instance == null) {
+            instance = new DeviceRegistry();
+        }
+        return instance;
+    }
+
+    //locks on its own, as getSequencer is called from several jobs at once without the lock
+    private synchronized void time(String step, long start) {
+        long nanos = System.nanoTime() - start;
+        timings.put(step, nanos);
+        logger.info(String.format("%s took %.2f ms", step, nanos / 1e6));
+    }
+
+    /**
+     * Make a studio's stand in synths and inputs visible to every lookup from now on. They are listed before the
+     * real devices, so they win if a name matches both.
+     */
+    public synchronized void install(SimulatedStudio studio) {
+        this.studio = studio;
+        for (SimulatedSynth synth : studio.getSynths()) {
+            simulatedDevices.put(synth.getDeviceInfo(), synth);
+        }
+        for (SimulatedInput input : studio.getInputs()) {
+            simulatedMixers.put(input.getMixerInfo(), input);
+        }
+        //listed again, with the stand ins, next time they are asked for
+        midiDevices = null;
+        mixers = null;
+        logger.info("installed " + studio.getSynths().size() + " simulated synths and inputs");
+    }
+
+    /**
+     * @return the studio installed last, or null if there is none
+     */
+    public synchronized SimulatedStudio getStudio() {
+        return studio;
+    }
+
+    /**
+     * @return every MIDI device on the system, read the first time this is called
+     */
+    public synchronized MidiDevice.Info[] getMidiDevices() {
+        if (midiDevices == null) {
+            long start = System.nanoTime();
+            List<MidiDevice.Info> all = new ArrayList<>(simulatedDevices.keySet());
+            all.addAll(Arrays.asList(MidiSystem.getMidiDeviceInfo()));
+            midiDevices = all.toArray(new MidiDevice.Info[all.size()]);
+            time("list " + midiDevices.length + " midi devices", start);
+        }
+        return midiDevices;
+    }
+
+    /**
+     * @return every audio mixer on the system, read the first time this is called
+     */
+    public synchronized Mixer.Info[] getMixers() {
+        if (mixers == null) {
+            long start = System.nanoTime();
+            List<Mixer.Info> all = new ArrayList<>(simulatedMixers.keySet());
+            all.addAll(Arrays.asList(AudioSystem.getMixerInfo()));
+            mixers = all.toArray(new Mixer.Info[all.size()]);
+            time("list " + mixers.length + " mixers", start);
+        }
+        return mixers;
+    }
+
+    /**
+     * Get the MIDI Receiver for a given interface name and port number, opening its device the first time.
+     * @param port port number of the interface
+     * @param midiInterfaceName name of interface output, i.e. "Express  128: Port"
+     * @return the receiver. The same one is returned every time.
+     * @throws MidiUnavailableException if no device matches or it cannot be opened
+     */
+    public synchronized Receiver getReceiver(int port, String midiInterfaceName) throws MidiUnavailableException {
+        String key = midiInterfaceName + " " + port;
+        Receiver receiver = receivers.get(key);
+        if (receiver != null) {
+            return receiver;
+        }
+        long start = System.nanoTime();
+        for (MidiDevice.Info info : getMidiDevices()) {
+            //String form is unknown so look for the interface name and port together. not great.
+            if (!info.toString().contains(key)) {
+                continue;
+            }
+            MidiDevice device = simulatedDevices.containsKey(info) ? simulatedDevices.get(info)
+                    : MidiSystem.getMidiDevice(info);
+            //inputs and outputs often share a name. only outputs take receivers.
+            if (device.getMaxReceivers() == 0) {
+                logger.debug("found a matching named port/device, but not a receiver: " + info);
+                continue;
+            }
+            device.open();
+            opened.add(device);
+            receiver = device.getReceiver();
+            receivers.put(key, receiver);
+            time("open midi port " + info, start);
+            return receiver;
+        }
+        throw new MidiUnavailableException("no MIDI receiver matching " + key);
+    }
+
+    /**
+     * Find an audio input by name.
+     * @param mixerName part of the name of the mixer
+     * @return a mixer that can record. The same one is returned every time.
+     * @throws LineUnavailableException if no mixer with that name can record
+     */
+    public synchronized Mixer getMixer(String mixerName) throws LineUnavailableException {
+        Mixer mixer = inputs.get(mixerName);
+        if (mixer != null) {
+            return mixer;
+        }
+        long start = System.nanoTime();
+        Line.Info targetInfo = new Line.Info(TargetDataLine.class);
+        for (Mixer.Info info : getMixers()) {
+            if (info.toString().contains(mixerName)) {
+                mixer = simulatedMixers.containsKey(info) ? simulatedMixers.get(info) : AudioSystem.getMixer(info);
+                if (mixer.isLineSupported(targetInfo)) {
+                    inputs.put(mixerName, mixer);
+                    time("find mixer input " + info, start);
+                    return mixer;
+                }
+            }
+        }
+        throw new LineUnavailableException("no recording mixer matching " + mixerName);
+    }
+
+    /**
+     * @return a new, unopened line from the named audio input
+     */
+    public TargetDataLine getLine(String mixerName, AudioFormat format) throws LineUnavailableException {
+        //asked of the mixer itself, which AudioSystem would not find if it is simulated
+        return (TargetDataLine) getMixer(mixerName).getLine(new DataLine.Info(TargetDataLine.class, format));
+    }
+
+    /**
+     * @return a new sequencer that is not connected to any synthesizer. Not open.
+     */
+    public Sequencer getSequencer() throws MidiUnavailableException {
+        long start = System.nanoTime();
+        Sequencer sequencer = MidiSystem.getSequencer(false);
+        time("get sequencer", start);
+        return sequencer;
+    }
+
+    /**
+     * @return the software synthesizer, opened the first time it is asked for
+     */
+    public synchronized Synthesizer getSynthesizer() throws MidiUnavailableException {
+        if (synthesizer == null) {
+            long start = System.nanoTime();
+            synthesizer = MidiSystem.getSynthesizer();
+            synthesizer.open();
+            time("open synthesizer", start);
+        }
+        return synthesizer;
+    }
+
+    /**
+     * @return how long each step took in nanoseconds, in the order they happened
+     */
+    public synchronized Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(timings));
+    }
+
+    /**
+     * Close every device this registry opened and forget everything it found.
+     */
+    public synchronized void close() {
+        for (MidiDevice device : opened) {
+            device.close();
+        }
+        opened.clear();
+        receivers.clear();
+        inputs.clear();
+        if (synthesizer != null) {
+            synthesizer.close();
+            synthesizer = null;
+        }
+        midiDevices = null;
+        mixers = null;
+        simulatedDevices.clear();
+        simulatedMixers.clear();
+        studio = null;
+    }
+}
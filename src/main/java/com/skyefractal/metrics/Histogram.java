@@ -0,0 +1,84 @@
+package com.skyefractal.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Counts values in equal width buckets, like {@link com.skyefractal.midi.JitterHistogram} but linear, for
+ * bounded quantities such as how full a buffer is. Values past the last bucket go in an overflow bucket.
+ */
+public class Histogram {
+
+    private final long width;
+    private final long[] counts;
+    private long count = 0;
+    private long total = 0;
+    private long max = 0;
+
+    /**
+     * @param width range of values each bucket holds
+     * @param buckets number of buckets before the overflow bucket
+     */
+    public Histogram(long width, int buckets) {
+        this.width = width;
+        this.counts = new long[buckets + 1];
+    }
+
+    /**
+     * @param value anything from 0 up. Negative values count as 0.
+     */
+    public synchronized void record(long value) {
+        long v = Math.max(0, value);
+        counts[(int) Math.min(v / width, counts.length - 1)]++;
+        count++;
+        total += v;
+        max = Math.max(max, v);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : total / (double) count;
+    }
+
+    /**
+     * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+     * @return upper bound of the bucket holding that fraction of values
+     */
+    public synchronized long percentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= target && seen > 0) {
+                return b < counts.length - 1 ? Math.min((b + 1) * width, max) : max;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return count in each bucket, bucket b holding values from b * width up to (b + 1) * width
+     */
+    public synchronized long[] getCounts() {
+        return counts.clone();
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d values, mean %.1f, p50 <= %d, p99 <= %d, max %d", count, getMean(), percentile(0.5),
+                percentile(0.99), max);
+    }
+}
@@ -0,0 +1,295 @@
+package com.skyefractal.metrics;
+
+import com.skyefractal.midi.JitterHistogram;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counters and histograms for a recording session: how full the line buffers get, lost chunks and short reads,
+ * bytes captured, how late MIDI events go out and how long each take spends setting up, recording and
+ * finishing. The recorders and players report into the shared instance as they run. It can be watched live over
+ * JMX and is written out as a JSON summary at the end of the session.
+ *
+ * Everything here is updated at most once per chunk or once per event, so it costs nothing measurable.
+ */
+public class SessionMetrics implements SessionMetricsMXBean {
+
+    private static final Logger logger = LogManager.getLogger(SessionMetrics.class);
+    public static final String OBJECT_NAME = "com.skyefractal:type=SessionMetrics";
+    private static SessionMetrics instance;
+
+    private volatile long startNanos = System.nanoTime();
+    private volatile long startMillis = System.currentTimeMillis();
+    private final AtomicLong capturedBytes = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong shortReads = new AtomicLong();
+    //percent, in steps of 10
+    private final Histogram lineFill = new Histogram(10, 10);
+    private final JitterHistogram dispatchLag = new JitterHistogram();
+    private final List<TakeMetrics> takes = new ArrayList<>();
+
+    /**
+     * @return the metrics shared by the whole application
+     */
+    public static synchronized SessionMetrics get() {
+        if (instance == null) {
+            instance = new SessionMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Publish over JMX. Does nothing if it is already registered.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            logger.debug("session metrics registered as " + OBJECT_NAME);
+        }
+        catch (InstanceAlreadyExistsException e) {
+            logger.debug("session metrics already registered");
+        }
+        catch (JMException e) {
+            logger.warn("could not register session metrics with JMX", e);
+        }
+    }
+
+    /**
+     * Start metrics for a new take.
+     * @param track the track being recorded
+     */
+    public TakeMetrics take(int track) {
+        TakeMetrics take = new TakeMetrics(track);
+        synchronized (takes) {
+            takes.add(take);
+        }
+        return take;
+    }
+
+    /**
+     * Record how full a line's buffer is. Call just before reading it.
+     * @param available bytes waiting in the buffer
+     * @param bufferSize size of the buffer in bytes
+     * @return fill level in percent
+     */
+    public int lineFill(int available, int bufferSize) {
+        int percent = bufferSize <= 0 ? 0 : (int) (available * 100L / bufferSize);
+        lineFill.record(percent);
+        return percent;
+    }
+
+    public void captured(long bytes) {
+        capturedBytes.addAndGet(bytes);
+    }
+
+    public void overrun() {
+        overruns.incrementAndGet();
+    }
+
+    public void shortRead() {
+        shortReads.incrementAndGet();
+    }
+
+    /**
+     * @param lateNanos how long after its due time a MIDI event was sent
+     */
+    public void dispatchLag(long lateNanos) {
+        dispatchLag.record(lateNanos);
+    }
+
+    @Override
+    public double getSessionSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public long getCapturedBytes() {
+        return capturedBytes.get();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        double seconds = getSessionSeconds();
+        return seconds > 0 ? capturedBytes.get() / seconds : 0;
+    }
+
+    @Override
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    @Override
+    public long getShortReads() {
+        return shortReads.get();
+    }
+
+    @Override
+    public double getLineFillMeanPercent() {
+        return lineFill.getMean();
+    }
+
+    @Override
+    public long getLineFillP99Percent() {
+        return lineFill.percentile(0.99);
+    }
+
+    @Override
+    public long getLineFillMaxPercent() {
+        return lineFill.getMax();
+    }
+
+    @Override
+    public long getDispatchedEvents() {
+        return dispatchLag.getCount();
+    }
+
+    @Override
+    public long getDispatchLagP99Micros() {
+        return dispatchLag.percentileMicros(0.99);
+    }
+
+    @Override
+    public double getDispatchLagMaxMicros() {
+        return dispatchLag.getMaxNanos() / 1000.0;
+    }
+
+    @Override
+    public TakeMetrics[] getTakes() {
+        synchronized (takes) {
+            return takes.toArray(new TakeMetrics[takes.size()]);
+        }
+    }
+
+    /**
+     * Forget everything and start timing a new session.
+     */
+    @Override
+    public void reset() {
+        startNanos = System.nanoTime();
+        startMillis = System.currentTimeMillis();
+        capturedBytes.set(0);
+        overruns.set(0);
+        shortReads.set(0);
+        lineFill.reset();
+        dispatchLag.reset();
+        synchronized (takes) {
+            takes.clear();
+        }
+    }
+
+    /**
+     * @return the whole session as a JSON object
+     */
+    public String toJson() {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ROOT);
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\n");
+        json.append("  \"started\": \"").append(iso.format(new Date(startMillis))).append("\",\n");
+        field(json, "seconds", getSessionSeconds());
+        field(json, "capturedBytes", getCapturedBytes());
+        field(json, "bytesPerSecond", getBytesPerSecond());
+        field(json, "overruns", getOverruns());
+        field(json, "shortReads", getShortReads());
+        json.append("  \"lineFillPercent\": {\"count\": ").append(lineFill.getCount())
+                .append(", \"mean\": ").append(number(lineFill.getMean()))
+                .append(", \"p99\": ").append(lineFill.percentile(0.99))
+                .append(", \"max\": ").append(lineFill.getMax())
+                .append(", \"buckets\": ").append(array(lineFill.getCounts())).append("},\n");
+        json.append("  \"dispatchLagMicros\": {\"count\": ").append(dispatchLag.getCount())
+                .append(", \"mean\": ").append(number(dispatchLag.getMeanMicros()))
+                .append(", \"p50\": ").append(dispatchLag.percentileMicros(0.5))
+                .append(", \"p99\": ").append(dispatchLag.percentileMicros(0.99))
+                .append(", \"max\": ").append(number(dispatchLag.getMaxNanos() / 1000.0))
+                .append(", \"buckets\": ").append(array(dispatchLag.getCounts())).append("},\n");
+        json.append("  \"takes\": [");
+        TakeMetrics[] all = getTakes();
+        for (int i = 0; i < all.length; i++) {
+            TakeMetrics take = all[i];
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"track\": ").append(take.getTrack())
+                    .append(", \"source\": \"").append(escape(take.getSource())).append('"')
+                    .append(", \"setupMillis\": ").append(number(take.getSetupMillis()))
+                    .append(", \"recordMillis\": ").append(number(take.getRecordMillis()))
+                    .append(", \"finaliseMillis\": ").append(number(take.getFinaliseMillis()))
+                    .append(", \"gapMillis\": ").append(number(take.getGapMillis()))
+                    .append(", \"capturedBytes\": ").append(take.getCapturedBytes())
+                    .append(", \"overruns\": ").append(take.getOverruns())
+                    .append(", \"lostFrames\": ").append(take.getLostFrames())
+                    .append(", \"shortReads\": ").append(take.getShortReads())
+                    .append(", \"maxFillPercent\": ").append(take.getMaxFillPercent()).append('}');
+        }
+        json.append(all.length == 0 ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Write {@link #toJson()} to a file and log the headline numbers.
+     * @param file the summary to create or overwrite
+     */
+    public void writeSummary(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write(toJson());
+        }
+        logger.info(String.format("session: %d takes, %.1f MB captured, %d overruns, %d short reads, line buffer"
+                + " p99 %d%% full, midi lag p99 < %d us. summary in %s", getTakes().length, getCapturedBytes() / 1e6,
+                getOverruns(), getShortReads(), getLineFillP99Percent(), getDispatchLagP99Micros(), file));
+    }
+
+    private static void field(StringBuilder json, String name, long value) {
+        json.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static void field(StringBuilder json, String name, double value) {
+        json.append("  \"").append(name).append("\": ").append(number(value)).append(",\n");
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String array(long[] values) {
+        StringBuilder out = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(values[i]);
+        }
+        return out.append(']').toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package com.skyefractal.metrics;
+
+/**
+ * Live view of a recording session over JMX, registered as {@value SessionMetrics#OBJECT_NAME}.
+ */
+public interface SessionMetricsMXBean {
+
+    double getSessionSeconds();
+
+    long getCapturedBytes();
+
+    double getBytesPerSecond();
+
+    long getOverruns();
+
+    long getShortReads();
+
+    double getLineFillMeanPercent();
+
+    long getLineFillP99Percent();
+
+    long getLineFillMaxPercent();
+
+    long getDispatchedEvents();
+
+    long getDispatchLagP99Micros();
+
+    double getDispatchLagMaxMicros();
+
+    TakeMetrics[] getTakes();
+
+    void reset();
+}
@@ -0,0 +1,130 @@
+package com.skyefractal.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What happened during one take: how long each stage took and how close the capture came to losing audio.
+ * Written by the recording threads and read at any time over JMX, so every field is safe to read while the
+ * take is running.
+ */
+public class TakeMetrics {
+
+    private final int track;
+    private volatile String source = "";
+    private volatile long setupNanos = 0;
+    private volatile long recordNanos = 0;
+    private volatile long finaliseNanos = 0;
+    private volatile long gapNanos = 0;
+    private final AtomicLong capturedBytes = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong lostFrames = new AtomicLong();
+    private final AtomicLong shortReads = new AtomicLong();
+    private volatile int maxFillPercent = 0;
+
+    TakeMetrics(int track) {
+        this.track = track;
+    }
+
+    public int getTrack() {
+        return track;
+    }
+
+    /**
+     * @return the rig or channel group the take was recorded on
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @param setupNanos opening the line and starting playback
+     * @param recordNanos playing the track and its tail
+     * @param finaliseNanos draining the writer and closing the stem
+     */
+    public void setTimings(long setupNanos, long recordNanos, long finaliseNanos) {
+        this.setupNanos = setupNanos;
+        this.recordNanos = recordNanos;
+        this.finaliseNanos = finaliseNanos;
+    }
+
+    public double getSetupMillis() {
+        return setupNanos / 1e6;
+    }
+
+    public double getRecordMillis() {
+        return recordNanos / 1e6;
+    }
+
+    public double getFinaliseMillis() {
+        return finaliseNanos / 1e6;
+    }
+
+    /**
+     * @param gapNanos from the last frame of the previous take on the same line to the start of this one
+     */
+    public void setGapNanos(long gapNanos) {
+        this.gapNanos = gapNanos;
+    }
+
+    public double getGapMillis() {
+        return gapNanos / 1e6;
+    }
+
+    public void captured(long bytes) {
+        capturedBytes.addAndGet(bytes);
+    }
+
+    public long getCapturedBytes() {
+        return capturedBytes.get();
+    }
+
+    /**
+     * A chunk was lost because the stem writer fell behind.
+     */
+    public void overrun() {
+        overruns.incrementAndGet();
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * @param frames audio dropped by an overrun, replaced with silence in the stem
+     */
+    public void lost(long frames) {
+        lostFrames.addAndGet(frames);
+    }
+
+    public long getLostFrames() {
+        return lostFrames.get();
+    }
+
+    /**
+     * A read returned less than was asked for.
+     */
+    public void shortRead() {
+        shortReads.incrementAndGet();
+    }
+
+    public long getShortReads() {
+        return shortReads.get();
+    }
+
+    /**
+     * @param percent how full the line's buffer was before a read
+     */
+    public void fill(int percent) {
+        if (percent > maxFillPercent) {
+            maxFillPercent = percent;
+        }
+    }
+
+    public int getMaxFillPercent() {
+        return maxFillPercent;
+    }
+}
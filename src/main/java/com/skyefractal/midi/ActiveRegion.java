@@ -0,0 +1,103 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A stretch of a track that actually has something playing: from a little before a note on to the last
+ * note off, plus room for the release. A split track is mostly silence, so recording only its active
+ * regions is much quicker than playing it end to end.
+ */
+public class ActiveRegion {
+
+    private final long startTick;
+    private final long endTick;
+    private final long startMicros;
+    private final long endMicros;
+
+    public ActiveRegion(long startTick, long endTick, long startMicros, long endMicros) {
+        this.startTick = startTick;
+        this.endTick = endTick;
+        this.startMicros = startMicros;
+        this.endMicros = endMicros;
+    }
+
+    /**
+     * Find the active regions of a track. Notes closer together than the minimum gap share a region, since
+     * stopping and restarting the sequencer is not worth it for a short rest.
+     * @param track the track to scan
+     * @param tempo tempo map of the sequence the track belongs to
+     * @param leadMicros how far before a note on a region starts
+     * @param minGapMicros shortest silence (note off to next note on) that splits a region in two
+     * @return the regions in time order. startMicros/endMicros cover the notes plus the lead in; the caller
+     * decides how much release tail to keep after endMicros.
+     */
+    public static List<ActiveRegion> find(Track track, TempoMap tempo, long leadMicros, long minGapMicros) {
+        List<ActiveRegion> regions = new ArrayList<>();
+        //notes sounding on each channel/note, so overlapping notes keep a region open
+        int[] sounding = new int[16 * 128];
+        int active = 0;
+        long regionStart = -1;
+        long lastOff = -1;
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (!(event.getMessage() instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage msg = (ShortMessage) event.getMessage();
+            int key = msg.getChannel() * 128 + msg.getData1();
+            long micros = tempo.toMicros(event.getTick());
+            if (msg.getCommand() == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+                if (active == 0 && regionStart >= 0 && micros - lastOff >= minGapMicros) {
+                    regions.add(region(tempo, regionStart, lastOff));
+                    regionStart = -1;
+                }
+                if (regionStart < 0) {
+                    regionStart = Math.max(0, micros - leadMicros);
+                }
+                sounding[key]++;
+                active++;
+            }
+            else if ((msg.getCommand() == ShortMessage.NOTE_OFF || msg.getCommand() == ShortMessage.NOTE_ON)
+                    && sounding[key] > 0) {
+                sounding[key]--;
+                active--;
+                lastOff = micros;
+            }
+        }
+        if (regionStart >= 0) {
+            //a note left on runs to the end of the track
+            long end = active > 0 ? tempo.toMicros(track.ticks()) : lastOff;
+            regions.add(region(tempo, regionStart, end));
+        }
+        return regions;
+    }
+
+    private static ActiveRegion region(TempoMap tempo, long startMicros, long endMicros) {
+        return new ActiveRegion(tempo.toTick(startMicros), tempo.toTick(endMicros), startMicros, endMicros);
+    }
+
+    public long getStartTick() {
+        return startTick;
+    }
+
+    public long getEndTick() {
+        return endTick;
+    }
+
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    public long getEndMicros() {
+        return endMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "region " + startMicros / 1000 + "ms-" + endMicros / 1000 + "ms";
+    }
+}
@@ -0,0 +1,219 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splits every midi file in a directory (or matching a glob) at once, spread over a fork join pool with one
+ * worker per core. Each file is read, split and written by {@link SmfReader}, {@link SmfSplitter} and
+ * {@link SmfWriter} on primitive arrays, into the same stems <code>-s</code> makes: one per source track,
+ * channel and note value with tempo and channel wide events kept. A file that fails is reported and skipped;
+ * the rest of the batch carries on. Timing for each file and overall throughput are logged at the end.
+ */
+public class BatchSplitter {
+
+    private static final Logger logger = LogManager.getLogger(BatchSplitter.class);
+    private static final String SPLIT_SUFFIX = "_split.mid";
+
+    /**
+     * Outcome of splitting one file.
+     */
+    public static class Result {
+        private final Path input;
+        private final Path output;
+        private final long events;
+        private final long nanos;
+        private final Exception failure;
+
+        Result(Path input, Path output, long events, long nanos, Exception failure) {
+            this.input = input;
+            this.output = output;
+            this.events = events;
+            this.nanos = nanos;
+            this.failure = failure;
+        }
+
+        public Path getInput() {
+            return input;
+        }
+
+        public Path getOutput() {
+            return output;
+        }
+
+        /**
+         * @return number of events read from the input
+         */
+        public long getEvents() {
+            return events;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return why the file could not be split, or null if it was
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public BatchSplitter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchSplitter(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Find the files a batch argument refers to.
+     * @param source a directory (every .mid and .midi file in it) or a glob such as exports/*.mid
+     * @return matching files, sorted by name
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<Path> findFiles(String source) throws IOException {
+        Path dir;
+        String glob;
+        Path path = Paths.get(source);
+        if (Files.isDirectory(path)) {
+            dir = path;
+            glob = "*.{mid,midi,MID,MIDI}";
+        }
+        else {
+            dir = path.getParent() != null ? path.getParent() : Paths.get(".");
+            glob = path.getFileName().toString();
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path file : stream) {
+                //don't split our own output again
+                if (Files.isRegularFile(file) && !file.getFileName().toString().endsWith(SPLIT_SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Split all the files. Each output is named after its input with _split.mid on the end.
+     * @param files the midi files to split
+     * @param targetDir where to write the outputs, or null to write each next to its input
+     * @return one result per file, in the same order as files
+     */
+    public List<Result> split(List<Path> files, final Path targetDir) throws InterruptedException {
+        List<Callable<Result>> jobs = new ArrayList<>(files.size());
+        for (final Path file : files) {
+            jobs.add(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return splitOne(file, targetDir);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>(files.size());
+        for (Future<Result> future : pool.invokeAll(jobs)) {
+            try {
+                results.add(future.get());
+            }
+            catch (ExecutionException e) {
+                //splitOne catches everything it expects, so this is a bug
+                throw new IllegalStateException("split job failed", e.getCause());
+            }
+        }
+        logger.info(report(results, System.nanoTime() - start));
+        return results;
+    }
+
+    private Result splitOne(Path input, Path targetDir) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        name = (dot > 0 ? name.substring(0, dot) : name) + SPLIT_SUFFIX;
+        Path output = targetDir != null ? targetDir.resolve(name) : input.resolveSibling(name);
+        long start = System.nanoTime();
+        try {
+            SmfSequence sequence = SmfReader.read(input.toFile());
+            SmfWriter.write(SmfSplitter.split(sequence), output.toFile());
+            return new Result(input, output, sequence.getEventCount(), System.nanoTime() - start, null);
+        }
+        catch (IOException | InvalidMidiDataException | RuntimeException e) {
+            return new Result(input, output, 0, System.nanoTime() - start, e);
+        }
+    }
+
+    /**
+     * Log each file's outcome.
+     * @return the summary line, with the files split and the throughput
+     */
+    static String report(List<Result> results, long nanos) {
+        long events = 0;
+        int failed = 0;
+        for (Result result : results) {
+            if (result.getFailure() == null) {
+                events += result.getEvents();
+                logger.info(String.format("%-40s %8d events %8.2f ms", result.getInput().getFileName(),
+                        result.getEvents(), result.getNanos() / 1e6));
+            }
+            else {
+                failed++;
+                logger.error("failed to split " + result.getInput() + ": " + result.getFailure());
+            }
+        }
+        double seconds = nanos / 1e9;
+        return String.format("split %d of %d files in %.3f s: %.1f files/s, %.0f events/s",
+                results.size() - failed, results.size(), seconds, (results.size() - failed) / seconds,
+                events / seconds);
+    }
+
+    /**
+     * Stop the worker threads.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Split everything matching source.
+     * @param source a directory or glob, see {@link #findFiles(String)}
+     * @param targetDir where to write outputs, or null to write them next to the inputs
+     * @return the results for each file
+     */
+    public static List<Result> splitAll(String source, File targetDir) throws IOException, InterruptedException {
+        List<Path> files = findFiles(source);
+        logger.info("splitting " + files.size() + " midi files from " + source);
+        Path target = null;
+        if (targetDir != null) {
+            target = targetDir.toPath();
+            Files.createDirectories(target);
+        }
+        BatchSplitter splitter = new BatchSplitter();
+        try {
+            return splitter.split(files, target);
+        }
+        finally {
+            splitter.shutdown();
+        }
+    }
+}
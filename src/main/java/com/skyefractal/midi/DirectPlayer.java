@@ -0,0 +1,319 @@
+package com.skyefractal.midi;
+
+import com.skyefractal.metrics.SessionMetrics;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Plays tracks by sending their messages straight to a receiver at the right {@link System#nanoTime()},
+ * instead of going through the JDK sequencer. The time of every event is worked out up front from the
+ * {@link TempoMap}, so playing is just waiting and sending: the player thread parks until shortly before each
+ * event and spins the rest of the way. How late each event went out is kept in a {@link JitterHistogram}.
+ *
+ * Meta events are not sent. When playing starts part way through a track, the latest program, controller and
+ * pitch bend values before that point are sent first so the synth is in the right state. Finishing or stopping
+ * releases a latch, so callers can wait for the end instead of polling.
+ */
+public class DirectPlayer implements TrackPlayer {
+
+    private static final Logger logger = LogManager.getLogger(DirectPlayer.class);
+    //park until this close to an event, then spin. parking is rarely more accurate than a millisecond or so.
+    private static final long SPIN_NANOS = 1000000;
+
+    /**
+     * Events of one track (or all of them) in time order, with their time from the start of the sequence.
+     */
+    private static class Timeline {
+        final long[] ticks;
+        final long[] nanos;
+        final MidiMessage[] messages;
+        final long endTick;
+        final long endNanos;
+
+        Timeline(List<MidiEvent> events, long endTick, TempoMap tempo) {
+            ticks = new long[events.size()];
+            nanos = new long[events.size()];
+            messages = new MidiMessage[events.size()];
+            for (int i = 0; i < events.size(); i++) {
+                ticks[i] = events.get(i).getTick();
+                nanos[i] = tempo.toMicros(ticks[i]) * 1000;
+                messages[i] = events.get(i).getMessage();
+            }
+            this.endTick = endTick;
+            this.endNanos = tempo.toMicros(endTick) * 1000;
+        }
+
+        /**
+         * @return index of the first event at or after tick
+         */
+        int indexOf(long tick) {
+            int i = Arrays.binarySearch(ticks, tick);
+            if (i < 0) {
+                return -i - 1;
+            }
+            //step back over events on the same tick
+            while (i > 0 && ticks[i - 1] == tick) {
+                i--;
+            }
+            return i;
+        }
+    }
+
+    private final Sequence sequence;
+    private final Receiver receiver;
+    private final TempoMap tempo;
+    //one per track, then all tracks merged at the end. built the first time they are played.
+    private final Timeline[] timelines;
+    private final JitterHistogram jitter = new JitterHistogram();
+    //the recording session this plays for, or null
+    private final SessionMetrics metrics;
+    private volatile boolean stopping = false;
+    private volatile CountDownLatch finished = new CountDownLatch(0);
+    private Thread thread;
+
+    /**
+     * @param sequence what to play
+     * @param receiver where to send it
+     */
+    public DirectPlayer(Sequence sequence, Receiver receiver) {
+        this(sequence, receiver, null);
+    }
+
+    /**
+     * @param sequence what to play
+     * @param receiver where to send it
+     * @param metrics the recording session to report dispatch lag to, or null when nothing is being recorded
+     */
+    public DirectPlayer(Sequence sequence, Receiver receiver, SessionMetrics metrics) {
+        this.sequence = sequence;
+        this.receiver = receiver;
+        this.metrics = metrics;
+        this.tempo = new TempoMap(sequence);
+        this.timelines = new Timeline[sequence.getTracks().length + 1];
+    }
+
+    private synchronized Timeline timeline(int track) {
+        int index = track == ALL_TRACKS ? timelines.length - 1 : track;
+        if (timelines[index] == null) {
+            List<MidiEvent> events = new ArrayList<>();
+            Track[] tracks = track == ALL_TRACKS ? sequence.getTracks() : new Track[]{sequence.getTracks()[track]};
+            long endTick = 0;
+            for (Track t : tracks) {
+                for (int i = 0; i < t.size(); i++) {
+                    if (!(t.get(i).getMessage() instanceof MetaMessage)) {
+                        events.add(t.get(i));
+                    }
+                }
+                endTick = Math.max(endTick, t.ticks());
+            }
+            //stable, so events on the same tick keep their track order
+            Collections.sort(events, new Comparator<MidiEvent>() {
+                @Override
+                public int compare(MidiEvent a, MidiEvent b) {
+                    return Long.compare(a.getTick(), b.getTick());
+                }
+            });
+            timelines[index] = new Timeline(events, endTick, tempo);
+        }
+        return timelines[index];
+    }
+
+    @Override
+    public Sequence getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public synchronized void start(final int track, final long fromTick) {
+        if (isPlaying()) {
+            throw new IllegalStateException("already playing");
+        }
+        final Timeline timeline = timeline(track);
+        stopping = false;
+        finished = new CountDownLatch(1);
+        final CountDownLatch done = finished;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    play(timeline, fromTick);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        }, "direct-player-" + track);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs on the player thread.
+     */
+    private void play(Timeline timeline, long fromTick) {
+        int first = timeline.indexOf(fromTick);
+        //notes sounding, by channel * 128 + note, so stopping can turn them off
+        boolean[] sounding = new boolean[16 * 128];
+        chase(timeline, first);
+        long offset = tempo.toMicros(fromTick) * 1000;
+        long base = System.nanoTime();
+        for (int i = first; i < timeline.messages.length && !stopping; i++) {
+            long due = base + timeline.nanos[i] - offset;
+            if (!waitUntil(due)) {
+                break;
+            }
+            MidiMessage message = timeline.messages[i];
+            receiver.send(message, -1);
+            long late = System.nanoTime() - due;
+            jitter.record(late);
+            if (metrics != null) {
+                metrics.dispatchLag(late);
+            }
+            if (message instanceof ShortMessage) {
+                ShortMessage msg = (ShortMessage) message;
+                int key = msg.getChannel() * 128 + msg.getData1();
+                if (msg.getCommand() == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+                    sounding[key] = true;
+                }
+                else if (msg.getCommand() == ShortMessage.NOTE_ON || msg.getCommand() == ShortMessage.NOTE_OFF) {
+                    sounding[key] = false;
+                }
+            }
+        }
+        //the track is over at its end of track, which may be after the last note off
+        waitUntil(base + timeline.endNanos - offset);
+        silence(sounding);
+    }
+
+    /**
+     * Wait until the given nanoTime, parking for most of it and spinning at the end.
+     * @return false if stopped while waiting
+     */
+    private boolean waitUntil(long due) {
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            if (stopping) {
+                return false;
+            }
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            //otherwise busy spin. yielding would hand the core to the scheduler and come back late.
+        }
+        return !stopping;
+    }
+
+    /**
+     * Send the last program, controller and pitch bend values before the start.
+     */
+    private void chase(Timeline timeline, int first) {
+        ShortMessage[] program = new ShortMessage[16];
+        ShortMessage[] bend = new ShortMessage[16];
+        ShortMessage[] controllers = new ShortMessage[16 * 128];
+        for (int i = 0; i < first; i++) {
+            if (!(timeline.messages[i] instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage msg = (ShortMessage) timeline.messages[i];
+            if (msg.getCommand() == ShortMessage.PROGRAM_CHANGE) {
+                program[msg.getChannel()] = msg;
+            }
+            else if (msg.getCommand() == ShortMessage.PITCH_BEND) {
+                bend[msg.getChannel()] = msg;
+            }
+            else if (msg.getCommand() == ShortMessage.CONTROL_CHANGE) {
+                controllers[msg.getChannel() * 128 + msg.getData1()] = msg;
+            }
+        }
+        for (ShortMessage msg : program) {
+            if (msg != null) {
+                receiver.send(msg, -1);
+            }
+        }
+        for (ShortMessage msg : controllers) {
+            if (msg != null) {
+                receiver.send(msg, -1);
+            }
+        }
+        for (ShortMessage msg : bend) {
+            if (msg != null) {
+                receiver.send(msg, -1);
+            }
+        }
+    }
+
+    private void silence(boolean[] sounding) {
+        for (int key = 0; key < sounding.length; key++) {
+            if (sounding[key]) {
+                try {
+                    receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, key / 128, key % 128, 0), -1);
+                }
+                catch (InvalidMidiDataException e) {
+                    //channel and note are always in range
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return finished.getCount() > 0;
+    }
+
+    @Override
+    public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    @Override
+    public void stop() {
+        Thread playing;
+        synchronized (this) {
+            playing = thread;
+            stopping = true;
+        }
+        if (playing != null) {
+            LockSupport.unpark(playing);
+            try {
+                playing.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return how late events were sent, over everything played so far
+     */
+    public JitterHistogram getJitter() {
+        return jitter;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        if (jitter.getCount() > 0) {
+            logger.info("direct player dispatch jitter: " + jitter);
+        }
+    }
+}
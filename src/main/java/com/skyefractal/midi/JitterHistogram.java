@@ -0,0 +1,79 @@
+package com.skyefractal.midi;
+
+import java.util.Arrays;
+
+/**
+ * Counts how late events went out, in power of two microsecond buckets: under 1us, under 2us, under 4us and so
+ * on up to about a second. Recording is a couple of array updates, cheap enough to do for every event.
+ */
+public class JitterHistogram {
+
+    private static final int BUCKETS = 21;
+    private final long[] counts = new long[BUCKETS + 1];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+
+    /**
+     * @param lateNanos how long after its due time an event was sent. Early events count as on time.
+     */
+    public synchronized void record(long lateNanos) {
+        long late = Math.max(0, lateNanos);
+        long micros = late / 1000;
+        //bucket b holds lateness under 2^b microseconds
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        counts[Math.min(bucket, BUCKETS)]++;
+        count++;
+        totalNanos += late;
+        maxNanos = Math.max(maxNanos, late);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public synchronized double getMeanMicros() {
+        return count == 0 ? 0 : totalNanos / 1000.0 / count;
+    }
+
+    /**
+     * @param fraction 0.5 for the median, 0.99 for the 99th percentile
+     * @return upper bound in microseconds of the bucket holding that fraction of events
+     */
+    public synchronized long percentileMicros(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= target && seen > 0) {
+                return b < BUCKETS ? 1L << b : maxNanos / 1000;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return count of events in each bucket. Bucket b is under 2^b microseconds late; the last is everything
+     * beyond that.
+     */
+    public synchronized long[] getCounts() {
+        return counts.clone();
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d events, mean %.1f us, p50 < %d us, p99 < %d us, max %.1f us", count, getMeanMicros(),
+                percentileMicros(0.5), percentileMicros(0.99), maxNanos / 1000.0);
+    }
+}
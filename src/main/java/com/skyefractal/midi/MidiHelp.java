@@ -1,4 +1,6 @@
 package com.skyefractal.midi;
+import com.skyefractal.device.DeviceRegistry;
+import com.skyefractal.metrics.SessionMetrics;
 import javax.sound.midi.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -7,6 +9,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,54 +21,22 @@ import java.util.Map;
 public class MidiHelp {
 
     private static final Logger logger = LogManager.getLogger(MidiHelp.class);
+    //tempo meta data put at the start of every track made by splitTrack. SmfSplitter writes the same bytes.
+    //500,000 microseconds per quarter note = 120BPM. the meta type and length are not part of the data.
+    static final byte[] SPLIT_TEMPO_DATA = new byte[]{0x07, (byte)0xA1, 0x20};
 
     /**
-     * Get the MIDI Receiver for a given interface name and port number.
+     * Get the MIDI Receiver for a given interface name and port number. Devices are listed and opened once, see
+     * {@link DeviceRegistry}.
      * @param port
      * @param midiInterfaceName
      * @return javax.sound.midi.Receiver (from perspective of interface). If effectively represents the MIDI input
      * on a synthesizer (that is the receiver). On your MIDI interface, it would be a MIDI output channel
      * and is used by a javax.sound.midi.Transmitter.
-     * @throws MidiUnavailableException
+     * @throws MidiUnavailableException if there is no such receiver
      */
     public static Receiver getReceiver(int port, String midiInterfaceName) throws MidiUnavailableException {
-
-        Receiver receiver = null;
-        MidiDevice.Info[] info = MidiSystem.getMidiDeviceInfo();
-
-        if (info.length == 0)
-        {
-            throw new MidiUnavailableException("no MIDI receivers found");
-        }
-
-        boolean found = false;
-        for (int i = 0; i < info.length; i++) {
-            logger.debug(info[i]);
-            //scan for interface name and the port. String form is unknown so look for both. not great.
-            if (info[i].toString().contains(midiInterfaceName  + " " + Integer.toString(port)))
-            {
-                //found matching name- verify if a receiver or not
-                MidiDevice device = MidiSystem.getMidiDevice(info[i]);
-                device.open();
-                try {
-                    receiver = device.getReceiver();
-                    logger.info("found requested device: " + info[i] + "  ;" + receiver.getClass().toString());
-                }
-                catch (MidiUnavailableException e)
-                {
-                    //not a receiver
-                    logger.info("found a matching named port/device, but not a receiver: " + info[i]);
-                }
-
-            }
-            else
-            {
-                MidiDevice device = MidiSystem.getMidiDevice(info[i]);
-                device.close();
-            }
-        }
-
-        return receiver;
+        return DeviceRegistry.get().getReceiver(port, midiInterfaceName);
     }
 
 
@@ -119,9 +90,7 @@ public class MidiHelp {
         // Set the tempo of the track to 120 BPM (beats per minute)
         //FIXME will need to scale this around 120BPM and adjust values in data byte[]
         int tempo = 500000; // microseconds per quarter note= 120BPM. OMG. last three bytes are 500,000 in hex bytes
-        byte[] data = new byte[]{0x51, 0x03, 0x07, (byte)160, 0x20};
-        //byte wtf = 0xa6 is not LEGAL- some UTF problem I think. so (byte)160.
-        MidiMessage tempoMsg = new MetaMessage(0x51, data, data.length);
+        MidiMessage tempoMsg = new MetaMessage(0x51, SPLIT_TEMPO_DATA, SPLIT_TEMPO_DATA.length);
         //0x51 = set tempo. see https://mido.readthedocs.io/en/latest/meta_message_types.html
         MidiEvent tempoEvent = new MidiEvent(tempoMsg, 0);
         //use a map- key is the note, data is the Track
@@ -169,6 +138,64 @@ public class MidiHelp {
         return sequence;
     }
 
+    /**
+     * Pair up every note on in a track with its note off.
+     * @param track any midi track
+     * @return one note per note on. A note still sounding at the end of the track ends at the track's last tick.
+     */
+    static List<VoiceAllocator.Note> pairNotes(Track track) {
+        //a queue per channel and note so overlapping repeats pair first in first out. holds event indexes.
+        Map<Integer, ArrayDeque<Integer>> sounding = new HashMap<>();
+        List<VoiceAllocator.Note> notes = new ArrayList<>();
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (!(event.getMessage() instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage msg = (ShortMessage) event.getMessage();
+            int command = msg.getCommand();
+            if (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF) {
+                continue;
+            }
+            int key = msg.getChannel() * 128 + msg.getData1();
+            ArrayDeque<Integer> queue = sounding.get(key);
+            //note on with zero velocity is a note off
+            if (command == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    sounding.put(key, queue);
+                }
+                queue.add(i);
+            }
+            else if (queue == null || queue.isEmpty()) {
+                logger.debug("note off with no note on at tick " + event.getTick());
+            }
+            else {
+                int onIndex = queue.poll();
+                MidiEvent on = track.get(onIndex);
+                notes.add(new VoiceAllocator.Note(on.getTick(), event.getTick(), msg.getChannel(), msg.getData1(),
+                        ((ShortMessage) on.getMessage()).getData2(), msg.getData2(), onIndex, i));
+            }
+        }
+        //anything still sounding is stopped at the end of the track
+        for (ArrayDeque<Integer> queue : sounding.values()) {
+            for (int onIndex : queue) {
+                MidiEvent on = track.get(onIndex);
+                ShortMessage msg = (ShortMessage) on.getMessage();
+                notes.add(new VoiceAllocator.Note(on.getTick(), track.ticks(), msg.getChannel(), msg.getData1(),
+                        msg.getData2(), 0, onIndex, -1));
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * @return a 120BPM tempo event at tick 0
+     */
+    static MidiEvent tempoEvent() throws InvalidMidiDataException {
+        return new MidiEvent(new MetaMessage(0x51, SPLIT_TEMPO_DATA, SPLIT_TEMPO_DATA.length), 0);
+    }
+
 
 
     /**
@@ -243,6 +270,42 @@ public class MidiHelp {
 
 
 
+    /**
+     * Get something to play a sequence to a synth with, outside of any recording session.
+     * @param sequence what to play
+     * @param receiver the synth
+     * @param direct true for a {@link DirectPlayer}, false for the JDK sequencer
+     * @return a player ready to start
+     */
+    public static TrackPlayer openPlayer(Sequence sequence, Receiver receiver, boolean direct)
+            throws MidiUnavailableException, InvalidMidiDataException {
+        return openPlayer(sequence, receiver, direct, null);
+    }
+
+    /**
+     * Same as {@link #openPlayer(Sequence, Receiver, boolean)} for a take.
+     * @param metrics the recording session a {@link DirectPlayer} reports its dispatch lag to, or null. A job
+     *                that only plays must not pass the session's metrics, or its lag shows up in a recording
+     *                running at the same time.
+     */
+    public static TrackPlayer openPlayer(Sequence sequence, Receiver receiver, boolean direct,
+                                         SessionMetrics metrics)
+            throws MidiUnavailableException, InvalidMidiDataException {
+        if (direct) {
+            return new DirectPlayer(sequence, receiver, metrics);
+        }
+        Sequencer sequencer = DeviceRegistry.get().getSequencer();
+        sequencer.open();
+        sequencer.setSequence(sequence);
+        sequencer.getTransmitter().setReceiver(receiver);
+        return new SequencerPlayer(sequencer);
+    }
+
+    /**
+     * @deprecated sequencers from {@link DeviceRegistry#getSequencer()} are never connected to the default synth,
+     * so there is nothing to silence. This loads the whole default soundbank just to unload it.
+     */
+    @Deprecated
     public static void disableDefaultSynth() throws MidiUnavailableException
     {
         Synthesizer synth = MidiSystem.getSynthesizer();
@@ -2,24 +2,175 @@ package com.skyefractal.midi;
 
 import javax.sound.midi.MetaEventListener;
 import javax.sound.midi.MetaMessage;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-import com.skyefractal.App;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class MidiListener implements MetaEventListener {
+/**
+ * Listens for the sequencer's meta events without holding up its dispatch thread. {@link #meta(MetaMessage)}
+ * only drops the message into a preallocated single producer, single consumer ring, the same scheme as
+ * {@link com.skyefractal.audio.AudioRingBuffer}, and a separate thread logs tempo changes, markers and other text
+ * events from there. If that thread falls behind, messages are dropped and counted rather than making the
+ * sequencer wait.
+ *
+ * End of track releases a latch, so callers can {@link #awaitEndOfTrack(long, TimeUnit)} instead of polling the
+ * sequencer. Register one listener per sequencer; the sequencer delivers meta events on a single thread.
+ */
+public class MidiListener implements MetaEventListener, Closeable {
 
     private static final Logger logger = LogManager.getLogger(MidiListener.class);
+    private static final int DEFAULT_SLOTS = 256;
+    private static final int TEXT_FIRST = 0x01;
+    private static final int TEXT_LAST = 0x0F;
+    private static final int END_OF_TRACK = 0x2F;
+    private static final int SET_TEMPO = 0x51;
 
+    private final MetaMessage[] messages;
+    private final long[] nanos;
+    private final int mask;
+    //next slot the handler will take. only written by the handler.
+    private final AtomicLong head = new AtomicLong();
+    //next slot the dispatch thread will fill. only written by the dispatch thread.
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long dropped = 0;
+    private volatile boolean closed = false;
+    private volatile CountDownLatch endOfTrack = new CountDownLatch(1);
+    private final Thread handler;
+
+    public MidiListener() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param slotCount number of meta events that can wait to be handled. Rounded up to a power of two.
+     */
+    public MidiListener(int slotCount) {
+        int capacity = Integer.highestOneBit(Math.max(2, slotCount) - 1) << 1;
+        messages = new MetaMessage[capacity];
+        nanos = new long[capacity];
+        mask = capacity - 1;
+        handler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "midi-meta");
+        handler.setDaemon(true);
+        handler.start();
+    }
+
+    /**
+     * Runs on the sequencer's dispatch thread. No locks, no allocation, no logging.
+     */
     @Override
     public void meta(MetaMessage meta) {
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped++;
+            return;
+        }
+        int slot = (int) (t & mask);
+        messages[slot] = meta;
+        nanos[slot] = System.nanoTime();
+        tail.lazySet(t + 1);
+        LockSupport.unpark(handler);
+    }
+
+    private void drain() {
+        long h = head.get();
+        while (true) {
+            if (tail.get() == h) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(50));
+                continue;
+            }
+            int slot = (int) (h & mask);
+            MetaMessage meta = messages[slot];
+            long at = nanos[slot];
+            messages[slot] = null;
+            head.lazySet(++h);
+            try {
+                handle(meta, at);
+            }
+            catch (RuntimeException e) {
+                //one bad event must not stop the handler, or end of track would never be seen
+                logger.warn("could not handle meta event " + meta.getType(), e);
+            }
+        }
+    }
 
-        logger.info("received metamessage; type = " + meta.getType());
-        byte[] data = meta.getData();
-        for (int i = 0; i < data.length; i++)
-        {
-            logger.info("byte " + i + " = " + data[i]);
+    private void handle(MetaMessage meta, long at) {
+        int type = meta.getType();
+        if (type == END_OF_TRACK) {
+            endOfTrack.countDown();
+            logger.info(String.format("end of track, handled %.0f us after dispatch", (System.nanoTime() - at) / 1e3));
+        }
+        else if (type == SET_TEMPO) {
+            byte[] data = meta.getData();
+            if (data.length < 3) {
+                logger.warn("tempo event with " + data.length + " data bytes, ignored");
+                return;
+            }
+            int mpq = (data[0] & 0xFF) << 16 | (data[1] & 0xFF) << 8 | (data[2] & 0xFF);
+            logger.info(String.format("tempo change to %.2f bpm", 60000000.0 / mpq));
+        }
+        else if (type >= TEXT_FIRST && type <= TEXT_LAST) {
+            logger.info("text event " + type + ": " + new String(meta.getData(), StandardCharsets.ISO_8859_1));
         }
+        else if (logger.isDebugEnabled()) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : meta.getData()) {
+                hex.append(String.format("%02x ", b));
+            }
+            logger.debug("meta event " + type + ": " + hex.toString().trim());
+        }
+    }
+
+    /**
+     * Wait for the sequencer's end of track event.
+     * @return true if it arrived, false if the timeout ran out first
+     */
+    public boolean awaitEndOfTrack(long timeout, TimeUnit unit) throws InterruptedException {
+        return endOfTrack.await(timeout, unit);
+    }
+
+    /**
+     * Wait for the next end of track rather than one already seen. Call before starting the sequencer again.
+     */
+    public void rearm() {
+        endOfTrack = new CountDownLatch(1);
+    }
 
+    /**
+     * @return number of meta events lost because the handler thread fell behind
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Handle whatever is queued and stop the handler thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(handler);
+        try {
+            handler.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dropped > 0) {
+            logger.warn(dropped + " meta events were dropped");
+        }
     }
 }
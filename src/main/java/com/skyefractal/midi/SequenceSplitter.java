@@ -0,0 +1,307 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Splits a whole Type 0 or Type 1 sequence into monophonic stems. Stems are keyed by source track, MIDI channel
+ * and either note value or voice, so notes on different channels or in different tracks are never merged.
+ * Each source track is split on its own thread and the stems are put back together in a fixed order (source
+ * track, then channel, then note or voice) so the output is the same from run to run.
+ *
+ * Every stem starts with the sequence's tempo changes. Channel wide messages (program change, controllers,
+ * pitch bend and channel pressure) are copied to every stem on that channel so each stem plays with the
+ * right patch and expression.
+ */
+public class SequenceSplitter {
+
+    private static final Logger logger = LogManager.getLogger(SequenceSplitter.class);
+    private static final int SET_TEMPO = 0x51;
+
+    /**
+     * How notes in a source track are divided between stems.
+     */
+    public enum Mode {
+        /** one stem per note value, like {@link MidiHelp#splitTrack(Track)} */
+        NOTE,
+        /** the fewest monophonic stems, with notes packed into voices by {@link VoiceAllocator} */
+        VOICE
+    }
+
+    /**
+     * The events for one output track before it is added to the sequence.
+     */
+    private static class Stem {
+        final int source;
+        final int channel;
+        //note value or voice index
+        final int key;
+        final List<MidiEvent> events = new ArrayList<>();
+
+        Stem(int source, int channel, int key) {
+            this.source = source;
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Stem> STEM_ORDER = new Comparator<Stem>() {
+        @Override
+        public int compare(Stem a, Stem b) {
+            if (a.source != b.source) {
+                return Integer.compare(a.source, b.source);
+            }
+            if (a.channel != b.channel) {
+                return Integer.compare(a.channel, b.channel);
+            }
+            return Integer.compare(a.key, b.key);
+        }
+    };
+
+    //tick order, with note offs first at the same tick so a voice is free before its next note starts
+    private static final Comparator<MidiEvent> OFFS_FIRST = new Comparator<MidiEvent>() {
+        @Override
+        public int compare(MidiEvent a, MidiEvent b) {
+            if (a.getTick() != b.getTick()) {
+                return Long.compare(a.getTick(), b.getTick());
+            }
+            return Boolean.compare(!isNoteOff(a), !isNoteOff(b));
+        }
+    };
+
+    private final Mode mode;
+    private final List<int[]> ranges;
+
+    /**
+     * @param mode split by note value or by voice
+     * @param ranges {low, high} note range for each of the first voices in VOICE mode. May be empty.
+     */
+    public SequenceSplitter(Mode mode, List<int[]> ranges) {
+        this.mode = mode;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Split every track of a sequence, one source track per thread.
+     * @param sequence any Type 0 or Type 1 sequence
+     * @return a new sequence with the same timing and one track per stem
+     */
+    public Sequence split(final Sequence sequence) throws InvalidMidiDataException {
+        Track[] tracks = sequence.getTracks();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(tracks.length, Runtime.getRuntime().availableProcessors())));
+        try {
+            List<Future<List<Stem>>> futures = new ArrayList<>(tracks.length);
+            for (int i = 0; i < tracks.length; i++) {
+                final int index = i;
+                final Track track = tracks[i];
+                futures.add(pool.submit(new Callable<List<Stem>>() {
+                    @Override
+                    public List<Stem> call() throws InvalidMidiDataException {
+                        return mode == Mode.NOTE ? splitByNote(track, index) : splitByVoice(track, index);
+                    }
+                }));
+            }
+            List<Stem> stems = new ArrayList<>();
+            for (Future<List<Stem>> future : futures) {
+                stems.addAll(future.get());
+            }
+            Collections.sort(stems, STEM_ORDER);
+            return merge(sequence, stems);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted splitting sequence", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException) e.getCause();
+            }
+            throw new IllegalStateException("failed splitting sequence", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    private Sequence merge(Sequence source, List<Stem> stems) throws InvalidMidiDataException {
+        Sequence sequence = new Sequence(source.getDivisionType(), source.getResolution());
+        List<MidiEvent> tempo = tempoEvents(source);
+        for (Stem stem : stems) {
+            Track track = sequence.createTrack();
+            for (MidiEvent event : tempo) {
+                track.add(event);
+            }
+            //stem events are already in tick order so each add is an append
+            for (MidiEvent event : stem.events) {
+                track.add(event);
+            }
+        }
+        logger.info("split " + source.getTracks().length + " source tracks into " + stems.size() + " stems by "
+                + mode.name().toLowerCase());
+        return sequence;
+    }
+
+    /**
+     * @return every set tempo event in the sequence, or a single 120BPM one if there are none
+     */
+    private static List<MidiEvent> tempoEvents(Sequence sequence) throws InvalidMidiDataException {
+        List<MidiEvent> tempo = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (event.getMessage() instanceof MetaMessage
+                        && ((MetaMessage) event.getMessage()).getType() == SET_TEMPO) {
+                    tempo.add(event);
+                }
+            }
+        }
+        if (tempo.isEmpty()) {
+            tempo.add(MidiHelp.tempoEvent());
+        }
+        return tempo;
+    }
+
+    /**
+     * @return true for messages that affect every note on their channel
+     */
+    private static boolean isChannelWide(ShortMessage msg) {
+        int command = msg.getCommand();
+        return command == ShortMessage.CONTROL_CHANGE || command == ShortMessage.PROGRAM_CHANGE
+                || command == ShortMessage.PITCH_BEND || command == ShortMessage.CHANNEL_PRESSURE;
+    }
+
+    private static boolean isNote(ShortMessage msg) {
+        return msg.getCommand() == ShortMessage.NOTE_ON || msg.getCommand() == ShortMessage.NOTE_OFF;
+    }
+
+    private static boolean isNoteOff(MidiEvent event) {
+        if (!(event.getMessage() instanceof ShortMessage)) {
+            return false;
+        }
+        ShortMessage msg = (ShortMessage) event.getMessage();
+        //note on with zero velocity is a note off
+        return msg.getCommand() == ShortMessage.NOTE_OFF
+                || (msg.getCommand() == ShortMessage.NOTE_ON && msg.getData2() == 0);
+    }
+
+    private static List<Stem> splitByNote(Track track, int source) {
+        //first pass finds the stems so channel wide messages before a stem's first note still reach it
+        Map<Integer, Stem> byKey = new HashMap<>();
+        List<List<Stem>> byChannel = channelLists();
+        for (int i = 0; i < track.size(); i++) {
+            if (track.get(i).getMessage() instanceof ShortMessage) {
+                ShortMessage msg = (ShortMessage) track.get(i).getMessage();
+                int key = msg.getChannel() * 128 + msg.getData1();
+                if (isNote(msg) && !byKey.containsKey(key)) {
+                    Stem stem = new Stem(source, msg.getChannel(), msg.getData1());
+                    byKey.put(key, stem);
+                    byChannel.get(msg.getChannel()).add(stem);
+                }
+            }
+        }
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (!(event.getMessage() instanceof ShortMessage)) {
+                continue;
+            }
+            ShortMessage msg = (ShortMessage) event.getMessage();
+            if (isNote(msg) || msg.getCommand() == ShortMessage.POLY_PRESSURE) {
+                Stem stem = byKey.get(msg.getChannel() * 128 + msg.getData1());
+                if (stem != null) {
+                    stem.events.add(event);
+                }
+            }
+            else if (isChannelWide(msg)) {
+                for (Stem stem : byChannel.get(msg.getChannel())) {
+                    stem.events.add(event);
+                }
+            }
+        }
+        return new ArrayList<>(byKey.values());
+    }
+
+    private List<Stem> splitByVoice(Track track, int source) throws InvalidMidiDataException {
+        List<VoiceAllocator.Note> notes = MidiHelp.pairNotes(track);
+        //voices are allocated separately on each channel
+        List<List<VoiceAllocator.Note>> channelNotes = new ArrayList<>(16);
+        for (int c = 0; c < 16; c++) {
+            channelNotes.add(new ArrayList<VoiceAllocator.Note>());
+        }
+        for (VoiceAllocator.Note note : notes) {
+            channelNotes.get(note.channel).add(note);
+        }
+        List<List<Stem>> byChannel = channelLists();
+        Map<Integer, Stem> byKey = new HashMap<>();
+        //source event index -> the note it starts or ends
+        VoiceAllocator.Note[] noteAt = new VoiceAllocator.Note[track.size()];
+        List<VoiceAllocator.Note> unfinished = new ArrayList<>();
+        for (int c = 0; c < 16; c++) {
+            new VoiceAllocator(ranges).allocate(channelNotes.get(c));
+            for (VoiceAllocator.Note note : channelNotes.get(c)) {
+                int key = c * 128 + note.getVoice();
+                if (!byKey.containsKey(key)) {
+                    Stem stem = new Stem(source, c, note.getVoice());
+                    byKey.put(key, stem);
+                    byChannel.get(c).add(stem);
+                }
+                noteAt[note.onIndex] = note;
+                if (note.offIndex >= 0) {
+                    noteAt[note.offIndex] = note;
+                }
+                else {
+                    unfinished.add(note);
+                }
+            }
+        }
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            VoiceAllocator.Note note = noteAt[i];
+            if (note != null) {
+                byKey.get(note.channel * 128 + note.getVoice()).events.add(event);
+            }
+            else if (event.getMessage() instanceof ShortMessage && isChannelWide((ShortMessage) event.getMessage())) {
+                for (Stem stem : byChannel.get(((ShortMessage) event.getMessage()).getChannel())) {
+                    stem.events.add(event);
+                }
+            }
+        }
+        //notes left on at the end of the track get a note off there
+        for (VoiceAllocator.Note note : unfinished) {
+            byKey.get(note.channel * 128 + note.getVoice()).events.add(new MidiEvent(
+                    new ShortMessage(ShortMessage.NOTE_OFF, note.channel, note.pitch, 0), note.off));
+        }
+        //a voice is reused as soon as its note ends, but the source may have the next note on before that
+        //note off when they share a tick. the sort is stable so everything else keeps its source order.
+        for (Stem stem : byKey.values()) {
+            Collections.sort(stem.events, OFFS_FIRST);
+        }
+        return new ArrayList<>(byKey.values());
+    }
+
+    private static List<List<Stem>> channelLists() {
+        List<List<Stem>> lists = new ArrayList<>(16);
+        for (int c = 0; c < 16; c++) {
+            lists.add(new ArrayList<Stem>());
+        }
+        return lists;
+    }
+}
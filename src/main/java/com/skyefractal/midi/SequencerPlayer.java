@@ -0,0 +1,157 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.MetaEventListener;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TrackPlayer} on the JDK sequencer. The track is picked by muting every other one and soloing it.
+ * The end of the sequence is signalled by the sequencer's end of track meta event. The sequencer sends nothing
+ * when a soloed track ends sooner, so a timer wakes up when the {@link TempoMap} says it should have ended and
+ * checks the tick position, briefly, until it has. Either way a latch is released, and {@link #isPlaying()}
+ * only looks at the latch, so callers checking it never contend with the sequencer's own threads.
+ */
+public class SequencerPlayer implements TrackPlayer {
+
+    private static final int END_OF_TRACK = 0x2F;
+    //how often to look again if the track has not quite ended when the timer fires
+    private static final long RECHECK_MICROS = 2000;
+    private final Sequencer sequencer;
+    private final TempoMap tempo;
+    private final ScheduledExecutorService timer;
+    private int track = ALL_TRACKS;
+    private long end = 0;
+    private volatile CountDownLatch finished = new CountDownLatch(0);
+    private ScheduledFuture<?> endCheck = null;
+    //only listening while playing so a long lived sequencer does not collect listeners
+    private final MetaEventListener endListener = new MetaEventListener() {
+        @Override
+        public void meta(MetaMessage meta) {
+            if (meta.getType() == END_OF_TRACK) {
+                finished.countDown();
+            }
+        }
+    };
+
+    /**
+     * @param sequencer an open sequencer with the sequence already set and its transmitter connected
+     */
+    public SequencerPlayer(Sequencer sequencer) {
+        this.sequencer = sequencer;
+        this.tempo = new TempoMap(sequencer.getSequence());
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "sequencer-end");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int j = 0; j < sequencer.getSequence().getTracks().length; j++) {
+            sequencer.setTrackMute(j, true);
+        }
+    }
+
+    /**
+     * @return the sequencer underneath, for listening to its events
+     */
+    public Sequencer getSequencer() {
+        return sequencer;
+    }
+
+    @Override
+    public Sequence getSequence() {
+        return sequencer.getSequence();
+    }
+
+    @Override
+    public synchronized void start(int track, long fromTick) {
+        this.track = track;
+        if (track == ALL_TRACKS) {
+            for (int j = 0; j < getSequence().getTracks().length; j++) {
+                sequencer.setTrackMute(j, false);
+            }
+            end = getSequence().getTickLength();
+        }
+        else {
+            sequencer.setTrackMute(track, false);
+            sequencer.setTrackSolo(track, true);
+            end = getSequence().getTracks()[track].ticks();
+        }
+        finished = new CountDownLatch(1);
+        sequencer.addMetaEventListener(endListener);
+        sequencer.setTickPosition(fromTick);
+        sequencer.start();
+        long micros = (long) ((tempo.toMicros(end) - tempo.toMicros(fromTick)) / sequencer.getTempoFactor());
+        endCheck = timer.schedule(endCheck(finished), Math.max(0, micros), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Runs on the timer thread, at about the time the track should end.
+     */
+    private Runnable endCheck(final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (done.getCount() == 0) {
+                    return;
+                }
+                if (!sequencer.isRunning() || sequencer.getTickPosition() >= end) {
+                    done.countDown();
+                }
+                else {
+                    synchronized (SequencerPlayer.this) {
+                        if (done == finished) {
+                            endCheck = timer.schedule(this, RECHECK_MICROS, TimeUnit.MICROSECONDS);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return finished.getCount() > 0;
+    }
+
+    @Override
+    public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (endCheck != null) {
+            endCheck.cancel(false);
+            endCheck = null;
+        }
+        sequencer.stop();
+        sequencer.removeMetaEventListener(endListener);
+        if (track == ALL_TRACKS) {
+            for (int j = 0; j < getSequence().getTracks().length; j++) {
+                sequencer.setTrackMute(j, true);
+            }
+        }
+        else {
+            //prepare to play next track by muting track just played
+            sequencer.setTrackMute(track, true);
+            sequencer.setTrackSolo(track, false);
+        }
+        finished.countDown();
+    }
+
+    @Override
+    public void close() {
+        stop();
+        timer.shutdownNow();
+        sequencer.close();
+    }
+}
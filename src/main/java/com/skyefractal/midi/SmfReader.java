@@ -0,0 +1,136 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a Standard MIDI File straight into {@link SmfTrack}s. The file is memory mapped and decoded in one
+ * pass with no object per event, unlike MidiSystem.getSequence which builds a MidiEvent and MidiMessage (and
+ * clones a byte array) for every event. Running status is supported.
+ */
+public class SmfReader {
+
+    private static final int MTHD = 0x4D546864;
+    private static final int MTRK = 0x4D54726B;
+    //a typical event is 3 or 4 bytes, so guess the event count from the chunk length
+    private static final int BYTES_PER_EVENT_GUESS = 4;
+
+    /**
+     * @param file a type 0 or type 1 midi file
+     * @return the decoded file
+     * @throws IOException if the file cannot be read
+     * @throws InvalidMidiDataException if it is not a valid midi file
+     */
+    public static SmfSequence read(File file) throws IOException, InvalidMidiDataException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            //the mapping stays valid after the channel is closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param buffer the whole file, positioned at the header. Big endian byte order.
+     * @return the decoded file
+     * @throws InvalidMidiDataException if it is not a valid midi file
+     */
+    public static SmfSequence read(ByteBuffer buffer) throws InvalidMidiDataException {
+        try {
+            if (buffer.getInt() != MTHD) {
+                throw new InvalidMidiDataException("not a midi file: no MThd header");
+            }
+            int headerLength = buffer.getInt();
+            int headerEnd = buffer.position() + headerLength;
+            int format = buffer.getShort() & 0xFFFF;
+            int trackCount = buffer.getShort() & 0xFFFF;
+            int division = buffer.getShort() & 0xFFFF;
+            buffer.position(headerEnd);
+
+            List<SmfTrack> tracks = new ArrayList<>(trackCount);
+            while (tracks.size() < trackCount && buffer.remaining() >= 8) {
+                int type = buffer.getInt();
+                long length = buffer.getInt() & 0xFFFFFFFFL;
+                int end = (int) Math.min(buffer.limit(), buffer.position() + length);
+                if (type == MTRK) {
+                    tracks.add(readTrack(buffer, end));
+                }
+                //unknown chunks are skipped, as the spec asks
+                buffer.position(end);
+            }
+            if (tracks.size() < trackCount) {
+                throw new InvalidMidiDataException("expected " + trackCount + " tracks but found " + tracks.size());
+            }
+            return new SmfSequence(format, division, tracks);
+        }
+        catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidMidiDataException("truncated midi file");
+        }
+    }
+
+    private static SmfTrack readTrack(ByteBuffer buffer, int end) throws InvalidMidiDataException {
+        SmfTrack track = new SmfTrack((end - buffer.position()) / BYTES_PER_EVENT_GUESS);
+        long tick = 0;
+        int runningStatus = 0;
+        while (buffer.position() < end) {
+            tick += readVariableLength(buffer);
+            int status = buffer.get() & 0xFF;
+            if (status == SmfTrack.META) {
+                int type = buffer.get() & 0xFF;
+                int length = readVariableLength(buffer);
+                track.addPayload(tick, status, type, buffer, length);
+                if (type == SmfTrack.END_OF_TRACK) {
+                    break;
+                }
+            }
+            else if (status == SmfTrack.SYSEX || status == SmfTrack.SYSEX_CONTINUE) {
+                int length = readVariableLength(buffer);
+                track.addPayload(tick, status, 0, buffer, length);
+                runningStatus = 0;
+            }
+            else {
+                int data1;
+                if (status < 0x80) {
+                    //running status: this byte was the first data byte
+                    if (runningStatus == 0) {
+                        throw new InvalidMidiDataException("data byte with no running status at tick " + tick);
+                    }
+                    data1 = status;
+                    status = runningStatus;
+                }
+                else {
+                    data1 = buffer.get() & 0xFF;
+                    runningStatus = status;
+                }
+                int data2 = dataLength(status) == 2 ? buffer.get() & 0xFF : 0;
+                track.add(tick, status, data1, data2);
+            }
+        }
+        return track;
+    }
+
+    /**
+     * @return number of data bytes that follow a channel message status
+     */
+    static int dataLength(int status) {
+        int command = status & 0xF0;
+        return command == 0xC0 || command == 0xD0 ? 1 : 2;
+    }
+
+    private static int readVariableLength(ByteBuffer buffer) throws InvalidMidiDataException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = buffer.get() & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new InvalidMidiDataException("variable length quantity longer than 4 bytes");
+    }
+}
@@ -0,0 +1,52 @@
+package com.skyefractal.midi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contents of a Standard MIDI File as read by {@link SmfReader} or written by {@link SmfWriter}.
+ */
+public class SmfSequence {
+
+    private final int format;
+    private final int division;
+    private final List<SmfTrack> tracks;
+
+    /**
+     * @param format SMF type, 0 or 1
+     * @param division the raw division word from the header. Ticks per quarter note when the top bit is clear.
+     * @param tracks the tracks in file order
+     */
+    public SmfSequence(int format, int division, List<SmfTrack> tracks) {
+        this.format = format;
+        this.division = division;
+        this.tracks = tracks;
+    }
+
+    public SmfSequence(int format, int division) {
+        this(format, division, new ArrayList<SmfTrack>());
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getDivision() {
+        return division;
+    }
+
+    public List<SmfTrack> getTracks() {
+        return tracks;
+    }
+
+    /**
+     * @return total events in all tracks
+     */
+    public long getEventCount() {
+        long count = 0;
+        for (SmfTrack track : tracks) {
+            count += track.size();
+        }
+        return count;
+    }
+}
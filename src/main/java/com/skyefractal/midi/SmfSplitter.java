@@ -0,0 +1,195 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits {@link SmfTrack}s into a track per source track, channel and note value, the same stems in the same
+ * order as {@link SequenceSplitter} in NOTE mode writes. Every stem starts with the sequence's tempo changes,
+ * or a 120BPM tempo event if there are none, and channel wide messages (program change, controllers, pitch
+ * bend and channel pressure) are copied to every stem on their channel. It works in two passes over primitive
+ * arrays: the first counts events per stem so every output track is allocated at its final size, the second
+ * copies them across.
+ */
+public class SmfSplitter {
+
+    private static final int NOTE_OFF = 0x80;
+    private static final int NOTE_ON = 0x90;
+    private static final int POLY_PRESSURE = 0xA0;
+    private static final int CONTROL_CHANGE = 0xB0;
+    private static final int PROGRAM_CHANGE = 0xC0;
+    private static final int CHANNEL_PRESSURE = 0xD0;
+    private static final int PITCH_BEND = 0xE0;
+    private static final int SET_TEMPO = 0x51;
+
+    /**
+     * Split one track into one track per channel and note value.
+     * @param source a polyphonic track
+     * @param tempo the tempo events to start every stem with, in tick order
+     * @return the new tracks by channel, then note value
+     */
+    public static List<SmfTrack> splitByNote(SmfTrack source, SmfTrack tempo) {
+        //indexed by channel * 128 + note
+        int[] counts = new int[16 * 128];
+        int[] channelWide = new int[16];
+        for (int i = 0; i < source.size(); i++) {
+            int status = source.status(i);
+            if (isNote(status)) {
+                counts[key(source, i)]++;
+            }
+            else if (isChannelWide(status)) {
+                channelWide[status & 0x0F]++;
+            }
+        }
+        //poly pressure only goes to a note that has a stem
+        for (int i = 0; i < source.size(); i++) {
+            if (source.status(i) < SmfTrack.SYSEX && (source.status(i) & 0xF0) == POLY_PRESSURE
+                    && counts[key(source, i)] > 0) {
+                counts[key(source, i)]++;
+            }
+        }
+
+        SmfTrack[] byKey = new SmfTrack[16 * 128];
+        //next tempo event each stem still needs
+        int[] nextTempo = new int[16 * 128];
+        List<SmfTrack> tracks = new ArrayList<>();
+        for (int key = 0; key < byKey.length; key++) {
+            if (counts[key] > 0) {
+                //the tempo map, the notes, the channel's controllers and the end of track
+                byKey[key] = new SmfTrack(tempo.size() + counts[key] + channelWide[key / 128] + 1);
+                tracks.add(byKey[key]);
+            }
+        }
+        for (int i = 0; i < source.size(); i++) {
+            int status = source.status(i);
+            if (status >= SmfTrack.SYSEX) {
+                continue;
+            }
+            int command = status & 0xF0;
+            if (isNote(status) || command == POLY_PRESSURE) {
+                int key = key(source, i);
+                if (byKey[key] != null) {
+                    nextTempo[key] = copy(source, i, byKey[key], tempo, nextTempo[key]);
+                }
+            }
+            else if (isChannelWide(status)) {
+                int channel = status & 0x0F;
+                for (int key = channel * 128; key < channel * 128 + 128; key++) {
+                    if (byKey[key] != null) {
+                        nextTempo[key] = copy(source, i, byKey[key], tempo, nextTempo[key]);
+                    }
+                }
+            }
+        }
+        for (int key = 0; key < byKey.length; key++) {
+            if (byKey[key] != null) {
+                addTempo(byKey[key], tempo, nextTempo[key], Long.MAX_VALUE);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Append a source event to a stem, after any tempo events up to and including its tick.
+     * @return the next tempo event the stem needs
+     */
+    private static int copy(SmfTrack source, int i, SmfTrack stem, SmfTrack tempo, int nextTempo) {
+        nextTempo = addTempo(stem, tempo, nextTempo, source.tick(i));
+        stem.add(source.tick(i), source.status(i), source.data1(i), source.data2(i));
+        return nextTempo;
+    }
+
+    private static int addTempo(SmfTrack stem, SmfTrack tempo, int next, long upTo) {
+        for (; next < tempo.size() && tempo.tick(next) <= upTo; next++) {
+            stem.addPayload(tempo.tick(next), SmfTrack.META, SET_TEMPO, tempo.payload(), tempo.payloadOffset(next),
+                    tempo.payloadLength(next));
+        }
+        return next;
+    }
+
+    /**
+     * @return every set tempo event in the sequence in tick order, or a single 120BPM one if there are none
+     */
+    static SmfTrack tempoEvents(SmfSequence sequence) {
+        List<long[]> found = new ArrayList<>();
+        List<SmfTrack> tracks = sequence.getTracks();
+        for (int t = 0; t < tracks.size(); t++) {
+            SmfTrack track = tracks.get(t);
+            for (int i = 0; i < track.size(); i++) {
+                if (track.isMeta(i) && track.data1(i) == SET_TEMPO) {
+                    found.add(new long[]{track.tick(i), t, i});
+                }
+            }
+        }
+        //stable, so tempo events at the same tick keep their track order
+        Collections.sort(found, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        SmfTrack tempo = new SmfTrack(Math.max(1, found.size()));
+        for (long[] event : found) {
+            SmfTrack track = tracks.get((int) event[1]);
+            int i = (int) event[2];
+            tempo.addPayload(event[0], SmfTrack.META, SET_TEMPO, track.payload(), track.payloadOffset(i),
+                    track.payloadLength(i));
+        }
+        if (found.isEmpty()) {
+            tempo.addPayload(0, SmfTrack.META, SET_TEMPO, MidiHelp.SPLIT_TEMPO_DATA, 0,
+                    MidiHelp.SPLIT_TEMPO_DATA.length);
+        }
+        return tempo;
+    }
+
+    private static boolean isNote(int status) {
+        int command = status & 0xF0;
+        return status < SmfTrack.SYSEX && (command == NOTE_ON || command == NOTE_OFF);
+    }
+
+    /**
+     * @return true for messages that affect every note on their channel
+     */
+    private static boolean isChannelWide(int status) {
+        int command = status & 0xF0;
+        return status < SmfTrack.SYSEX && (command == CONTROL_CHANGE || command == PROGRAM_CHANGE
+                || command == PITCH_BEND || command == CHANNEL_PRESSURE);
+    }
+
+    private static int key(SmfTrack track, int i) {
+        return (track.status(i) & 0x0F) * 128 + track.data1(i);
+    }
+
+    /**
+     * Split every track of a sequence, one after another.
+     * @param sequence a type 0 or type 1 sequence
+     * @return a type 1 sequence with the same division and one track per stem
+     */
+    public static SmfSequence split(SmfSequence sequence) {
+        SmfTrack tempo = tempoEvents(sequence);
+        List<SmfTrack> stems = new ArrayList<>();
+        for (SmfTrack track : sequence.getTracks()) {
+            stems.addAll(splitByNote(track, tempo));
+        }
+        return new SmfSequence(1, sequence.getDivision(), stems);
+    }
+
+    /**
+     * Read a midi file, split it by note and write the result as a type 1 file.
+     * @param midi the type 0 or type 1 midi file to split
+     * @param multiTrackMidi the multitrack midi file to write
+     * @return the split sequence that was written
+     * @throws IOException if either file cannot be read or written
+     * @throws InvalidMidiDataException if the input is not a valid midi file
+     */
+    public static SmfSequence split(File midi, File multiTrackMidi) throws IOException, InvalidMidiDataException {
+        SmfSequence split = split(SmfReader.read(midi));
+        SmfWriter.write(split, multiTrackMidi);
+        return split;
+    }
+}
@@ -0,0 +1,168 @@
+package com.skyefractal.midi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A MIDI track held as parallel primitive arrays rather than one MidiEvent object per event. Channel messages
+ * are a tick, a status byte and two data bytes. Meta events have status 0xFF with the meta type in data1;
+ * sysex events have status 0xF0 or 0xF7. The bytes that follow a meta or sysex event are kept in one shared
+ * payload array and found with {@link #payloadOffset(int)} and {@link #payloadLength(int)}.
+ */
+public class SmfTrack {
+
+    public static final int META = 0xFF;
+    public static final int SYSEX = 0xF0;
+    public static final int SYSEX_CONTINUE = 0xF7;
+    public static final int END_OF_TRACK = 0x2F;
+
+    private long[] ticks;
+    private byte[] status;
+    private byte[] data1;
+    private byte[] data2;
+    //only used by meta and sysex events
+    private int[] payloadOffsets;
+    private int[] payloadLengths;
+    private byte[] payload;
+    private int payloadSize = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity number of events to make room for. The track grows if more are added.
+     */
+    public SmfTrack(int capacity) {
+        capacity = Math.max(capacity, 4);
+        ticks = new long[capacity];
+        status = new byte[capacity];
+        data1 = new byte[capacity];
+        data2 = new byte[capacity];
+        payloadOffsets = new int[capacity];
+        payloadLengths = new int[capacity];
+        payload = new byte[64];
+    }
+
+    private void ensureCapacity() {
+        if (size == ticks.length) {
+            int capacity = size * 2;
+            ticks = Arrays.copyOf(ticks, capacity);
+            status = Arrays.copyOf(status, capacity);
+            data1 = Arrays.copyOf(data1, capacity);
+            data2 = Arrays.copyOf(data2, capacity);
+            payloadOffsets = Arrays.copyOf(payloadOffsets, capacity);
+            payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+        }
+    }
+
+    /**
+     * Append a channel message.
+     * @param tick absolute tick. Must not be before the last event's tick.
+     * @param statusByte status including the channel
+     * @param d1 first data byte
+     * @param d2 second data byte, ignored for program change and channel pressure
+     */
+    public void add(long tick, int statusByte, int d1, int d2) {
+        ensureCapacity();
+        ticks[size] = tick;
+        status[size] = (byte) statusByte;
+        data1[size] = (byte) d1;
+        data2[size] = (byte) d2;
+        payloadLengths[size] = 0;
+        size++;
+    }
+
+    /**
+     * Append a meta or sysex event.
+     * @param tick absolute tick
+     * @param statusByte 0xFF for meta, 0xF0 or 0xF7 for sysex
+     * @param type meta type, ignored for sysex
+     * @param source array holding the event's data bytes
+     * @param offset start of the data in source
+     * @param length number of data bytes
+     */
+    public void addPayload(long tick, int statusByte, int type, byte[] source, int offset, int length) {
+        ensurePayloadCapacity(length);
+        System.arraycopy(source, offset, payload, payloadSize, length);
+        appendPayloadEvent(tick, statusByte, type, length);
+    }
+
+    /**
+     * Append a meta or sysex event whose data bytes are the next bytes of a buffer.
+     * @param tick absolute tick
+     * @param statusByte 0xFF for meta, 0xF0 or 0xF7 for sysex
+     * @param type meta type, ignored for sysex
+     * @param source buffer positioned at the event's data. Its position is moved past the data.
+     * @param length number of data bytes
+     */
+    public void addPayload(long tick, int statusByte, int type, ByteBuffer source, int length) {
+        ensurePayloadCapacity(length);
+        source.get(payload, payloadSize, length);
+        appendPayloadEvent(tick, statusByte, type, length);
+    }
+
+    private void ensurePayloadCapacity(int length) {
+        if (payloadSize + length > payload.length) {
+            payload = Arrays.copyOf(payload, Math.max(payload.length * 2, payloadSize + length));
+        }
+    }
+
+    private void appendPayloadEvent(long tick, int statusByte, int type, int length) {
+        ensureCapacity();
+        ticks[size] = tick;
+        status[size] = (byte) statusByte;
+        data1[size] = (byte) type;
+        data2[size] = 0;
+        payloadOffsets[size] = payloadSize;
+        payloadLengths[size] = length;
+        payloadSize += length;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long tick(int i) {
+        return ticks[i];
+    }
+
+    /**
+     * @return status byte as 0-255
+     */
+    public int status(int i) {
+        return status[i] & 0xFF;
+    }
+
+    public int data1(int i) {
+        return data1[i] & 0xFF;
+    }
+
+    public int data2(int i) {
+        return data2[i] & 0xFF;
+    }
+
+    public boolean isMeta(int i) {
+        return status(i) == META;
+    }
+
+    public int payloadOffset(int i) {
+        return payloadOffsets[i];
+    }
+
+    public int payloadLength(int i) {
+        return payloadLengths[i];
+    }
+
+    /**
+     * @return the shared array holding every meta and sysex payload of this track
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    /**
+     * @return tick of the last event, or 0 for an empty track
+     */
+    public long ticks() {
+        return size == 0 ? 0 : ticks[size - 1];
+    }
+}
@@ -0,0 +1,155 @@
+package com.skyefractal.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes {@link SmfTrack}s as a Standard MIDI File. Channel messages use running status. An end of track
+ * event is added to any track that does not already finish with one.
+ */
+public class SmfWriter {
+
+    private byte[] buffer = new byte[8192];
+    private int size = 0;
+
+    /**
+     * @param sequence the tracks to write
+     * @param file the midi file to create or overwrite
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(SmfSequence sequence, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(sequence.getFormat(), sequence.getDivision(), sequence.getTracks(), channel);
+        }
+    }
+
+    /**
+     * @param format SMF type, 0 or 1
+     * @param division raw division word, i.e. 960 for 960 ticks per quarter note
+     * @param tracks the tracks to write in order
+     * @param out where to write the file
+     * @throws IOException if writing fails
+     */
+    public static void write(int format, int division, List<SmfTrack> tracks, WritableByteChannel out)
+            throws IOException {
+        SmfWriter writer = new SmfWriter();
+        writer.putInt(0x4D546864);
+        writer.putInt(6);
+        writer.putShort(format);
+        writer.putShort(tracks.size());
+        writer.putShort(division);
+        for (SmfTrack track : tracks) {
+            writer.putTrack(track);
+            //flush each track so the buffer stays the size of the largest track
+            writer.flush(out);
+        }
+        writer.flush(out);
+    }
+
+    private void putTrack(SmfTrack track) {
+        putInt(0x4D54726B);
+        int lengthAt = size;
+        putInt(0);
+        int start = size;
+        long tick = 0;
+        int runningStatus = 0;
+        boolean ended = false;
+        for (int i = 0; i < track.size(); i++) {
+            putVariableLength(track.tick(i) - tick);
+            tick = track.tick(i);
+            int status = track.status(i);
+            if (status == SmfTrack.META) {
+                put(status);
+                put(track.data1(i));
+                putPayload(track, i);
+                runningStatus = 0;
+                if (track.data1(i) == SmfTrack.END_OF_TRACK) {
+                    ended = true;
+                    break;
+                }
+            }
+            else if (status == SmfTrack.SYSEX || status == SmfTrack.SYSEX_CONTINUE) {
+                put(status);
+                putPayload(track, i);
+                runningStatus = 0;
+            }
+            else {
+                if (status != runningStatus) {
+                    put(status);
+                    runningStatus = status;
+                }
+                put(track.data1(i));
+                if (SmfReader.dataLength(status) == 2) {
+                    put(track.data2(i));
+                }
+            }
+        }
+        if (!ended) {
+            put(0);
+            put(SmfTrack.META);
+            put(SmfTrack.END_OF_TRACK);
+            put(0);
+        }
+        int length = size - start;
+        buffer[lengthAt] = (byte) (length >>> 24);
+        buffer[lengthAt + 1] = (byte) (length >>> 16);
+        buffer[lengthAt + 2] = (byte) (length >>> 8);
+        buffer[lengthAt + 3] = (byte) length;
+    }
+
+    private void putPayload(SmfTrack track, int i) {
+        int length = track.payloadLength(i);
+        putVariableLength(length);
+        ensure(length);
+        System.arraycopy(track.payload(), track.payloadOffset(i), buffer, size, length);
+        size += length;
+    }
+
+    private void putVariableLength(long value) {
+        //up to 4 groups of 7 bits, most significant first, with the top bit set on all but the last
+        int shift = 21;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            put((int) (((value >>> shift) & 0x7F) | 0x80));
+        }
+        put((int) (value & 0x7F));
+    }
+
+    private void putInt(int value) {
+        putShort(value >>> 16);
+        putShort(value);
+    }
+
+    private void putShort(int value) {
+        put(value >>> 8);
+        put(value);
+    }
+
+    private void put(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+    }
+
+    private void ensure(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+
+    private void flush(WritableByteChannel out) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, size);
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,142 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Converts between ticks and microseconds for a sequence, following its tempo changes the way the JDK
+ * sequencer does: only well formed set tempo meta events (type 0x51 with 3 data bytes) count, from any
+ * track, and the tempo is 120BPM until the first one.
+ */
+public class TempoMap {
+
+    public static final int DEFAULT_MPQ = 500000;
+    private static final int SET_TEMPO = 0x51;
+
+    //tempo segments. segment i starts at ticks[i] / micros[i] and runs at mpq[i] microseconds per quarter.
+    private final long[] ticks;
+    private final long[] micros;
+    private final int[] mpq;
+    private final float divisionType;
+    private final int resolution;
+
+    public TempoMap(Sequence sequence) {
+        this.divisionType = sequence.getDivisionType();
+        this.resolution = sequence.getResolution();
+        //later tracks win if two tempo changes land on the same tick
+        TreeMap<Long, Integer> changes = new TreeMap<>();
+        changes.put(0L, DEFAULT_MPQ);
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (event.getMessage() instanceof MetaMessage) {
+                    MetaMessage meta = (MetaMessage) event.getMessage();
+                    byte[] data = meta.getData();
+                    if (meta.getType() == SET_TEMPO && data.length == 3) {
+                        int value = ((data[0] & 0xFF) << 16) | ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+                        changes.put(event.getTick(), value);
+                    }
+                }
+            }
+        }
+        int count = changes.size();
+        ticks = new long[count];
+        micros = new long[count];
+        mpq = new int[count];
+        int i = 0;
+        for (Map.Entry<Long, Integer> change : changes.entrySet()) {
+            ticks[i] = change.getKey();
+            mpq[i] = change.getValue();
+            micros[i] = i == 0 ? 0 : micros[i - 1] + span(ticks[i] - ticks[i - 1], mpq[i - 1]);
+            i++;
+        }
+    }
+
+    /**
+     * @return microseconds taken by the given number of ticks at the given tempo
+     */
+    private long span(long tickCount, int tempo) {
+        if (divisionType == Sequence.PPQ) {
+            return tickCount * tempo / resolution;
+        }
+        //SMPTE timing ignores tempo. ticks are subdivisions of a frame.
+        return (long) (tickCount * 1000000.0 / (divisionType * resolution));
+    }
+
+    private int segmentForTick(long tick) {
+        int low = 0;
+        int high = ticks.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ticks[mid] <= tick) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param tick position in the sequence
+     * @return time of that tick from the start of the sequence in microseconds
+     */
+    public long toMicros(long tick) {
+        int s = segmentForTick(tick);
+        return micros[s] + span(tick - ticks[s], mpq[s]);
+    }
+
+    /**
+     * @param microsecond time from the start of the sequence
+     * @return the last tick at or before that time
+     */
+    public long toTick(long microsecond) {
+        int s = ticks.length - 1;
+        while (s > 0 && micros[s] > microsecond) {
+            s--;
+        }
+        long remaining = microsecond - micros[s];
+        if (divisionType == Sequence.PPQ) {
+            return ticks[s] + remaining * resolution / mpq[s];
+        }
+        return ticks[s] + (long) (remaining * divisionType * resolution / 1000000.0);
+    }
+
+    /**
+     * Add a track to a digest as it will be heard: the time in microseconds and bytes of every event other than
+     * meta events. The session manifest and the stem cache both use this, so they agree on whether a track
+     * changed.
+     * @param digest the digest to update
+     * @param track a track of this map's sequence
+     */
+    public void digest(MessageDigest digest, Track track) {
+        ByteBuffer time = ByteBuffer.allocate(8);
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            MidiMessage message = event.getMessage();
+            //names, text and the tempo events themselves only matter through the times
+            if (message instanceof MetaMessage) {
+                continue;
+            }
+            time.clear();
+            time.putLong(toMicros(event.getTick()));
+            digest.update(time.array());
+            digest.update(message.getMessage(), 0, message.getLength());
+        }
+    }
+
+    /**
+     * @return the tempo in microseconds per quarter note in effect at the tick
+     */
+    public int tempoAt(long tick) {
+        return mpq[segmentForTick(tick)];
+    }
+}
@@ -0,0 +1,46 @@
+package com.skyefractal.midi;
+
+import javax.sound.midi.Sequence;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays one track of a sequence, or all of them, to a synth. Recording only needs to start a track at some
+ * tick, know when it has finished and stop it, so that is all this does. {@link SequencerPlayer} uses the JDK
+ * sequencer; {@link DirectPlayer} schedules the events itself.
+ */
+public interface TrackPlayer extends AutoCloseable {
+
+    /** pass as the track to play every track at once */
+    int ALL_TRACKS = -1;
+
+    Sequence getSequence();
+
+    /**
+     * Start playing. Returns straight away.
+     * @param track index of the track to play, or {@link #ALL_TRACKS}
+     * @param fromTick where to start
+     */
+    void start(int track, long fromTick);
+
+    /**
+     * @return true until the track has played to its end or has been stopped
+     */
+    boolean isPlaying();
+
+    /**
+     * Wait for the track to finish.
+     * @return true if it finished, false if the timeout ran out first
+     */
+    boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Stop playing and silence anything still sounding. Does nothing if not playing.
+     */
+    void stop();
+
+    /**
+     * Stop and free the player.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,139 @@
+package com.skyefractal.midi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Packs notes into as few monophonic voices as possible. Each note is an interval from its note on to its
+ * note off, so this is interval partitioning: take the notes in start order and give each one to any voice
+ * that is already free, opening a new voice only when every existing one is still sounding. Done that way
+ * the voice count equals the most notes ever sounding at once, which is the best possible.
+ *
+ * Voices can optionally be limited to a pitch range (say a synth that only sounds good below C3). Ranged
+ * voices are tried first; notes that fit none of them go to unranged voices numbered after the ranged ones.
+ * With ranges the result is not guaranteed minimal.
+ */
+public class VoiceAllocator {
+
+    /**
+     * One note, from note on to note off, and the voice it was given.
+     */
+    public static class Note {
+        public final long on;
+        public final long off;
+        public final int channel;
+        public final int pitch;
+        public final int velocity;
+        public final int offVelocity;
+        //index of the note on and note off events in the source track, -1 if there is no such event
+        final int onIndex;
+        final int offIndex;
+        int voice = -1;
+
+        public Note(long on, long off, int channel, int pitch, int velocity, int offVelocity) {
+            this(on, off, channel, pitch, velocity, offVelocity, -1, -1);
+        }
+
+        Note(long on, long off, int channel, int pitch, int velocity, int offVelocity, int onIndex, int offIndex) {
+            this.on = on;
+            this.off = off;
+            this.channel = channel;
+            this.pitch = pitch;
+            this.velocity = velocity;
+            this.offVelocity = offVelocity;
+            this.onIndex = onIndex;
+            this.offIndex = offIndex;
+        }
+
+        public int getVoice() {
+            return voice;
+        }
+    }
+
+    private static class Voice {
+        final int index;
+        final int low;
+        final int high;
+        long freeAt = Long.MIN_VALUE;
+
+        Voice(int index, int low, int high) {
+            this.index = index;
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    private static final Comparator<Voice> EARLIEST_FREE = new Comparator<Voice>() {
+        @Override
+        public int compare(Voice a, Voice b) {
+            int c = Long.compare(a.freeAt, b.freeAt);
+            return c != 0 ? c : Integer.compare(a.index, b.index);
+        }
+    };
+
+    private final List<int[]> ranges;
+
+    public VoiceAllocator() {
+        this(Collections.<int[]>emptyList());
+    }
+
+    /**
+     * @param ranges {low, high} inclusive note range for each ranged voice, in voice order
+     */
+    public VoiceAllocator(List<int[]> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * Assign a voice to every note. Afterwards {@link Note#getVoice()} holds the voice index.
+     * @param notes the notes to allocate. Sorted into start order in place.
+     * @return number of voices used (highest voice index + 1)
+     */
+    public int allocate(List<Note> notes) {
+        Collections.sort(notes, new Comparator<Note>() {
+            @Override
+            public int compare(Note a, Note b) {
+                int c = Long.compare(a.on, b.on);
+                return c != 0 ? c : Integer.compare(a.pitch, b.pitch);
+            }
+        });
+        List<Voice> ranged = new ArrayList<>(ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            ranged.add(new Voice(i, ranges.get(i)[0], ranges.get(i)[1]));
+        }
+        //unranged voices, earliest free at the head
+        PriorityQueue<Voice> free = new PriorityQueue<>(16, EARLIEST_FREE);
+        int voiceCount = ranged.size();
+        int used = 0;
+
+        for (Note note : notes) {
+            Voice voice = null;
+            for (Voice candidate : ranged) {
+                if (note.pitch >= candidate.low && note.pitch <= candidate.high && candidate.freeAt <= note.on
+                        && (voice == null || candidate.freeAt < voice.freeAt)) {
+                    voice = candidate;
+                }
+            }
+            if (voice == null) {
+                Voice head = free.peek();
+                if (head != null && head.freeAt <= note.on) {
+                    voice = free.poll();
+                }
+                else {
+                    voice = new Voice(voiceCount++, 0, 127);
+                }
+                voice.freeAt = note.off;
+                free.add(voice);
+            }
+            else {
+                voice.freeAt = note.off;
+            }
+            note.voice = voice.index;
+            used = Math.max(used, voice.index + 1);
+        }
+        return used;
+    }
+}
@@ -0,0 +1,169 @@
+package com.skyefractal.session;
+
+import com.skyefractal.RecordingOptions;
+import com.skyefractal.audio.Deinterleaver;
+import com.skyefractal.audio.LatencyCalibrator;
+import com.skyefractal.audio.MultichannelRecorder;
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.midi.MidiHelp;
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records a multitrack sequence through one multichannel audio line. Each channel group (a mono input or a
+ * stereo pair) has a synth on its own MIDI port, so one pass over the line records one track per group. Tracks
+ * go into passes longest first, so the tracks in a pass are about the same length and little time is spent
+ * waiting for the longest one.
+ */
+public class MultichannelSession {
+
+    private static final Logger logger = LogManager.getLogger(MultichannelSession.class);
+
+    private final TargetDataLine line;
+    private final Deinterleaver deinterleaver;
+    private final int[][] groupChannels;
+    private final List<Receiver> receivers;
+    private final RecordingOptions options;
+
+    /**
+     * @param line the multichannel line, not yet open
+     * @param format the format to open the line with
+     * @param groups line channels (from 0) for each group, see {@link Deinterleaver}
+     * @param receivers the synth recorded by each group
+     * @param options tail detection settings
+     */
+    public MultichannelSession(TargetDataLine line, AudioFormat format, int[][] groups, List<Receiver> receivers,
+                               RecordingOptions options) {
+        if (receivers.size() != groups.length) {
+            throw new IllegalArgumentException(groups.length + " channel groups but " + receivers.size()
+                    + " MIDI ports");
+        }
+        this.line = line;
+        this.deinterleaver = new Deinterleaver(format, groups);
+        this.groupChannels = groups;
+        this.receivers = receivers;
+        this.options = options;
+    }
+
+    /**
+     * Group tracks into passes, longest first.
+     * @param lengths length of each track
+     * @param groups tracks recorded per pass
+     * @return the track indexes recorded in each pass
+     */
+    static List<int[]> passes(final long[] lengths, int groups) {
+        List<Integer> all = new ArrayList<>(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            all.add(i);
+        }
+        return passes(lengths, all, groups);
+    }
+
+    /**
+     * Group some of the tracks into passes, longest first.
+     * @param lengths length of every track
+     * @param tracks indexes of the tracks to record
+     * @param groups tracks recorded per pass
+     * @return the track indexes recorded in each pass
+     */
+    static List<int[]> passes(final long[] lengths, List<Integer> tracks, int groups) {
+        Integer[] order = tracks.toArray(new Integer[tracks.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(lengths[b], lengths[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        List<int[]> passes = new ArrayList<>();
+        for (int i = 0; i < order.length; i += groups) {
+            int[] pass = new int[Math.min(groups, order.length - i)];
+            for (int j = 0; j < pass.length; j++) {
+                pass[j] = order[i + j];
+            }
+            passes.add(pass);
+        }
+        return passes;
+    }
+
+    /**
+     * Record every track of the sequence to ./recording_N.wav, N being the track index.
+     * @param sequence a Type 1 multitrack sequence
+     * @return session timing. A track's time is how long its own take would have been on its own.
+     */
+    public TrackScheduler.Result record(Sequence sequence) throws MidiUnavailableException,
+            InvalidMidiDataException, LineUnavailableException, IOException, InterruptedException {
+        if (options.isSparse()) {
+            logger.warn("sparse recording is not supported on a multichannel line, recording whole tracks");
+        }
+        int groups = deinterleaver.getGroups();
+        long[] trackNanos = new long[sequence.getTracks().length];
+        float frameRate = deinterleaver.getSourceFormat().getFrameRate();
+        TrackPlayer[] players = new TrackPlayer[groups];
+        long start = System.nanoTime();
+        try (MultichannelRecorder recorder = new MultichannelRecorder(line, deinterleaver,
+                options.getTailThresholdDb(), options.getTailHoldMillis())) {
+            //one player per synth, set up once for the whole session
+            for (int g = 0; g < groups; g++) {
+                players[g] = MidiHelp.openPlayer(sequence, receivers.get(g), options.isDirectPlayback(),
+                        SessionMetrics.get());
+                long latency = options.getLatencyFrames(deinterleaver.getSourceFormat());
+                if (options.isCalibrate()) {
+                    long measured = new LatencyCalibrator(line, deinterleaver.getSourceFormat(), groupChannels[g])
+                            .measure(receivers.get(g));
+                    if (measured >= 0) {
+                        latency = measured;
+                    }
+                }
+                recorder.setLatencyFrames(g, latency);
+            }
+            List<int[]> passes = passes(TrackScheduler.trackLengths(sequence), options.tracksToRecord(sequence),
+                    groups);
+            for (int p = 0; p < passes.size(); p++) {
+                int[] pass = passes.get(p);
+                logger.info("pass " + (p + 1) + " of " + passes.size() + ": tracks " + Arrays.toString(pass));
+                TrackPlayer[] playing = new TrackPlayer[groups];
+                int[] tracks = new int[groups];
+                File[] stems = new File[groups];
+                for (int g = 0; g < pass.length; g++) {
+                    playing[g] = players[g];
+                    tracks[g] = pass[g];
+                    stems[g] = new File("./recording_" + pass[g] + ".wav");
+                }
+                recorder.record(playing, tracks, stems);
+                for (int g = 0; g < pass.length; g++) {
+                    trackNanos[pass[g]] = (long) (recorder.getCapturedFrames(g) * 1e9 / frameRate);
+                    options.takeFinished(pass[g], sequence, stems[g]);
+                }
+            }
+        }
+        finally {
+            for (TrackPlayer player : players) {
+                if (player != null) {
+                    player.close();
+                }
+            }
+        }
+        TrackScheduler.Result result = new TrackScheduler.Result(System.nanoTime() - start, trackNanos);
+        logger.info(String.format("recorded %d tracks on %d channel groups in %.1f s, %.1f s one after another (%.2fx)",
+                trackNanos.length, groups, result.getSessionNanos() / 1e9, result.getSequentialNanos() / 1e9,
+                result.getSequentialNanos() / (double) result.getSessionNanos()));
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package com.skyefractal.session;
+
+import com.skyefractal.device.DeviceRegistry;
+import com.skyefractal.sim.LoopbackLine;
+import com.skyefractal.sim.LoopbackReceiver;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * One synth in the studio: the MIDI output that plays it and the audio input that records it. A session with
+ * several rigs can record several tracks at once.
+ */
+public abstract class Rig {
+
+    private final String name;
+
+    protected Rig(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return where to send the MIDI for this rig's synth
+     */
+    public abstract Receiver getReceiver() throws MidiUnavailableException;
+
+    /**
+     * @return a new, unopened line for recording one take from this rig's synth
+     */
+    public abstract TargetDataLine getLine(AudioFormat format) throws LineUnavailableException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * A synth on a real MIDI interface port, recorded through a mixer.
+     * @param midiInterface name of interface output, i.e. "Express  128: Port"
+     * @param port port number of the interface
+     * @param mixerName part of the name of the mixer the synth is plugged into
+     */
+    public static Rig hardware(final String midiInterface, final int port, final String mixerName) {
+        return new Rig(midiInterface + " " + port + " -> " + mixerName) {
+            @Override
+            public Receiver getReceiver() throws MidiUnavailableException {
+                return DeviceRegistry.get().getReceiver(port, midiInterface);
+            }
+
+            @Override
+            public TargetDataLine getLine(AudioFormat format) throws LineUnavailableException {
+                return DeviceRegistry.get().getLine(mixerName, format);
+            }
+        };
+    }
+
+    /**
+     * A stand in rig with no hardware behind it. See {@link LoopbackReceiver} and {@link LoopbackLine}.
+     */
+    public static Rig loopback(String name) {
+        return loopback(name, 0);
+    }
+
+    /**
+     * @param latencyNanos how long the stand in synth takes to be heard
+     */
+    public static Rig loopback(String name, long latencyNanos) {
+        final LoopbackReceiver receiver = new LoopbackReceiver(latencyNanos);
+        return new Rig(name) {
+            @Override
+            public Receiver getReceiver() {
+                return receiver;
+            }
+
+            @Override
+            public TargetDataLine getLine(AudioFormat format) {
+                return new LoopbackLine(receiver, format);
+            }
+        };
+    }
+
+    /**
+     * @param spec "loopback", or "loopback:12.5" for a stand in synth with 12.5ms latency
+     * @return the latency in nanoseconds
+     */
+    public static long loopbackLatencyNanos(String spec) {
+        int colon = spec.indexOf(':');
+        return colon < 0 ? 0 : Math.round(Double.parseDouble(spec.substring(colon + 1)) * 1e6);
+    }
+
+    /**
+     * Parse a rig given on the command line, either "loopback[:latency ms]" or "interface|port|mixer", i.e.
+     * "Express  128: Port|1|MOTU".
+     * @param spec the rig description
+     * @param index position of the rig in the list, used to name loopback rigs
+     */
+    public static Rig parse(String spec, int index) {
+        if (spec.equals("loopback") || spec.startsWith("loopback:")) {
+            return loopback("loopback-" + index, loopbackLatencyNanos(spec));
+        }
+        String[] parts = spec.split("\\|");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("rig must be loopback or interface|port|mixer: " + spec);
+        }
+        return hardware(parts[0], Integer.parseInt(parts[1].trim()), parts[2]);
+    }
+}
@@ -0,0 +1,303 @@
+package com.skyefractal.session;
+
+import com.skyefractal.audio.FlacDecoder;
+import com.skyefractal.audio.WavInfo;
+import com.skyefractal.midi.TempoMap;
+
+import javax.sound.midi.Sequence;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Record of the takes finished so far in a session, so a session that fails part way can be resumed instead of
+ * starting again from the first track. For every finished take it keeps a hash of the track's events at their
+ * times in microseconds, like {@link StemCache#fingerprint}, so a tempo change anywhere in the sequence means
+ * the track is recorded again. It also keeps the stem it was written to, the number of frames in the stem and
+ * the MD5 of its audio. The MD5 is of the samples, the same as FLAC stores, so a stem that has since been
+ * compressed can still be checked.
+ *
+ * The file is rewritten after every take: a temporary file is written and synced, then moved over the old
+ * one, so a crash leaves either the old manifest or the new one and never half of each.
+ */
+public class SessionManifest {
+
+    private static final Logger logger = LogManager.getLogger(SessionManifest.class);
+    public static final String FILE_NAME = "session_manifest.properties";
+
+    /**
+     * One finished take.
+     */
+    public static class Take {
+        private final String events;
+        private final String stem;
+        private final long frames;
+        private final String md5;
+
+        public Take(String events, String stem, long frames, String md5) {
+            this.events = events;
+            this.stem = stem;
+            this.frames = frames;
+            this.md5 = md5;
+        }
+
+        /**
+         * @return hash of the track's events, see {@link #hash(Sequence, int)}
+         */
+        public String getEvents() {
+            return events;
+        }
+
+        public String getStem() {
+            return stem;
+        }
+
+        public long getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return MD5 of the stem's audio samples in hex
+         */
+        public String getMd5() {
+            return md5;
+        }
+    }
+
+    private final File file;
+    private final String midi;
+    //by track index
+    private final Map<Integer, Take> takes = new TreeMap<>();
+
+    /**
+     * Start an empty manifest. Nothing is written until the first take is added.
+     * @param file where to keep it
+     * @param midi name of the midi file being recorded
+     */
+    public SessionManifest(File file, String midi) {
+        this.file = file;
+        this.midi = midi;
+    }
+
+    /**
+     * Read a manifest written by an earlier session.
+     * @param file the manifest
+     * @param midi name of the midi file being recorded now. A warning is logged if it is not the same one; the
+     *             event hashes still decide which takes can be kept.
+     * @return the manifest, empty if the file does not exist
+     */
+    public static SessionManifest load(File file, String midi) throws IOException {
+        SessionManifest manifest = new SessionManifest(file, midi);
+        if (!file.exists()) {
+            logger.info("no manifest at " + file + ", recording every track");
+            return manifest;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        String previous = properties.getProperty("midi");
+        if (previous != null && !previous.equals(midi)) {
+            logger.warn(file + " was written for " + previous + ", not " + midi);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith("track.") || !key.endsWith(".stem")) {
+                continue;
+            }
+            String prefix = key.substring(0, key.length() - "stem".length());
+            try {
+                int track = Integer.parseInt(prefix.substring("track.".length(), prefix.length() - 1));
+                manifest.takes.put(track, new Take(properties.getProperty(prefix + "events"),
+                        properties.getProperty(key), Long.parseLong(properties.getProperty(prefix + "frames")),
+                        properties.getProperty(prefix + "md5")));
+            }
+            catch (NumberFormatException e) {
+                logger.warn("ignoring damaged entry " + key + " in " + file);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Add a finished take and rewrite the manifest.
+     * @param track index of the track
+     * @param sequence the sequence the track was played from
+     * @param stem the wav it was recorded to, completely written
+     */
+    public void add(int track, Sequence sequence, File stem) throws IOException {
+        long[] frames = new long[1];
+        String md5 = hex(wavMd5(stem, frames));
+        Take take = new Take(hex(hash(sequence, track)), stem.getPath(), frames[0], md5);
+        synchronized (this) {
+            takes.put(track, take);
+            write();
+        }
+    }
+
+    /**
+     * @return the take recorded for a track, or null if there is none
+     */
+    public synchronized Take getTake(int track) {
+        return takes.get(track);
+    }
+
+    /**
+     * Check a track was recorded from the same events and its stem is still whole. The stem may be the wav or,
+     * if it has been compressed, the flac next to it. Either way all of its audio is read.
+     * @param track index of the track
+     * @param sequence the sequence as it is now
+     * @return true if the take can be kept
+     */
+    public boolean isComplete(int track, Sequence sequence) {
+        Take take = getTake(track);
+        if (take == null) {
+            return false;
+        }
+        if (!take.getEvents().equals(hex(hash(sequence, track)))) {
+            logger.info("track " + track + " has changed since it was recorded");
+            return false;
+        }
+        File wav = new File(take.getStem());
+        String name = wav.getName();
+        File flac = new File(wav.getParentFile(), (name.endsWith(".wav") ? name.substring(0, name.length() - 4)
+                : name) + ".flac");
+        long[] frames = new long[1];
+        String md5;
+        try {
+            if (wav.exists()) {
+                md5 = hex(wavMd5(wav, frames));
+            }
+            else if (flac.exists()) {
+                md5 = hex(flacMd5(flac, frames));
+            }
+            else {
+                logger.info("track " + track + ": " + wav + " is missing");
+                return false;
+            }
+        }
+        catch (IOException e) {
+            logger.info("track " + track + ": stem cannot be read, " + e.getMessage());
+            return false;
+        }
+        if (frames[0] != take.getFrames() || !md5.equals(take.getMd5())) {
+            logger.info("track " + track + ": stem is damaged, " + frames[0] + " frames of " + take.getFrames());
+            return false;
+        }
+        return true;
+    }
+
+    private void write() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.ISO_8859_1);
+            writer.write("# recording session manifest, rewritten after every take\n");
+            writer.write("midi=" + escape(midi) + "\n");
+            for (Map.Entry<Integer, Take> entry : takes.entrySet()) {
+                String prefix = "track." + entry.getKey() + ".";
+                Take take = entry.getValue();
+                writer.write(prefix + "events=" + take.getEvents() + "\n");
+                writer.write(prefix + "stem=" + escape(take.getStem()) + "\n");
+                writer.write(prefix + "frames=" + take.getFrames() + "\n");
+                writer.write(prefix + "md5=" + take.getMd5() + "\n");
+            }
+            writer.flush();
+            //on disk before it replaces the old one
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hash of everything that affects how a track sounds: the time in microseconds and bytes of every event,
+     * following the sequence's tempo changes whichever track they are in.
+     */
+    static byte[] hash(Sequence sequence, int track) {
+        MessageDigest digest = digest("SHA-256");
+        new TempoMap(sequence).digest(digest, sequence.getTracks()[track]);
+        return digest.digest();
+    }
+
+    /**
+     * @param frames set to the number of frames in the file
+     */
+    private static byte[] wavMd5(File wav, long[] frames) throws IOException {
+        MessageDigest md5 = digest("MD5");
+        try (FileChannel channel = FileChannel.open(wav.toPath(), StandardOpenOption.READ)) {
+            WavInfo info = WavInfo.read(channel, wav);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            long position = info.getDataOffset();
+            long end = position + info.getDataLength();
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    break;
+                }
+                md5.update(buffer.array(), 0, count);
+                position += count;
+            }
+            frames[0] = info.getFrames();
+        }
+        return md5.digest();
+    }
+
+    private static byte[] flacMd5(File flac, long[] frames) throws IOException {
+        MessageDigest md5 = digest("MD5");
+        try (FlacDecoder decoder = new FlacDecoder(flac)) {
+            ByteBuffer buffer = ByteBuffer.allocate(decoder.getMaxBlockSize() * decoder.getFormat().getFrameSize());
+            long bytes = 0;
+            int count;
+            while ((count = decoder.read(buffer)) >= 0) {
+                md5.update(buffer.array(), 0, count);
+                bytes += count;
+                buffer.clear();
+            }
+            frames[0] = bytes / decoder.getFormat().getFrameSize();
+        }
+        return md5.digest();
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            //every JRE has MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            out.append(String.format("%02x", b));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Backslashes are escapes in a properties file, which matters for windows paths.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\");
+    }
+}
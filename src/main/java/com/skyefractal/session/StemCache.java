@@ -0,0 +1,207 @@
+package com.skyefractal.session;
+
+import com.skyefractal.midi.TempoMap;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps finished stems by a fingerprint of what was played and how, so a track that has not changed since it
+ * was last recorded is copied from here instead of being played again in real time. The fingerprint covers the
+ * track's events at their times in microseconds, so a tempo change elsewhere in the sequence still counts as a
+ * change, plus a description of the rig and recording settings supplied by the caller.
+ *
+ * Entries are plain wav files named by their fingerprint. Each hit touches the entry, and after every store the
+ * oldest entries are evicted until the cache is within its size and age limits.
+ */
+public class StemCache {
+
+    private static final Logger logger = LogManager.getLogger(StemCache.class);
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_DAYS = 30;
+    private static final String SUFFIX = ".wav";
+
+    private final File dir;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long maxAgeMillis = TimeUnit.DAYS.toMillis(DEFAULT_MAX_AGE_DAYS);
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * @param dir where to keep the stems. Created if it does not exist.
+     */
+    public StemCache(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create stem cache " + dir);
+        }
+    }
+
+    /**
+     * @param maxBytes total size of the cached stems before the least recently used are evicted
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param days entries not used for this long are evicted
+     */
+    public void setMaxAgeDays(long days) {
+        this.maxAgeMillis = TimeUnit.DAYS.toMillis(days);
+    }
+
+    /**
+     * Fingerprint one track as it will be heard: every event other than meta events, at its time from the start
+     * of the sequence, then the time the track ends, then the setup.
+     * @param sequence the whole sequence, for its tempo map
+     * @param track index of the track
+     * @param setup anything else that changes the recording, such as the rig and tail settings
+     * @return the key to look the stem up by
+     */
+    public static String fingerprint(Sequence sequence, int track, String setup) {
+        TempoMap tempo = new TempoMap(sequence);
+        Track events = sequence.getTracks()[track];
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            //every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+        tempo.digest(digest, events);
+        ByteBuffer time = ByteBuffer.allocate(8);
+        time.putLong(tempo.toMicros(events.ticks()));
+        digest.update(time.array());
+        digest.update(setup.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Copy a cached stem out if there is one.
+     * @param key from {@link #fingerprint(Sequence, int, String)}
+     * @param stem where the stem is wanted
+     * @return true if it was found and copied
+     */
+    public synchronized boolean fetch(String key, File stem) throws IOException {
+        File entry = entry(key);
+        if (!entry.isFile()) {
+            misses++;
+            return false;
+        }
+        Files.copy(entry.toPath(), stem.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (!entry.setLastModified(System.currentTimeMillis())) {
+            logger.debug("could not touch " + entry);
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * Keep a copy of a finished stem, then evict whatever no longer fits.
+     * @param key from {@link #fingerprint(Sequence, int, String)}
+     * @param stem the finished wav
+     */
+    public synchronized void store(String key, File stem) throws IOException {
+        File entry = entry(key);
+        //copied in under a temporary name so a crash never leaves half an entry
+        File temp = new File(dir, key + ".tmp");
+        Files.copy(stem.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    /**
+     * Delete entries older than the age limit, then the least recently used until the rest fit the size limit.
+     * @return number of entries deleted
+     */
+    public synchronized int evict() {
+        File[] entries = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (entries == null) {
+            return 0;
+        }
+        //newest first, so everything past the limit is older than everything kept
+        final long[] used = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            used[i] = entries[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(used[b], used[a]);
+            }
+        });
+        long now = System.currentTimeMillis();
+        long total = 0;
+        int evicted = 0;
+        long freed = 0;
+        boolean full = false;
+        for (int i : order) {
+            long length = entries[i].length();
+            full = full || total + length > maxBytes;
+            if (full || now - used[i] > maxAgeMillis) {
+                if (entries[i].delete()) {
+                    evicted++;
+                    freed += length;
+                }
+                else {
+                    logger.warn("could not evict " + entries[i]);
+                }
+                continue;
+            }
+            total += length;
+        }
+        if (evicted > 0) {
+            logger.info(String.format("evicted %d stems (%.1f MB) from the cache, %.1f MB kept", evicted, freed / 1e6,
+                    total / 1e6));
+        }
+        return evicted;
+    }
+
+    private File entry(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return number of tracks fetched from the cache instead of being recorded
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,276 @@
+package com.skyefractal.session;
+
+import com.skyefractal.RecordingOptions;
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.audio.AudioRecorder;
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.midi.Sequence;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records tracks one after another on one synth with as little dead time between takes as possible. The line is
+ * opened and started once, before the first take, and stays running, so a take only has to flush it. The next
+ * take's stem is created and its pre-roll written while the current take records, and each stem is finished on
+ * another background thread (the writer drained, the header patched, then the manifest, cache and compressor
+ * told) while the next track is already playing. The gap between the last frame of one take and
+ * the first note of the next is measured and logged.
+ */
+public class TakePipeline implements Closeable {
+
+    private static final Logger logger = LogManager.getLogger(TakePipeline.class);
+    private static final AudioFormat FORMAT = AudioHelp.CD_AUDIO;
+
+    private final TargetDataLine line;
+    private final TrackPlayer player;
+    private final RecordingOptions options;
+    private final long latencyFrames;
+    //one thread, so stems are finished in the order they were recorded
+    private final ExecutorService finisher;
+    private final List<Future<?>> finishing = new ArrayList<>();
+    private final ExecutorService preparer;
+    private String source = "";
+    private String cacheSetup = null;
+    private long gapCount = 0;
+    private long gapTotalNanos = 0;
+    private long gapMaxNanos = 0;
+    private int failed = 0;
+
+    /**
+     * @param line the line to record from, not yet open. Closed with the pipeline.
+     * @param player plays each track to the synth
+     * @param options how each take is recorded and what happens to finished stems
+     * @param latencyFrames midi to audio latency of the synth
+     */
+    public TakePipeline(TargetDataLine line, TrackPlayer player, RecordingOptions options, long latencyFrames) {
+        this.line = line;
+        this.player = player;
+        this.options = options;
+        this.latencyFrames = latencyFrames;
+        this.finisher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "stem-finisher");
+            }
+        });
+        this.preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "stem-preparer");
+            }
+        });
+    }
+
+    /**
+     * @param source name of the rig, for the take metrics and log
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Reuse stems from the options' {@link StemCache} for tracks that have not changed.
+     * @param setup the MIDI port, mixer and anything else about the rig that changes the sound, or null to
+     *              record every track
+     */
+    public void setCacheSetup(String setup) {
+        this.cacheSetup = setup;
+    }
+
+    /**
+     * Record tracks in turn, ./recording_N.wav for track N. Returns once the last track is captured; its stem
+     * may still be being finished until {@link #close()}.
+     * @param sequence the sequence the player plays
+     * @param tracks indexes of the tracks to record
+     * @param trackNanos filled in with how long each track's take took, or null
+     */
+    public void record(final Sequence sequence, List<Integer> tracks, long[] trackNanos)
+            throws LineUnavailableException, IOException {
+        if (!line.isOpen()) {
+            //primed once for every take
+            line.open(FORMAT, AudioRecorder.lineBufferSize(FORMAT));
+            line.start();
+        }
+        final String prefix = source.isEmpty() ? "" : source + ": ";
+        //copy unchanged tracks out of the cache first, so nothing but recording happens between takes
+        List<Integer> toPlay = new ArrayList<>(tracks.size());
+        final Map<Integer, String> keys = new HashMap<>();
+        for (final int track : tracks) {
+            if (cacheSetup != null && options.getCache() != null) {
+                String key = StemCache.fingerprint(sequence, track, cacheSetup);
+                final File stem = new File("./recording_" + track + ".wav");
+                if (options.getCache().fetch(key, stem)) {
+                    logger.info(prefix + "track " + track + " has not changed, reusing its cached stem");
+                    finishing.add(finisher.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            options.takeFinished(track, sequence, stem);
+                            return null;
+                        }
+                    }));
+                    continue;
+                }
+                keys.put(track, key);
+            }
+            toPlay.add(track);
+        }
+        long lastCaptured = 0;
+        AudioRecorder next = toPlay.isEmpty() ? null : recorder(toPlay.get(0));
+        Future<?> nextPrepared = prepare(next);
+        for (int i = 0; i < toPlay.size(); i++) {
+            final int track = toPlay.get(i);
+            final AudioRecorder recorder = next;
+            waitFor(nextPrepared, track);
+            //the stem of the following take is made while this one records
+            next = i + 1 < toPlay.size() ? recorder(toPlay.get(i + 1)) : null;
+            nextPrepared = prepare(next);
+            long start = System.nanoTime();
+            finishing.add(recorder.record(finisher));
+            if (trackNanos != null) {
+                trackNanos[track] = System.nanoTime() - start;
+            }
+            if (recorder.getPlayNanos() != 0) {
+                if (lastCaptured != 0) {
+                    gap(recorder, recorder.getPlayNanos() - lastCaptured);
+                }
+                lastCaptured = recorder.getCapturedNanos();
+            }
+            //queued behind the recorder's own finishing, so it runs once the stem is complete
+            finishing.add(finisher.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (recorder.getFailure() != null) {
+                        //carry on with the rest. the take is not in the manifest so --resume records it again.
+                        throw new IOException("recording track " + track + " failed, it needs recording again",
+                                recorder.getFailure());
+                    }
+                    if (keys.containsKey(track)) {
+                        //before the compressor can swap it for a flac
+                        options.getCache().store(keys.get(track), recorder.getStem());
+                    }
+                    logger.info(prefix + "completed recording track " + track);
+                    options.takeFinished(track, sequence, recorder.getStem());
+                    return null;
+                }
+            }));
+        }
+    }
+
+    private AudioRecorder recorder(int track) {
+        AudioRecorder recorder = new AudioRecorder(line, player, track);
+        options.configure(recorder, FORMAT);
+        recorder.setLatencyFrames(latencyFrames);
+        recorder.setKeepLineOpen(true);
+        recorder.getMetrics().setSource(source);
+        return recorder;
+    }
+
+    /**
+     * Start making a take's stem in the background. Sparse takes make their own.
+     */
+    private Future<?> prepare(final AudioRecorder recorder) {
+        if (recorder == null || options.isSparse()) {
+            return null;
+        }
+        return preparer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                recorder.prepare();
+                return null;
+            }
+        });
+    }
+
+    private static void waitFor(Future<?> prepared, int track) {
+        if (prepared == null) {
+            return;
+        }
+        try {
+            prepared.get();
+        }
+        catch (ExecutionException e) {
+            //the recorder makes the stem itself instead
+            logger.warn("could not prepare the stem for track " + track, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void gap(AudioRecorder recorder, long nanos) {
+        recorder.getMetrics().setGapNanos(nanos);
+        gapCount++;
+        gapTotalNanos += nanos;
+        gapMaxNanos = Math.max(gapMaxNanos, nanos);
+        logger.debug(String.format("%.1f ms between takes", nanos / 1e6));
+    }
+
+    /**
+     * @return number of takes that failed or whose stems could not be finished. Only complete after
+     * {@link #close()}.
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return mean time from the end of one take to the start of the next, in milliseconds
+     */
+    public double getMeanGapMillis() {
+        return gapCount == 0 ? 0 : gapTotalNanos / 1e6 / gapCount;
+    }
+
+    public double getMaxGapMillis() {
+        return gapMaxNanos / 1e6;
+    }
+
+    /**
+     * Wait for the last stems to be finished, then close the line.
+     */
+    @Override
+    public void close() {
+        try {
+            for (Future<?> future : finishing) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    failed++;
+                    logger.error(e.getCause().getMessage(), e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            finishing.clear();
+            finisher.shutdown();
+            preparer.shutdown();
+            line.stop();
+            line.close();
+        }
+        if (gapCount > 0) {
+            logger.info(String.format("%s%d gaps between takes: mean %.1f ms, max %.1f ms",
+                    source.isEmpty() ? "" : source + ": ", gapCount, getMeanGapMillis(), getMaxGapMillis()));
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.skyefractal.session;
+
+import com.skyefractal.RecordingOptions;
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.audio.LatencyCalibrator;
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.midi.MidiHelp;
+import com.skyefractal.midi.TempoMap;
+import com.skyefractal.midi.TrackPlayer;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Records the tracks of a multitrack sequence across several rigs at once. Every rig gets its own sequencer
+ * and works through its share of the tracks one after another, exactly like the single rig session. Tracks
+ * are handed out longest first, each to the rig with the least recording time so far, so the rigs finish at
+ * about the same time.
+ */
+public class TrackScheduler {
+
+    private static final Logger logger = LogManager.getLogger(TrackScheduler.class);
+
+    /**
+     * Timing of a finished session.
+     */
+    public static class Result {
+        private final long sessionNanos;
+        private final long[] trackNanos;
+
+        Result(long sessionNanos, long[] trackNanos) {
+            this.sessionNanos = sessionNanos;
+            this.trackNanos = trackNanos;
+        }
+
+        /**
+         * @return wall clock time for the whole session
+         */
+        public long getSessionNanos() {
+            return sessionNanos;
+        }
+
+        /**
+         * @return time taken to record each track, by track index
+         */
+        public long[] getTrackNanos() {
+            return trackNanos;
+        }
+
+        /**
+         * @return how long the same takes would have taken recorded one after another on a single rig
+         */
+        public long getSequentialNanos() {
+            long total = 0;
+            for (long nanos : trackNanos) {
+                total += nanos;
+            }
+            return total;
+        }
+    }
+
+    private final List<Rig> rigs;
+    private final RecordingOptions options;
+
+    public TrackScheduler(List<Rig> rigs, RecordingOptions options) {
+        if (rigs.isEmpty()) {
+            throw new IllegalArgumentException("need at least one rig");
+        }
+        this.rigs = rigs;
+        this.options = options;
+    }
+
+    /**
+     * Share tracks out between rigs, longest processing time first.
+     * @param lengths length of each track in any unit
+     * @param rigCount number of rigs
+     * @return for each rig, the indexes of the tracks it records, longest first
+     */
+    public static List<List<Integer>> balance(final long[] lengths, int rigCount) {
+        Integer[] order = new Integer[lengths.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(lengths[b], lengths[a]);
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        });
+        //{load, rig index}, least loaded at the head
+        PriorityQueue<long[]> loads = new PriorityQueue<>(rigCount, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                int c = Long.compare(a[0], b[0]);
+                return c != 0 ? c : Long.compare(a[1], b[1]);
+            }
+        });
+        List<List<Integer>> assigned = new ArrayList<>(rigCount);
+        for (int r = 0; r < rigCount; r++) {
+            assigned.add(new ArrayList<Integer>());
+            loads.add(new long[]{0, r});
+        }
+        for (int track : order) {
+            long[] rig = loads.poll();
+            assigned.get((int) rig[1]).add(track);
+            rig[0] += lengths[track];
+            loads.add(rig);
+        }
+        return assigned;
+    }
+
+    /**
+     * @return playing time of each track in microseconds
+     */
+    static long[] trackLengths(Sequence sequence) {
+        TempoMap tempo = new TempoMap(sequence);
+        Track[] tracks = sequence.getTracks();
+        long[] lengths = new long[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            lengths[i] = tempo.toMicros(tracks[i].ticks());
+        }
+        return lengths;
+    }
+
+    /**
+     * Record every track of the sequence to ./recording_N.wav, N being the track index.
+     * @param sequence a Type 1 multitrack sequence
+     * @return session timing
+     */
+    public Result record(final Sequence sequence) throws MidiUnavailableException, InvalidMidiDataException,
+            InterruptedException {
+        long[] lengths = trackLengths(sequence);
+        List<Integer> todo = options.tracksToRecord(sequence);
+        for (int i = 0; i < lengths.length; i++) {
+            if (!todo.contains(i)) {
+                //already recorded. it adds nothing to any rig's load and is dropped below.
+                lengths[i] = 0;
+            }
+        }
+        List<List<Integer>> assigned = balance(lengths, rigs.size());
+        for (List<Integer> tracks : assigned) {
+            tracks.retainAll(todo);
+        }
+        final long[] trackNanos = new long[sequence.getTracks().length];
+        ExecutorService pool = Executors.newFixedThreadPool(rigs.size());
+        long start = System.nanoTime();
+        try {
+            List<Future<Void>> futures = new ArrayList<>(rigs.size());
+            for (int r = 0; r < rigs.size(); r++) {
+                final Rig rig = rigs.get(r);
+                final List<Integer> tracks = assigned.get(r);
+                logger.info(rig + " records tracks " + tracks);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        recordOn(rig, sequence, tracks, trackNanos);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof MidiUnavailableException) {
+                throw (MidiUnavailableException) e.getCause();
+            }
+            if (e.getCause() instanceof InvalidMidiDataException) {
+                throw (InvalidMidiDataException) e.getCause();
+            }
+            throw new IllegalStateException("recording failed", e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+        Result result = new Result(System.nanoTime() - start, trackNanos);
+        logger.info(String.format("recorded %d tracks on %d rigs in %.1f s, %.1f s one after another (%.2fx)",
+                todo.size(), rigs.size(), result.getSessionNanos() / 1e9, result.getSequentialNanos() / 1e9,
+                result.getSequentialNanos() / (double) result.getSessionNanos()));
+        return result;
+    }
+
+    /**
+     * Runs on one thread per rig. The rig has its own player, so position and timing are independent of the
+     * other rigs.
+     */
+    private void recordOn(Rig rig, Sequence sequence, List<Integer> tracks, long[] trackNanos)
+            throws MidiUnavailableException, InvalidMidiDataException, LineUnavailableException, IOException,
+            InterruptedException {
+        long latency = options.getLatencyFrames(AudioHelp.CD_AUDIO);
+        if (options.isCalibrate() && !tracks.isEmpty()) {
+            //every rig has its own synth and converters, so its own latency
+            long measured = new LatencyCalibrator(rig.getLine(AudioHelp.CD_AUDIO), AudioHelp.CD_AUDIO,
+                    LatencyCalibrator.allChannels(AudioHelp.CD_AUDIO)).measure(rig.getReceiver());
+            if (measured >= 0) {
+                latency = measured;
+            }
+        }
+        try (TrackPlayer player = MidiHelp.openPlayer(sequence, rig.getReceiver(), options.isDirectPlayback(),
+                SessionMetrics.get())) {
+            try (TakePipeline pipeline = new TakePipeline(rig.getLine(AudioHelp.CD_AUDIO), player, options,
+                    latency)) {
+                pipeline.setSource(rig.getName());
+                pipeline.record(sequence, tracks, trackNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.skyefractal.sim;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.TargetDataLine;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for an audio input wired to a {@link LoopbackReceiver}, or a multichannel input with a different
+ * receiver on each channel. While a note is sounding it delivers a sine wave at that note's pitch, otherwise
+ * silence. Audio arrives in real time like a real line: a read blocks until
+ * the frames it asks for would have been captured, so session timing matches recording from hardware.
+ * Only 16 bit signed little endian formats are supported.
+ *
+ * Like a real line it only holds its buffer's worth of audio: if it is not read in time the oldest frames are
+ * lost and counted as an overrun. Overruns can also be forced every so often by stalling a read for longer than
+ * the buffer lasts, as a busy driver or a descheduled capture thread would.
+ */
+public class LoopbackLine implements TargetDataLine {
+
+    private static final double LEVEL = 0.25 * Short.MAX_VALUE;
+    //one receiver for every channel, or one per channel
+    private final LoopbackReceiver[] sources;
+    private AudioFormat format;
+    private int bufferSize;
+    private boolean open = false;
+    private volatile boolean running = false;
+    //frames captured by the clock before the last start
+    private long clockBase = 0;
+    private long startNanos = 0;
+    //frames handed out by read, or dropped by flush
+    private long position = 0;
+    private double[] phases = new double[0];
+    //note each channel was playing at the end of the last read
+    private int[] notes = new int[0];
+    //0 for no forced overruns
+    private long overrunEveryFrames = 0;
+    private long nextOverrun = 0;
+    private volatile long overruns = 0;
+
+    /**
+     * @param source the receiver whose notes this line plays
+     * @param format the format the line will be opened with
+     */
+    public LoopbackLine(LoopbackReceiver source, AudioFormat format) {
+        this.sources = new LoopbackReceiver[]{source};
+        this.format = format;
+    }
+
+    /**
+     * @param channels the receiver heard on each channel of the line. Channels with a null receiver are silent.
+     * @param format the format the line will be opened with
+     */
+    public LoopbackLine(LoopbackReceiver[] channels, AudioFormat format) {
+        if (channels.length != format.getChannels()) {
+            throw new IllegalArgumentException(channels.length + " receivers for " + format);
+        }
+        this.sources = channels;
+        this.format = format;
+    }
+
+    private LoopbackReceiver source(int channel) {
+        return sources.length == 1 ? sources[0] : sources[channel];
+    }
+
+    /**
+     * @return frames the line would have captured by now
+     */
+    private synchronized long clock() {
+        long frames = clockBase;
+        if (running) {
+            frames += (long) ((System.nanoTime() - startNanos) * (double) format.getFrameRate() / 1e9);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the nanoTime at which the given clock frame was captured
+     */
+    private synchronized long frameNanos(long frame) {
+        if (!running) {
+            //not captured yet. it will be once the line starts again.
+            return System.nanoTime();
+        }
+        return startNanos + (long) ((frame - clockBase) * 1e9 / format.getFrameRate());
+    }
+
+    private double step(int note) {
+        return note < 0 ? 0 : 2 * Math.PI * 440 * Math.pow(2, (note - 69) / 12.0) / format.getFrameRate();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int frameSize = format.getFrameSize();
+        len -= len % frameSize;
+        int frames = len / frameSize;
+        if (running && overrunEveryFrames > 0 && clock() >= nextOverrun) {
+            nextOverrun += overrunEveryFrames;
+            stall(bufferSize / frameSize + frames);
+        }
+        //the buffer only holds so much. anything older was lost while nobody was reading.
+        long lost = clock() - position - bufferSize / frameSize;
+        if (bufferSize > 0 && lost > 0) {
+            position += lost;
+            overruns++;
+        }
+        //wait until the frames have been "captured". a stopped line returns what it has, like a real one.
+        long behind;
+        while (running && (behind = position + frames - clock()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep((long) (behind * 1e9 / format.getFrameRate()));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!running) {
+            frames = (int) Math.max(0, Math.min(frames, clock() - position));
+        }
+        int channels = format.getChannels();
+        if (phases.length != channels) {
+            phases = new double[channels];
+            notes = new int[channels];
+            Arrays.fill(notes, -1);
+        }
+        long firstNanos = frameNanos(position);
+        double nanosPerFrame = 1e9 / format.getFrameRate();
+        for (int c = 0; c < channels; c++) {
+            LoopbackReceiver source = source(c);
+            double phase = phases[c];
+            int note = notes[c];
+            double step = step(note);
+            for (int i = 0; i < frames; i++) {
+                //each frame plays whatever could be heard at the moment it was captured
+                int now = source != null ? source.noteAt(firstNanos + (long) (i * nanosPerFrame)) : -1;
+                if (now != note) {
+                    if (note < 0) {
+                        phase = 0;
+                    }
+                    note = now;
+                    step = step(note);
+                }
+                short sample = 0;
+                if (note >= 0) {
+                    sample = (short) (LEVEL * Math.sin(phase));
+                    phase += step;
+                }
+                int at = off + i * frameSize + c * 2;
+                b[at] = (byte) sample;
+                b[at + 1] = (byte) (sample >> 8);
+            }
+            phases[c] = phase % (2 * Math.PI);
+            notes[c] = note;
+        }
+        position += frames;
+        return frames * frameSize;
+    }
+
+    private void stall(long frames) {
+        try {
+            TimeUnit.NANOSECONDS.sleep((long) (frames * 1e9 / format.getFrameRate()));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param seconds how often a read is held up long enough for the buffer to overflow, or 0 for never
+     */
+    public void setOverrunEverySeconds(double seconds) {
+        overrunEveryFrames = Math.round(seconds * format.getFrameRate());
+        nextOverrun = clock() + overrunEveryFrames;
+    }
+
+    /**
+     * @return number of times frames were lost because the line was not read in time
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        if (format.getSampleSizeInBits() != 16 || !format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)
+                || format.isBigEndian()) {
+            throw new IllegalArgumentException("loopback lines only do 16 bit signed little endian: " + format);
+        }
+        this.format = format;
+        this.bufferSize = bufferSize;
+        open = true;
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open(format, format.getFrameSize() * (int) format.getFrameRate() / 2);
+    }
+
+    @Override
+    public void open() {
+        open(format);
+    }
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public synchronized void flush() {
+        position = clock();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!running) {
+            startNanos = System.nanoTime();
+            running = true;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (running) {
+            clockBase = clock();
+            running = false;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(bufferSize, (clock() - position) * format.getFrameSize());
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return clock();
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return (long) (clock() * 1000000.0 / format.getFrameRate());
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(TargetDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        stop();
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("loopback lines have no controls");
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
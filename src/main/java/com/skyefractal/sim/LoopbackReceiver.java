@@ -0,0 +1,133 @@
+package com.skyefractal.sim;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.Random;
+
+/**
+ * Stands in for a monosynth on a MIDI port. It keeps track of which note is sounding (last note wins, like
+ * most monosynths) so a {@link LoopbackLine} can play it back as audio. Lets a recording session run end to end
+ * without any hardware.
+ *
+ * Recent note changes are kept with the time they arrived, so the line can put each change at the right frame
+ * rather than wherever its next read happens to fall. An optional latency delays every change, like the MIDI
+ * interface, synth and audio converters do in a real studio, and optional jitter adds a random extra delay of up
+ * to the given amount to each change. The jitter comes from a fixed seed so runs can be repeated.
+ */
+public class LoopbackReceiver implements Receiver {
+
+    //note changes a line may still need to look back at. far more than can arrive within one read.
+    private static final int HISTORY = 256;
+
+    private final long latencyNanos;
+    private long jitterNanos = 0;
+    private final Random random = new Random(0);
+    //ring of recent changes: when each arrived and the note sounding after it
+    private final long[] changeNanos = new long[HISTORY];
+    private final int[] changeNotes = new int[HISTORY];
+    private int changes = 0;
+    //-1 when nothing is sounding
+    private volatile int note = -1;
+    private volatile long messages = 0;
+    private volatile boolean open = true;
+
+    public LoopbackReceiver() {
+        this(0);
+    }
+
+    /**
+     * @param latencyNanos how long after a message arrives it can be heard
+     */
+    public LoopbackReceiver(long latencyNanos) {
+        this.latencyNanos = latencyNanos;
+    }
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (!open || !(message instanceof ShortMessage)) {
+            return;
+        }
+        messages++;
+        ShortMessage msg = (ShortMessage) message;
+        int command = msg.getCommand();
+        if (command == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+            change(msg.getData1());
+        }
+        else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+            if (note == msg.getData1()) {
+                change(-1);
+            }
+        }
+        else if (command == ShortMessage.CONTROL_CHANGE && msg.getData1() >= 120) {
+            //all sound off, all notes off and the other channel mode messages
+            change(-1);
+        }
+    }
+
+    private synchronized void change(int newNote) {
+        long nanos = System.nanoTime();
+        if (jitterNanos > 0) {
+            nanos += (long) (random.nextDouble() * jitterNanos);
+            //never ahead of the change before it, notes are not reordered
+            if (changes > 0) {
+                nanos = Math.max(nanos, changeNanos[(changes - 1) % HISTORY]);
+            }
+        }
+        int at = changes++ % HISTORY;
+        changeNanos[at] = nanos;
+        changeNotes[at] = newNote;
+        note = newNote;
+    }
+
+    /**
+     * @return the note currently sounding, or -1 if none
+     */
+    public int getNote() {
+        return note;
+    }
+
+    /**
+     * @param nanos a {@link System#nanoTime()}
+     * @return the note that could be heard at that time, allowing for the latency, or -1 if none
+     */
+    public synchronized int noteAt(long nanos) {
+        long heard = nanos - latencyNanos;
+        int oldest = Math.max(0, changes - HISTORY);
+        for (int i = changes - 1; i >= oldest; i--) {
+            if (changeNanos[i % HISTORY] <= heard) {
+                return changeNotes[i % HISTORY];
+            }
+        }
+        //before every change we still know about
+        return changes > HISTORY ? changeNotes[oldest % HISTORY] : -1;
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * @param jitterNanos most extra delay added to a change on top of the latency
+     */
+    public synchronized void setJitterNanos(long jitterNanos) {
+        this.jitterNanos = jitterNanos;
+    }
+
+    public synchronized long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * @return short messages received since this receiver was made
+     */
+    public long getMessages() {
+        return messages;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        change(-1);
+    }
+}
@@ -0,0 +1,204 @@
+package com.skyefractal.sim;
+
+import com.skyefractal.audio.AudioHelp;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An audio input with a {@link SimulatedSynth} plugged into it, so a stand in synth can be recorded through the
+ * same mixer lookup as a real interface. Every line it hands out is a {@link LoopbackLine} playing that synth.
+ */
+public class SimulatedInput implements Mixer {
+
+    private static final Line.Info TARGET = new Line.Info(TargetDataLine.class);
+
+    private final Mixer.Info info;
+    private final LoopbackReceiver synth;
+    private double overrunEverySeconds = 0;
+    //lines handed out and not closed yet
+    private final List<LoopbackLine> lines = new ArrayList<>();
+    //overruns on lines already closed and forgotten
+    private long closedOverruns = 0;
+    private boolean open = false;
+
+    /**
+     * @param name the mixer name, i.e. "Sim Input 1"
+     * @param synth the stand in synth heard on this input
+     */
+    public SimulatedInput(String name, LoopbackReceiver synth) {
+        this.info = new Mixer.Info(name, "skyefractal", "simulated audio input", "1.0") {
+        };
+        this.synth = synth;
+    }
+
+    /**
+     * @param seconds how often lines from this input are forced to overrun, or 0 for never
+     */
+    public void setOverrunEverySeconds(double seconds) {
+        this.overrunEverySeconds = seconds;
+    }
+
+    /**
+     * @return overruns on every line this input has handed out
+     */
+    public synchronized long getOverruns() {
+        prune();
+        long overruns = closedOverruns;
+        for (LoopbackLine line : lines) {
+            overruns += line.getOverruns();
+        }
+        return overruns;
+    }
+
+    @Override
+    public Mixer.Info getMixerInfo() {
+        return info;
+    }
+
+    @Override
+    public Line.Info[] getSourceLineInfo() {
+        return new Line.Info[0];
+    }
+
+    @Override
+    public Line.Info[] getTargetLineInfo() {
+        return new Line.Info[]{TARGET};
+    }
+
+    @Override
+    public Line.Info[] getSourceLineInfo(Line.Info info) {
+        return new Line.Info[0];
+    }
+
+    @Override
+    public Line.Info[] getTargetLineInfo(Line.Info info) {
+        return isLineSupported(info) ? getTargetLineInfo() : new Line.Info[0];
+    }
+
+    @Override
+    public boolean isLineSupported(Line.Info info) {
+        return TARGET.matches(info);
+    }
+
+    @Override
+    public synchronized Line getLine(Line.Info info) {
+        if (!isLineSupported(info)) {
+            throw new IllegalArgumentException("simulated inputs only have target data lines: " + info);
+        }
+        AudioFormat format = AudioHelp.CD_AUDIO;
+        if (info instanceof DataLine.Info && ((DataLine.Info) info).getFormats().length > 0) {
+            format = ((DataLine.Info) info).getFormats()[0];
+        }
+        LoopbackLine line = new LoopbackLine(synth, format);
+        if (overrunEverySeconds > 0) {
+            line.setOverrunEverySeconds(overrunEverySeconds);
+        }
+        prune();
+        lines.add(line);
+        return line;
+    }
+
+    /**
+     * Forget the lines that have been opened and closed again, keeping their overruns, so a long session that
+     * gets a line per take does not hold on to all of them. Lines not opened yet are kept.
+     */
+    private void prune() {
+        for (Iterator<LoopbackLine> i = lines.iterator(); i.hasNext(); ) {
+            LoopbackLine line = i.next();
+            //a line's buffer size is set when it is first opened
+            if (!line.isOpen() && line.getBufferSize() > 0) {
+                closedOverruns += line.getOverruns();
+                i.remove();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxLines(Line.Info info) {
+        return isLineSupported(info) ? AudioSystem.NOT_SPECIFIED : 0;
+    }
+
+    @Override
+    public Line[] getSourceLines() {
+        return new Line[0];
+    }
+
+    @Override
+    public synchronized Line[] getTargetLines() {
+        List<Line> open = new ArrayList<>();
+        for (LoopbackLine line : lines) {
+            if (line.isOpen()) {
+                open.add(line);
+            }
+        }
+        return open.toArray(new Line[open.size()]);
+    }
+
+    @Override
+    public void synchronize(Line[] lines, boolean maintainSync) {
+        throw new IllegalArgumentException("simulated inputs cannot synchronize lines");
+    }
+
+    @Override
+    public void unsynchronize(Line[] lines) {
+        throw new IllegalArgumentException("simulated inputs cannot synchronize lines");
+    }
+
+    @Override
+    public boolean isSynchronizationSupported(Line[] lines, boolean maintainSync) {
+        return false;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new Line.Info(Mixer.class);
+    }
+
+    @Override
+    public synchronized void open() {
+        open = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("simulated inputs have no controls");
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
@@ -0,0 +1,58 @@
+package com.skyefractal.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of stand in synths, each on its own MIDI port and plugged into its own audio input, for running
+ * sessions without any hardware. Synth N is on port N of {@link #MIDI_INTERFACE} and recorded through
+ * "{@link #INPUT} N", so a session is set up with the same names it would use for a MOTU interface and a real
+ * mixer, i.e. <code>-r song.mid "Sim Synth: Port" 1 "Sim Input 1"</code>. Install the studio in the
+ * {@link com.skyefractal.device.DeviceRegistry} to make the devices visible to lookups.
+ */
+public class SimulatedStudio {
+
+    public static final String MIDI_INTERFACE = "Sim Synth: Port";
+    public static final String INPUT = "Sim Input";
+    public static final int DEFAULT_PORTS = 4;
+
+    private final List<SimulatedSynth> synths = new ArrayList<>();
+    private final List<SimulatedInput> inputs = new ArrayList<>();
+
+    /**
+     * @param ports number of synths, on ports 1 and up
+     * @param latencyNanos how long each synth takes to be heard
+     * @param jitterNanos most extra random delay on each note change
+     * @param overrunEverySeconds how often recording lines are forced to overrun, or 0 for never
+     */
+    public SimulatedStudio(int ports, long latencyNanos, long jitterNanos, double overrunEverySeconds) {
+        for (int port = 1; port <= ports; port++) {
+            LoopbackReceiver receiver = new LoopbackReceiver(latencyNanos);
+            receiver.setJitterNanos(jitterNanos);
+            synths.add(new SimulatedSynth(MIDI_INTERFACE + " " + port, receiver));
+            SimulatedInput input = new SimulatedInput(INPUT + " " + port, receiver);
+            input.setOverrunEverySeconds(overrunEverySeconds);
+            inputs.add(input);
+        }
+    }
+
+    public List<SimulatedSynth> getSynths() {
+        return Collections.unmodifiableList(synths);
+    }
+
+    public List<SimulatedInput> getInputs() {
+        return Collections.unmodifiableList(inputs);
+    }
+
+    /**
+     * @return overruns on every line recorded from the studio so far
+     */
+    public long getOverruns() {
+        long overruns = 0;
+        for (SimulatedInput input : inputs) {
+            overruns += input.getOverruns();
+        }
+        return overruns;
+    }
+}
@@ -0,0 +1,88 @@
+package com.skyefractal.sim;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A MIDI output port with a {@link LoopbackReceiver} behind it, so a stand in synth can be found and opened the
+ * same way as a port on a real interface. Its one receiver is shared by everything that asks for it.
+ */
+public class SimulatedSynth implements MidiDevice {
+
+    private final MidiDevice.Info info;
+    private final LoopbackReceiver receiver;
+    private boolean open = false;
+
+    /**
+     * @param name the port name, i.e. "Sim Synth: Port 1"
+     * @param receiver the stand in synth
+     */
+    public SimulatedSynth(String name, LoopbackReceiver receiver) {
+        this.info = new MidiDevice.Info(name, "skyefractal", "simulated monosynth", "1.0") {
+        };
+        this.receiver = receiver;
+    }
+
+    public LoopbackReceiver getLoopbackReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public MidiDevice.Info getDeviceInfo() {
+        return info;
+    }
+
+    @Override
+    public synchronized void open() {
+        open = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return 0;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return Collections.<Receiver>singletonList(receiver);
+    }
+
+    @Override
+    public Transmitter getTransmitter() throws MidiUnavailableException {
+        throw new MidiUnavailableException("simulated synths have no MIDI out");
+    }
+
+    @Override
+    public List<Transmitter> getTransmitters() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,97 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Exercises the single producer/single consumer chunk ring.
+ */
+public class AudioRingBufferTest
+{
+    //first thing the consumer thread saw go wrong, asserted once it has finished
+    private volatile String mismatch;
+
+    @Test
+    public void countsOverrunsWhenFull()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(3, 16);
+        assertEquals(4, ring.getCapacity());
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ring.claim());
+            ring.commit(16);
+        }
+        assertNull(ring.claim());
+        assertEquals(1, ring.getOverruns());
+        assertEquals(4, ring.getHighWaterMark());
+
+        assertNotNull(ring.take());
+        ring.release();
+        assertNotNull(ring.claim());
+    }
+
+    @Test
+    public void silenceMakesUpForLostChunksAsSlotsFree()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(2, 4);
+        for (int i = 0; i < 2; i++) {
+            ring.claim()[0] = 1;
+            ring.commit(4);
+        }
+        assertEquals(10, ring.commitSilence(10, (byte) 0));
+        assertNotNull(ring.take());
+        ring.release();
+        assertEquals(6, ring.commitSilence(10, (byte) 0x80));
+        assertEquals(0, ring.getOverruns());
+
+        ring.take();
+        ring.release();
+        byte[] silence = ring.take();
+        assertEquals(4, ring.length());
+        assertEquals((byte) 0x80, silence[0]);
+        assertEquals((byte) 0x80, silence[3]);
+    }
+
+    @Test(timeout = 30000)
+    public void consumerSeesEveryChunkInOrder() throws Exception
+    {
+        final AudioRingBuffer ring = new AudioRingBuffer(8, 4);
+        final long[] sum = new long[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] slot;
+                int expected = 0;
+                //an assert failing here would stop the releases and leave the producer spinning
+                while ((slot = ring.take()) != null) {
+                    if (mismatch == null && ring.length() != 1) {
+                        mismatch = "chunk " + expected + " is " + ring.length() + " bytes";
+                    }
+                    if (mismatch == null && slot[0] != (byte) expected) {
+                        mismatch = "chunk " + expected + " holds " + slot[0];
+                    }
+                    expected++;
+                    sum[0] += slot[0] & 0xFF;
+                    ring.release();
+                }
+            }
+        });
+        consumer.start();
+        long expectedSum = 0;
+        for (int i = 0; i < 100000; i++) {
+            byte[] slot;
+            while ((slot = ring.claim()) == null) {
+                Thread.yield();
+            }
+            slot[0] = (byte) i;
+            expectedSum += i & 0xFF;
+            ring.commit(1);
+        }
+        ring.close();
+        consumer.join();
+        assertNull(mismatch, mismatch);
+        assertEquals(expectedSum, sum[0]);
+    }
+}
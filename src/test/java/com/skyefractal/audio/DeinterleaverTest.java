@@ -0,0 +1,48 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Checks channel groups are pulled out of interleaved audio intact.
+ */
+public class DeinterleaverTest
+{
+    @Test
+    public void groupsGetTheirOwnChannels()
+    {
+        AudioFormat format = new AudioFormat(44000.0f, 16, 5, true, false);
+        int[][] groups = Deinterleaver.parseGroups("1-2,3-4,5");
+        assertArrayEquals(new int[]{0, 1}, groups[0]);
+        assertArrayEquals(new int[]{4}, groups[2]);
+        Deinterleaver deinterleaver = new Deinterleaver(format, groups);
+        assertEquals(2, deinterleaver.getFormat(0).getChannels());
+        assertEquals(2, deinterleaver.getFormat(2).getFrameSize());
+
+        //3 frames. each sample is {frame, channel} so it is easy to see where it ended up
+        byte[] data = new byte[1 + 3 * 10 + 3];
+        for (int f = 0; f < 3; f++) {
+            for (int c = 0; c < 5; c++) {
+                data[1 + f * 10 + c * 2] = (byte) f;
+                data[1 + f * 10 + c * 2 + 1] = (byte) c;
+            }
+        }
+        byte[][] outputs = {new byte[12], null, new byte[6]};
+        //a trailing partial frame is ignored
+        assertEquals(3, deinterleaver.split(data, 1, data.length - 1, outputs));
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 1, 0, 1, 1, 2, 0, 2, 1}, outputs[0]);
+        assertNull(outputs[1]);
+        assertArrayEquals(new byte[]{0, 4, 1, 4, 2, 4}, outputs[2]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void channelsMustBeOnTheLine()
+    {
+        new Deinterleaver(new AudioFormat(44000.0f, 16, 2, true, false), Deinterleaver.parseGroups("3"));
+    }
+}
@@ -0,0 +1,93 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Round trips audio through the encoder and decoder.
+ */
+public class FlacEncoderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File wav(AudioFormat format, int frames, double noise) throws Exception
+    {
+        Random random = new Random(42);
+        int sampleBytes = format.getSampleSizeInBits() / 8;
+        double fullScale = (1 << (format.getSampleSizeInBits() - 1)) - 1;
+        ByteBuffer data = ByteBuffer.allocate(frames * format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            for (int c = 0; c < format.getChannels(); c++) {
+                double value = 0.5 * Math.sin(i * (0.01 + c * 0.003)) + noise * (random.nextDouble() * 2 - 1);
+                int sample = (int) Math.round(Math.max(-1, Math.min(1, value)) * fullScale);
+                for (int b = 0; b < sampleBytes; b++) {
+                    data.put((byte) (sample >> (8 * b)));
+                }
+            }
+        }
+        File file = folder.newFile();
+        try (WavWriter writer = new WavWriter(file, format)) {
+            writer.writeSilence(1000);
+            writer.write(data.array(), 0, data.capacity());
+        }
+        return file;
+    }
+
+    @Test
+    public void stereoRoundTrip() throws Exception
+    {
+        //several whole blocks and a short one at the end
+        File wav = wav(AudioHelp.CD_AUDIO, FlacEncoder.BLOCK_SIZE * 5 + 123, 0.001);
+        File flac = folder.newFile();
+        long size = FlacEncoder.encode(wav, flac);
+        assertEquals(flac.length(), size);
+        assertTrue("flac is " + size + " bytes", size < wav.length() / 2);
+        assertTrue(FlacDecoder.verify(flac, wav));
+        try (FlacDecoder decoder = new FlacDecoder(flac)) {
+            assertEquals(1000 + FlacEncoder.BLOCK_SIZE * 5 + 123, decoder.getTotalFrames());
+        }
+    }
+
+    @Test
+    public void noiseAnd24BitRoundTrip() throws Exception
+    {
+        //full scale noise can't be predicted and is stored verbatim
+        File noise = wav(AudioHelp.CD_AUDIO, 10000, 1.0);
+        File flac = folder.newFile();
+        FlacEncoder.encode(noise, flac);
+        assertTrue(FlacDecoder.verify(flac, noise));
+
+        File mono24 = wav(new AudioFormat(48000, 24, 1, true, false), 20000, 0.01);
+        FlacEncoder.encode(mono24, flac);
+        assertTrue(FlacDecoder.verify(flac, mono24));
+    }
+
+    @Test
+    public void verifyFindsDamage() throws Exception
+    {
+        File wav = wav(AudioHelp.CD_AUDIO, 20000, 0.001);
+        File flac = folder.newFile();
+        FlacEncoder.encode(wav, flac);
+        //change one sample of the original
+        try (RandomAccessFile file = new RandomAccessFile(wav, "rw")) {
+            file.seek(WavWriter.HEADER_SIZE + 40000);
+            int b = file.read();
+            file.seek(WavWriter.HEADER_SIZE + 40000);
+            file.write(b ^ 1);
+        }
+        assertFalse(FlacDecoder.verify(flac, wav));
+    }
+}
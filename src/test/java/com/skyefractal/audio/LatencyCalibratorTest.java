@@ -0,0 +1,37 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.sim.LoopbackLine;
+import com.skyefractal.sim.LoopbackReceiver;
+import org.junit.Test;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Checks the calibrator finds the latency of a stand in synth.
+ */
+public class LatencyCalibratorTest
+{
+    @Test
+    public void measuresLoopbackLatency() throws Exception
+    {
+        AudioFormat format = AudioHelp.CD_AUDIO;
+        //5ms is 220 frames at 44k
+        LoopbackReceiver synth = new LoopbackReceiver(5000000L);
+        LatencyCalibrator calibrator = new LatencyCalibrator(new LoopbackLine(synth, format), format,
+                LatencyCalibrator.allChannels(format));
+        long latency = calibrator.measure(synth);
+        assertTrue("latency " + latency, latency >= 200 && latency <= 240);
+    }
+
+    @Test
+    public void silenceIsNeverHeard() throws Exception
+    {
+        AudioFormat format = AudioHelp.CD_AUDIO;
+        //the line listens to a synth that is never played
+        LatencyCalibrator calibrator = new LatencyCalibrator(new LoopbackLine(new LoopbackReceiver(), format),
+                format, LatencyCalibrator.allChannels(format));
+        assertTrue(calibrator.measure(new LoopbackReceiver()) < 0);
+    }
+}
@@ -0,0 +1,124 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mixes small stems across several blocks and threads and checks every sample of the master.
+ */
+public class MixdownTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File stem(String name, int frames, short left, short right) throws Exception
+    {
+        ByteBuffer data = ByteBuffer.allocate(frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            data.putShort(left).putShort(right);
+        }
+        File file = folder.newFile(name);
+        try (WavWriter writer = new WavWriter(file, AudioHelp.CD_AUDIO)) {
+            writer.write(data.array(), 0, data.capacity());
+        }
+        return file;
+    }
+
+    private Mixdown mixdown() throws Exception
+    {
+        //stems of different lengths, and blocks that don't divide them evenly
+        Mixdown mixdown = new Mixdown(Arrays.asList(stem("recording_0.wav", 50, (short) 8192, (short) -4096),
+                stem("recording_1.wav", 23, (short) 8192, (short) 0)));
+        mixdown.setBlockFrames(7);
+        mixdown.setThreads(3);
+        mixdown.setPeakDb(0);
+        return mixdown;
+    }
+
+    @Test
+    public void normalisesTo24Bit() throws Exception
+    {
+        File master = folder.newFile("master.wav");
+        //the two lefts sum to half scale
+        assertEquals(0.5, mixdown().mix(master), 1e-6);
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(master.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(WavWriter.HEADER_SIZE + 50 * 6, data.capacity());
+        assertEquals(24, data.getShort(34));
+        for (int frame = 0; frame < 50; frame++) {
+            int left = sample24(data, WavWriter.HEADER_SIZE + frame * 6);
+            int right = sample24(data, WavWriter.HEADER_SIZE + frame * 6 + 3);
+            //doubled so the peak is full scale
+            assertEquals("frame " + frame, frame < 23 ? 8388607 : 4194304, left);
+            assertEquals("frame " + frame, -2097152, right);
+        }
+    }
+
+    @Test
+    public void writesFloat() throws Exception
+    {
+        File master = folder.newFile("master.wav");
+        Mixdown mixdown = mixdown();
+        mixdown.setFloat(true);
+        mixdown.mix(master);
+
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(master.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(WavWriter.HEADER_SIZE + 50 * 8, data.capacity());
+        //IEEE float format tag
+        assertEquals(3, data.getShort(20));
+        assertEquals(1.0f, data.getFloat(WavWriter.HEADER_SIZE), 1e-6f);
+        assertEquals(-0.25f, data.getFloat(WavWriter.HEADER_SIZE + 4), 1e-6f);
+        assertEquals(0.5f, data.getFloat(WavWriter.HEADER_SIZE + 49 * 8), 1e-6f);
+    }
+
+    @Test
+    public void findsStemsInTrackOrder() throws Exception
+    {
+        File second = stem("recording_10.wav", 1, (short) 0, (short) 0);
+        File first = stem("recording_2.wav", 1, (short) 0, (short) 0);
+        stem("recording_3.sparse.wav", 1, (short) 0, (short) 0);
+        assertEquals(Arrays.asList(first, second), Mixdown.findStems(folder.getRoot()));
+    }
+
+    @Test
+    public void mixesFlacStemsLikeTheirWavs() throws Exception
+    {
+        File wavMaster = folder.newFile("wav_master.wav");
+        Mixdown mixdown = mixdown();
+        mixdown.mix(wavMaster);
+
+        //compressed like --flac does, wav and all
+        File wav = new File(folder.getRoot(), "recording_1.wav");
+        File flac = new File(folder.getRoot(), "recording_1.flac");
+        FlacEncoder.encode(wav, flac);
+        assertEquals(Arrays.asList(new File(folder.getRoot(), "recording_0.wav"), wav),
+                Mixdown.findStems(folder.getRoot()));
+        assertTrue(wav.delete());
+        List<File> stems = Mixdown.findStems(folder.getRoot());
+        assertEquals(Arrays.asList(new File(folder.getRoot(), "recording_0.wav"), flac), stems);
+
+        File flacMaster = folder.newFile("flac_master.wav");
+        Mixdown fromFlac = new Mixdown(stems);
+        fromFlac.setBlockFrames(7);
+        fromFlac.setPeakDb(0);
+        assertEquals(0.5, fromFlac.mix(flacMaster), 1e-6);
+        assertArrayEquals(Files.readAllBytes(wavMaster.toPath()), Files.readAllBytes(flacMaster.toPath()));
+    }
+
+    private static int sample24(ByteBuffer data, int offset)
+    {
+        return AudioHelp.sampleAt(data.array(), offset, 3);
+    }
+}
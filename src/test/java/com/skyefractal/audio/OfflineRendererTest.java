@@ -0,0 +1,60 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+
+/**
+ * Renders through the JDK's software synth with its default bank and checks the stem lines up.
+ */
+public class OfflineRendererTest
+{
+    private static final AudioFormat FORMAT = AudioHelp.CD_AUDIO;
+
+    @Test
+    public void firstTickLandsAtEndOfPreRoll() throws Exception
+    {
+        //one beat rest then a beat long note. 120BPM so the note starts half a second in.
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 480));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 960));
+        File stem = File.createTempFile("render", ".wav");
+        stem.deleteOnExit();
+
+        long frames = new OfflineRenderer(null, FORMAT, 1).renderTrack(sequence, 0, stem);
+
+        long preRoll = (long) AudioRecorder.PRE_ROLL_SECONDS * (long) FORMAT.getFrameRate();
+        long noteFrame = (long) FORMAT.getFrameRate() / 2;
+        //the whole track and then some tail
+        assertTrue("rendered " + frames, frames > noteFrame * 2);
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(stem)) {
+            assertEquals(preRoll + frames, in.getFrameLength());
+            byte[] data = new byte[(int) (in.getFrameLength() * FORMAT.getFrameSize())];
+            int length = 0;
+            int count;
+            while ((count = in.read(data, length, data.length - length)) > 0) {
+                length += count;
+            }
+            long onset = -1;
+            for (int i = 0; i < length; i += 2) {
+                if (Math.abs(AudioHelp.sampleAt(data, i, 2)) > 1) {
+                    onset = i / FORMAT.getFrameSize();
+                    break;
+                }
+            }
+            //the attack takes a few frames to rise above the bottom bits
+            assertTrue("onset at " + onset, onset >= preRoll + noteFrame && onset < preRoll + noteFrame + 32);
+        }
+    }
+}
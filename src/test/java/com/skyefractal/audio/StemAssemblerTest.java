@@ -0,0 +1,53 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.DataInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Checks sparse takes are laid back out on the timeline.
+ */
+public class StemAssemblerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void regionsLandAtTheirStartFrames() throws Exception
+    {
+        File sparse = folder.newFile("take.sparse.wav");
+        File stem = folder.newFile("take.wav");
+        byte[] ones = new byte[40];
+        Arrays.fill(ones, (byte) 1);
+        byte[] twos = new byte[20];
+        Arrays.fill(twos, (byte) 2);
+        try (WavWriter writer = new WavWriter(sparse, AudioHelp.CD_AUDIO)) {
+            writer.write(ones, 0, ones.length);
+            writer.write(twos, 0, twos.length);
+        }
+
+        StemAssembler.assemble(sparse, Arrays.asList(new StemAssembler.Placement(5, 10),
+                new StemAssembler.Placement(30, 5)), stem, AudioHelp.CD_AUDIO, 50);
+
+        byte[] data = new byte[200];
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(stem)) {
+            assertEquals(50, in.getFrameLength());
+            new DataInputStream(in).readFully(data);
+        }
+        assertEquals(0, data[19]);
+        assertEquals(1, data[20]);
+        assertEquals(1, data[59]);
+        assertEquals(0, data[60]);
+        assertEquals(2, data[120]);
+        assertEquals(2, data[139]);
+        assertEquals(0, data[140]);
+    }
+}
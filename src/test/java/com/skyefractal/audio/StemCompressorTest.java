@@ -0,0 +1,41 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+/**
+ * Checks stems are swapped for verified flacs in the background.
+ */
+public class StemCompressorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replacesWavsWithFlacs() throws Exception
+    {
+        //one worker and no queue, so the later submits have to wait their turn
+        StemCompressor compressor = new StemCompressor(1, 0, true);
+        for (int i = 0; i < 3; i++) {
+            File wav = new File(folder.getRoot(), "recording_" + i + ".wav");
+            try (WavWriter writer = new WavWriter(wav, AudioHelp.CD_AUDIO)) {
+                writer.writeSilence(50000);
+            }
+            compressor.submit(wav);
+        }
+        compressor.close();
+        assertEquals(3, compressor.getCompressed());
+        assertEquals(0, compressor.getFailed());
+        for (int i = 0; i < 3; i++) {
+            assertFalse(new File(folder.getRoot(), "recording_" + i + ".wav").exists());
+            assertTrue(new File(folder.getRoot(), "recording_" + i + ".flac").exists());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the release tail detector on generated audio.
+ */
+public class TailDetectorTest
+{
+    //100ms of cd audio
+    private static final int FRAMES = 4400;
+
+    private static byte[] tone(double amplitude)
+    {
+        byte[] data = new byte[FRAMES * 4];
+        for (int i = 0; i < FRAMES; i++) {
+            short sample = (short) (amplitude * Short.MAX_VALUE * Math.sin(i * 2 * Math.PI * 440 / 44000));
+            for (int c = 0; c < 2; c++) {
+                data[i * 4 + c * 2] = (byte) sample;
+                data[i * 4 + c * 2 + 1] = (byte) (sample >> 8);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void silentOnlyAfterHoldTime()
+    {
+        TailDetector detector = new TailDetector(AudioHelp.CD_AUDIO, -60, 300);
+        byte[] loud = tone(0.5);
+        byte[] quiet = tone(0.0001);
+        detector.process(loud, 0, loud.length);
+        assertFalse(detector.isSilent());
+        for (int i = 0; i < 2; i++) {
+            detector.process(quiet, 0, quiet.length);
+        }
+        assertFalse(detector.isSilent());
+        detector.process(quiet, 0, quiet.length);
+        detector.process(quiet, 0, quiet.length);
+        assertTrue(detector.isSilent());
+
+        //a loud burst starts the hold again
+        detector.process(loud, 0, loud.length);
+        assertFalse(detector.isSilent());
+        detector.reset();
+        assertFalse(detector.isSilent());
+    }
+}
@@ -0,0 +1,51 @@
+package com.skyefractal.audio;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+
+/**
+ * Checks the streamed wav output can be read back by javax.sound.
+ */
+public class WavWriterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void headerMatchesAudioWritten() throws Exception
+    {
+        File file = folder.newFile("take.wav");
+        byte[] chunk = new byte[4000];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+        try (WavWriter writer = new WavWriter(file, AudioHelp.CD_AUDIO)) {
+            writer.writeSilence(100);
+            writer.write(chunk, 0, chunk.length);
+            writer.write(chunk, 0, 400);
+            assertEquals(100 + 1000 + 100, writer.getFrames());
+        }
+
+        AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+        assertEquals(AudioFileFormat.Type.WAVE, fileFormat.getType());
+        assertEquals(1200, fileFormat.getFrameLength());
+        assertEquals(WavWriter.HEADER_SIZE + 4800, file.length());
+        try (AudioInputStream in = AudioSystem.getAudioInputStream(file)) {
+            byte[] data = new byte[4800];
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+            assertEquals(0, data[399]);
+            assertEquals((byte) 7, data[407]);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.skyefractal.daemon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks jobs wait for each other only over what they share, and that failed jobs report why.
+ */
+public class JobRunnerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void failedJobsReportWhy() throws Exception
+    {
+        File empty = folder.newFolder("empty");
+        Job job = new Job(new String[]{"-x", empty.getPath(), new File(folder.getRoot(), "master.wav").getPath()},
+                "test");
+        final CountDownLatch done = new CountDownLatch(1);
+        try (JobRunner runner = new JobRunner(1)) {
+            runner.submit(job, new JobRunner.Listener() {
+                @Override
+                public void finished(Job job) {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+        assertNotNull(job.getFailure());
+        assertTrue(job.report(), job.report().contains("failed: java.io.IOException: no recording_N.wav stems in "
+                + empty));
+    }
+
+    @Test
+    public void onlyJobsThatShareResourcesWait() throws Exception
+    {
+        final CountDownLatch recording = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Long> started = Collections.synchronizedList(new ArrayList<Long>());
+        Job record = new Job(Job.parse("-r song.mid \"Express  128: Port\" 1 MOTU"), "test");
+        Job mix = new Job(Job.parse("-x . master.wav"), "test");
+        Job split = new Job(Job.parse("-s song.mid song_split.mid"), "test");
+        final CountDownLatch splitDone = new CountDownLatch(1);
+        try (JobRunner runner = new JobRunner(2) {
+            @Override
+            void execute(Job job) throws Exception {
+                started.add(job.getId());
+                if (job.getArgs()[0].equals("-r")) {
+                    recording.countDown();
+                    release.await();
+                }
+            }
+        }) {
+            runner.submit(record, null);
+            assertTrue(recording.await(10, TimeUnit.SECONDS));
+            runner.submit(mix, null);
+            runner.submit(split, new JobRunner.Listener() {
+                @Override
+                public void finished(Job job) {
+                    splitDone.countDown();
+                }
+            });
+            //the split passes the mix waiting on the stems, and no worker is stuck holding the mix
+            assertTrue(splitDone.await(10, TimeUnit.SECONDS));
+            assertTrue(runner.status(), runner.status().contains("1 running, 1 waiting"));
+            release.countDown();
+        }
+        assertEquals(Arrays.asList(record.getId(), split.getId(), mix.getId()), started);
+    }
+}
@@ -0,0 +1,53 @@
+package com.skyefractal.daemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Checks job lines are split like a shell would and that jobs only hold the hardware they use.
+ */
+public class JobTest
+{
+    @Test
+    public void quotesKeepSpaces()
+    {
+        assertArrayEquals(new String[]{"-r", "song.mid", "Express  128: Port", "1", "MOTU", "--flac"},
+                Job.parse("  -r song.mid \"Express  128: Port\" 1   MOTU --flac "));
+        assertArrayEquals(new String[]{"-x", "", "master.wav"}, Job.parse("-x \"\" master.wav"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unterminatedQuoteIsRejected()
+    {
+        Job.parse("-p song.mid \"Express  128: Port 1");
+    }
+
+    @Test
+    public void jobsLockOnlyWhatTheyUse()
+    {
+        Job record = new Job(Job.parse("-r song.mid \"Express  128: Port\" 1 MOTU --sparse"), "test");
+        assertEquals(Arrays.asList("audio:MOTU", "midi:Express  128: Port 1", Job.STEMS),
+                Arrays.asList(record.resources().toArray()));
+
+        Job play = new Job(Job.parse("-p song.mid \"Express  128: Port\" 2"), "test");
+        assertEquals(Arrays.asList("midi:Express  128: Port 2"), Arrays.asList(play.resources().toArray()));
+
+        Job rigs = new Job(Job.parse("-m song.mid loopback \"Express  128: Port|3|MOTU 2\""), "test");
+        assertEquals(Arrays.asList("audio:MOTU 2", "midi:Express  128: Port 3", Job.STEMS),
+                Arrays.asList(rigs.resources().toArray()));
+
+        assertTrue(new Job(Job.parse("-s song.mid song_split.mid"), "test").resources().isEmpty());
+
+        //mixing waits for a session recording into the same directory, but not one elsewhere
+        assertEquals(Arrays.asList(Job.STEMS),
+                Arrays.asList(new Job(Job.parse("-x . master.wav"), "test").resources().toArray()));
+        assertEquals(Arrays.asList(Job.STEMS),
+                Arrays.asList(new Job(Job.parse("-x \"\" master.wav --float"), "test").resources().toArray()));
+        assertTrue(new Job(Job.parse("-x takes/old master.wav"), "test").resources().isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package com.skyefractal.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.sim.LoopbackLine;
+import com.skyefractal.sim.SimulatedStudio;
+import org.junit.Test;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequencer;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Checks devices are listed once and that lookups of missing devices fail cleanly.
+ */
+public class DeviceRegistryTest
+{
+    @Test
+    public void devicesAreListedOnce()
+    {
+        DeviceRegistry registry = new DeviceRegistry();
+        assertSame(registry.getMidiDevices(), registry.getMidiDevices());
+        assertSame(registry.getMixers(), registry.getMixers());
+        assertTrue(registry.getTimings().size() == 2);
+    }
+
+    @Test
+    public void sequencerIsNotConnectedToTheSynth() throws Exception
+    {
+        Sequencer sequencer = new DeviceRegistry().getSequencer();
+        assertFalse(sequencer.isOpen());
+        assertTrue(sequencer.getTransmitters().isEmpty());
+    }
+
+    @Test(expected = MidiUnavailableException.class)
+    public void missingPortThrows() throws Exception
+    {
+        new DeviceRegistry().getReceiver(99, "No Such Interface");
+    }
+
+    @Test(expected = LineUnavailableException.class)
+    public void missingMixerThrows() throws Exception
+    {
+        new DeviceRegistry().getMixer("No Such Mixer");
+    }
+
+    @Test
+    public void simulatedDevicesAreFoundLikeHardware() throws Exception
+    {
+        DeviceRegistry registry = new DeviceRegistry();
+        SimulatedStudio studio = new SimulatedStudio(2, 0, 0, 0);
+        registry.install(studio);
+        assertSame(studio.getSynths().get(1).getLoopbackReceiver(),
+                registry.getReceiver(2, SimulatedStudio.MIDI_INTERFACE));
+        assertSame(studio.getInputs().get(0), registry.getMixer(SimulatedStudio.INPUT + " 1"));
+        TargetDataLine line = registry.getLine(SimulatedStudio.INPUT + " 1", AudioHelp.CD_AUDIO);
+        assertTrue(line instanceof LoopbackLine);
+        assertEquals(AudioHelp.CD_AUDIO, line.getFormat());
+        registry.close();
+    }
+}
@@ -0,0 +1,76 @@
+package com.skyefractal.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks the histogram buckets, the JSON summary and that the metrics can be read over JMX.
+ */
+public class SessionMetricsTest
+{
+    @Before
+    public void clear()
+    {
+        SessionMetrics.get().reset();
+    }
+
+    @Test
+    public void histogramPercentilesAreBucketBounds()
+    {
+        Histogram histogram = new Histogram(10, 10);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(5);
+        }
+        histogram.record(42);
+        histogram.record(250);
+        assertEquals(100, histogram.getCount());
+        assertEquals(10, histogram.percentile(0.5));
+        assertEquals(50, histogram.percentile(0.99));
+        assertEquals(250, histogram.percentile(1.0));
+        assertEquals(1, histogram.getCounts()[10]);
+    }
+
+    @Test
+    public void summaryListsEveryTake()
+    {
+        SessionMetrics metrics = SessionMetrics.get();
+        TakeMetrics take = metrics.take(3);
+        take.setSource("rig \"a\"");
+        take.overrun();
+        take.captured(8192);
+        metrics.captured(8192);
+        metrics.overrun();
+        assertEquals(75, metrics.lineFill(6144, 8192));
+        String json = metrics.toJson();
+        assertTrue(json, json.contains("\"capturedBytes\": 8192,"));
+        assertTrue(json, json.contains("\"track\": 3, \"source\": \"rig \\\"a\\\"\""));
+        assertTrue(json, json.contains("\"overruns\": 1,"));
+        assertTrue(json, json.contains("\"max\": 75,"));
+    }
+
+    @Test
+    public void takesCanBeReadOverJmx() throws Exception
+    {
+        SessionMetrics metrics = SessionMetrics.get();
+        metrics.register();
+        //a second registration is ignored
+        metrics.register();
+        metrics.take(1).shortRead();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(SessionMetrics.OBJECT_NAME);
+        CompositeData[] takes = (CompositeData[]) server.getAttribute(name, "Takes");
+        assertEquals(1, takes.length);
+        assertEquals(1, takes[0].get("track"));
+        assertEquals(1L, takes[0].get("shortReads"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0, metrics.getTakes().length);
+    }
+}
@@ -0,0 +1,57 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.List;
+
+/**
+ * Checks tempo conversion and how a track is broken into active regions.
+ */
+public class ActiveRegionTest
+{
+    private static void note(Track track, long on, long off) throws Exception
+    {
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), on));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), off));
+    }
+
+    @Test
+    public void tempoChangesAreFollowed() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 960);
+        Track track = sequence.createTrack();
+        //60BPM from beat 2
+        byte[] data = new byte[]{0x0F, 0x42, 0x40};
+        track.add(new MidiEvent(new MetaMessage(0x51, data, data.length), 1920));
+        TempoMap tempo = new TempoMap(sequence);
+        assertEquals(500000, tempo.toMicros(960));
+        assertEquals(1000000, tempo.toMicros(1920));
+        assertEquals(2000000, tempo.toMicros(2880));
+        assertEquals(2880, tempo.toTick(2000000));
+        assertEquals(480, tempo.toTick(250000));
+    }
+
+    @Test
+    public void shortRestsShareARegion() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 960);
+        Track track = sequence.createTrack();
+        //at 120BPM 960 ticks is half a second
+        note(track, 960, 1920);
+        note(track, 2880, 3840);
+        note(track, 96000, 96960);
+        List<ActiveRegion> regions = ActiveRegion.find(track, new TempoMap(sequence), 100000, 4000000);
+        assertEquals(2, regions.size());
+        assertEquals(400000, regions.get(0).getStartMicros());
+        assertEquals(2000000, regions.get(0).getEndMicros());
+        assertEquals(50000000 - 100000, regions.get(1).getStartMicros());
+        assertEquals(96960, regions.get(1).getEndTick());
+    }
+}
@@ -0,0 +1,109 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a small batch with a broken file in it and checks every file is split like -s would, the broken one
+ * is reported, and the summary counts only what was split.
+ */
+public class BatchSplitterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void note(Track track, int channel, int note, long on, long off) throws Exception
+    {
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note, 100), on));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0), off));
+    }
+
+    private File band(String name) throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        //conductor track at 100BPM
+        byte[] tempo = {0x09, 0x27, (byte) 0xC0};
+        sequence.createTrack().add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        Track keys = sequence.createTrack();
+        keys.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 1, 5, 0), 0));
+        note(keys, 1, 60, 0, 480);
+        note(keys, 1, 64, 0, 480);
+        Track bass = sequence.createTrack();
+        note(bass, 0, 36, 0, 960);
+        File file = folder.newFile(name);
+        MidiSystem.write(sequence, 1, file);
+        return file;
+    }
+
+    @Test
+    public void splitsEveryTrackAndReportsFailures() throws Exception
+    {
+        band("a.mid");
+        Files.write(folder.newFile("b.mid").toPath(), "not midi".getBytes(StandardCharsets.US_ASCII));
+        band("c.mid");
+        List<Path> files = BatchSplitter.findFiles(folder.getRoot().getPath());
+        assertEquals(3, files.size());
+
+        BatchSplitter splitter = new BatchSplitter(2);
+        List<BatchSplitter.Result> results;
+        try {
+            results = splitter.split(files, folder.newFolder("out").toPath());
+        }
+        finally {
+            splitter.shutdown();
+        }
+        assertEquals(3, results.size());
+        assertNull(results.get(0).getFailure());
+        assertNotNull(results.get(1).getFailure());
+        assertTrue(!Files.exists(results.get(1).getOutput()));
+        assertNull(results.get(2).getFailure());
+        assertEquals("c_split.mid", results.get(2).getOutput().getFileName().toString());
+
+        //a stem per source track, channel and note, each with the tempo and its channel's program
+        Sequence split = MidiSystem.getSequence(results.get(0).getOutput().toFile());
+        Track[] stems = split.getTracks();
+        assertEquals(3, stems.length);
+        for (Track stem : stems) {
+            MetaMessage tempo = (MetaMessage) stem.get(0).getMessage();
+            assertEquals(0x51, tempo.getType());
+            assertEquals(Arrays.toString(new byte[]{0x09, 0x27, (byte) 0xC0}), Arrays.toString(tempo.getData()));
+        }
+        assertEquals(ShortMessage.PROGRAM_CHANGE, ((ShortMessage) stems[0].get(1).getMessage()).getCommand());
+        assertEquals(36, ((ShortMessage) stems[2].get(1).getMessage()).getData1());
+        //conductor tempo and end of track, program change and notes and end of track, notes and end of track
+        assertEquals(2 + 6 + 3, results.get(0).getEvents());
+    }
+
+    @Test
+    public void summaryCountsOnlyWhatWasSplit()
+    {
+        Path in = folder.getRoot().toPath();
+        List<BatchSplitter.Result> results = Arrays.asList(
+                new BatchSplitter.Result(in.resolve("a.mid"), in.resolve("a_split.mid"), 1000, 1000000, null),
+                new BatchSplitter.Result(in.resolve("b.mid"), in.resolve("b_split.mid"), 0, 1000000,
+                        new IOException("not midi")),
+                new BatchSplitter.Result(in.resolve("c.mid"), in.resolve("c_split.mid"), 3000, 1000000, null));
+        assertEquals("split 2 of 3 files in 2.000 s: 1.0 files/s, 2000 events/s",
+                BatchSplitter.report(results, 2000000000L));
+    }
+}
@@ -0,0 +1,147 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.metrics.SessionMetrics;
+import org.junit.Test;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the direct player sends the right events at about the right time, finishes cleanly and only reports
+ * to a recording session it was given.
+ */
+public class DirectPlayerTest
+{
+    /**
+     * Keeps every message with the time it arrived.
+     */
+    private static class Recorder implements Receiver
+    {
+        final List<ShortMessage> messages = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public synchronized void send(MidiMessage message, long timeStamp)
+        {
+            messages.add((ShortMessage) message);
+            times.add(System.nanoTime());
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    //120BPM at 480 PPQ, so 480 ticks is half a second
+    private static Sequence sequence() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 240));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 62, 100), 480));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 62, 0), 960));
+        Track other = sequence.createTrack();
+        other.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 40, 100), 0));
+        other.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 1, 40, 0), 100));
+        return sequence;
+    }
+
+    @Test
+    public void playsOneTrackOnTime() throws Exception
+    {
+        Recorder recorder = new Recorder();
+        DirectPlayer player = new DirectPlayer(sequence(), recorder);
+        long start = System.nanoTime();
+        player.start(0, 0);
+        assertTrue(player.isPlaying());
+        assertTrue(player.awaitEnd(5, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        assertFalse(player.isPlaying());
+        player.close();
+
+        assertEquals(5, recorder.messages.size());
+        assertEquals(62, recorder.messages.get(3).getData1());
+        //the note at tick 480 is due half a second in
+        long noteAt = recorder.times.get(3) - start;
+        assertTrue("note at " + noteAt, noteAt >= 495000000L && noteAt < 600000000L);
+        assertTrue(elapsed >= 995000000L);
+        assertEquals(5, player.getJitter().getCount());
+    }
+
+    @Test
+    public void onlyPlayersForASessionReportDispatchLag() throws Exception
+    {
+        SessionMetrics session = SessionMetrics.get();
+        session.reset();
+        //a job that only plays, perhaps alongside a recording
+        DirectPlayer player = new DirectPlayer(sequence(), new Recorder());
+        player.start(0, 400);
+        assertTrue(player.awaitEnd(5, TimeUnit.SECONDS));
+        player.close();
+        assertEquals(0, session.getDispatchedEvents());
+
+        DirectPlayer take = new DirectPlayer(sequence(), new Recorder(), session);
+        take.start(0, 400);
+        assertTrue(take.awaitEnd(5, TimeUnit.SECONDS));
+        take.close();
+        assertEquals(take.getJitter().getCount(), session.getDispatchedEvents());
+    }
+
+    @Test
+    public void startingLateChasesTheProgram() throws Exception
+    {
+        Recorder recorder = new Recorder();
+        DirectPlayer player = new DirectPlayer(sequence(), recorder);
+        player.start(0, 400);
+        assertTrue(player.awaitEnd(5, TimeUnit.SECONDS));
+        player.close();
+        assertEquals(3, recorder.messages.size());
+        assertEquals(ShortMessage.PROGRAM_CHANGE, recorder.messages.get(0).getCommand());
+        assertEquals(62, recorder.messages.get(1).getData1());
+    }
+
+    @Test
+    public void stoppingSilencesSoundingNotes() throws Exception
+    {
+        Recorder recorder = new Recorder();
+        DirectPlayer player = new DirectPlayer(sequence(), recorder);
+        player.start(0, 480);
+        Thread.sleep(50);
+        player.stop();
+        assertFalse(player.isPlaying());
+        player.close();
+        ShortMessage last = recorder.messages.get(recorder.messages.size() - 1);
+        assertEquals(ShortMessage.NOTE_OFF, last.getCommand());
+        assertEquals(62, last.getData1());
+    }
+
+    @Test
+    public void histogramBucketsByPowerOfTwo()
+    {
+        JitterHistogram histogram = new JitterHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(500);
+        }
+        histogram.record(3000);
+        histogram.record(-10);
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.percentileMicros(0.5));
+        assertEquals(4, histogram.percentileMicros(1.0));
+        assertEquals(99, histogram.getCounts()[0]);
+        assertEquals(1, histogram.getCounts()[2]);
+    }
+}
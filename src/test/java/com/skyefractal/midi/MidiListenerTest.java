@@ -0,0 +1,80 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks meta events are handed off without loss and that end of track is signalled, both by the listener and
+ * by the sequencer player for a track that ends before the sequence does.
+ */
+public class MidiListenerTest
+{
+    @Test
+    public void endOfTrackReleasesWaiters() throws Exception
+    {
+        try (MidiListener listener = new MidiListener(64)) {
+            for (int i = 0; i < 30; i++) {
+                listener.meta(new MetaMessage(0x51, new byte[]{0x07, (byte) 0xA1, 0x20}, 3));
+                listener.meta(new MetaMessage(0x06, "verse".getBytes("ISO-8859-1"), 5));
+            }
+            assertFalse(listener.awaitEndOfTrack(10, TimeUnit.MILLISECONDS));
+            listener.meta(new MetaMessage(0x2F, new byte[0], 0));
+            assertTrue(listener.awaitEndOfTrack(5, TimeUnit.SECONDS));
+            listener.rearm();
+            assertFalse(listener.awaitEndOfTrack(10, TimeUnit.MILLISECONDS));
+            //the 61 events fit in 64 slots even if the handler has not run at all
+            assertEquals(0, listener.getDropped());
+        }
+    }
+
+    @Test
+    public void badEventsDoNotStopTheHandler() throws Exception
+    {
+        try (MidiListener listener = new MidiListener(64)) {
+            //too short to be a tempo
+            listener.meta(new MetaMessage(0x51, new byte[]{0x07}, 1));
+            listener.meta(new MetaMessage(0x51, new byte[0], 0));
+            listener.meta(new MetaMessage(0x2F, new byte[0], 0));
+            assertTrue(listener.awaitEndOfTrack(5, TimeUnit.SECONDS));
+            assertEquals(0, listener.getDropped());
+        }
+    }
+
+    @Test
+    public void shortTrackEndsBeforeTheSequence() throws Exception
+    {
+        //120BPM at 480 PPQ: track 0 lasts a quarter of a second, track 1 four seconds
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track shortTrack = sequence.createTrack();
+        shortTrack.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+        shortTrack.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 240));
+        Track longTrack = sequence.createTrack();
+        longTrack.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 1, 40, 100), 0));
+        longTrack.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 1, 40, 0), 3840));
+        Sequencer sequencer = MidiSystem.getSequencer(false);
+        sequencer.open();
+        sequencer.setSequence(sequence);
+        try (SequencerPlayer player = new SequencerPlayer(sequencer)) {
+            long start = System.nanoTime();
+            player.start(0, 0);
+            assertTrue(player.isPlaying());
+            assertTrue(player.awaitEnd(3, TimeUnit.SECONDS));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            assertTrue("ended after " + seconds + " s", seconds >= 0.2 && seconds < 1.0);
+            assertFalse(player.isPlaying());
+            player.stop();
+        }
+    }
+}
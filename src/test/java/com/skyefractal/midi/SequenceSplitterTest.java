@@ -0,0 +1,109 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks stems are keyed by source track and channel as well as note or voice.
+ */
+public class SequenceSplitterTest
+{
+    private static void add(Track track, int command, int channel, int note, long tick) throws Exception
+    {
+        track.add(new MidiEvent(new ShortMessage(command, channel, note, command == ShortMessage.NOTE_ON ? 100 : 0),
+                tick));
+    }
+
+    private static Sequence band() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        //conductor track with no notes
+        sequence.createTrack();
+        Track keys = sequence.createTrack();
+        //same note on two channels, plus a program change on channel 1
+        keys.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 1, 5, 0), 0));
+        add(keys, ShortMessage.NOTE_ON, 0, 60, 0);
+        add(keys, ShortMessage.NOTE_ON, 1, 60, 0);
+        add(keys, ShortMessage.NOTE_OFF, 0, 60, 480);
+        add(keys, ShortMessage.NOTE_OFF, 1, 60, 480);
+        add(keys, ShortMessage.NOTE_ON, 1, 64, 480);
+        add(keys, ShortMessage.NOTE_OFF, 1, 64, 960);
+        Track bass = sequence.createTrack();
+        add(bass, ShortMessage.NOTE_ON, 0, 36, 0);
+        add(bass, ShortMessage.NOTE_OFF, 0, 36, 960);
+        return sequence;
+    }
+
+    private static ShortMessage firstShort(Track track)
+    {
+        for (int i = 0; i < track.size(); i++) {
+            if (track.get(i).getMessage() instanceof ShortMessage) {
+                return (ShortMessage) track.get(i).getMessage();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void noteStemsKeepTrackAndChannelApart() throws Exception
+    {
+        Sequence split = new SequenceSplitter(SequenceSplitter.Mode.NOTE, new ArrayList<int[]>()).split(band());
+        assertEquals(480, split.getResolution());
+        Track[] tracks = split.getTracks();
+        assertEquals(4, tracks.length);
+        //source track 1 channel 0 note 60, channel 1 notes 60 and 64, then source track 2
+        assertEquals(0, firstShort(tracks[0]).getChannel());
+        assertEquals(ShortMessage.PROGRAM_CHANGE, firstShort(tracks[1]).getCommand());
+        assertEquals(ShortMessage.PROGRAM_CHANGE, firstShort(tracks[2]).getCommand());
+        assertEquals(36, firstShort(tracks[3]).getData1());
+    }
+
+    @Test
+    public void voiceStemsReuseVoicesPerChannel() throws Exception
+    {
+        Sequence split = new SequenceSplitter(SequenceSplitter.Mode.VOICE, new ArrayList<int[]>()).split(band());
+        //channel 1 plays 60 then 64 so both fit in one voice
+        assertEquals(3, split.getTracks().length);
+        Track channel1 = split.getTracks()[1];
+        int notes = 0;
+        for (int i = 0; i < channel1.size(); i++) {
+            if (channel1.get(i).getMessage() instanceof ShortMessage
+                    && ((ShortMessage) channel1.get(i).getMessage()).getCommand() == ShortMessage.NOTE_ON) {
+                notes++;
+            }
+        }
+        assertEquals(2, notes);
+    }
+
+    @Test
+    public void reusedVoiceEndsItsNoteBeforeTheNextStarts() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track keys = sequence.createTrack();
+        add(keys, ShortMessage.NOTE_ON, 0, 60, 0);
+        //the next note on comes before the note off it follows
+        add(keys, ShortMessage.NOTE_ON, 0, 64, 480);
+        add(keys, ShortMessage.NOTE_OFF, 0, 60, 480);
+        add(keys, ShortMessage.NOTE_OFF, 0, 64, 960);
+        Sequence split = new SequenceSplitter(SequenceSplitter.Mode.VOICE, new ArrayList<int[]>()).split(sequence);
+        assertEquals(1, split.getTracks().length);
+        List<Integer> order = new ArrayList<>();
+        Track voice = split.getTracks()[0];
+        for (int i = 0; i < voice.size(); i++) {
+            if (voice.get(i).getMessage() instanceof ShortMessage) {
+                ShortMessage msg = (ShortMessage) voice.get(i).getMessage();
+                order.add(msg.getCommand() == ShortMessage.NOTE_ON ? msg.getData1() : -msg.getData1());
+            }
+        }
+        assertEquals(Arrays.asList(60, -60, 64, -64), order);
+    }
+}
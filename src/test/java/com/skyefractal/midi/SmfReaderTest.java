@@ -0,0 +1,126 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Checks the primitive array reader, writer and splitter against javax.sound.midi and SequenceSplitter.
+ */
+public class SmfReaderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File polyphonic() throws Exception
+    {
+        File file = folder.newFile("polyphonic.mid");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("polyphonic.mid")) {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    private static void assertSameEvents(Track expected, Track actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            MidiEvent e = expected.get(i);
+            MidiEvent a = actual.get(i);
+            assertEquals("tick of event " + i, e.getTick(), a.getTick());
+            assertArrayEquals("bytes of event " + i, e.getMessage().getMessage(), a.getMessage().getMessage());
+        }
+    }
+
+    @Test
+    public void roundTripMatchesMidiSystem() throws Exception
+    {
+        File file = polyphonic();
+        SmfSequence smf = SmfReader.read(file);
+        Sequence expected = MidiSystem.getSequence(file);
+        assertEquals(expected.getTracks().length, smf.getTracks().size());
+        assertEquals(expected.getResolution(), smf.getDivision());
+        assertEquals(expected.getTracks()[0].size(), smf.getTracks().get(0).size());
+
+        File copy = folder.newFile("copy.mid");
+        SmfWriter.write(smf, copy);
+        assertSameEvents(expected.getTracks()[0], MidiSystem.getSequence(copy).getTracks()[0]);
+    }
+
+    private static void assertSplitLikeSequenceSplitter(File file, File split) throws Exception
+    {
+        Sequence expected = new SequenceSplitter(SequenceSplitter.Mode.NOTE, new ArrayList<int[]>())
+                .split(MidiSystem.getSequence(file));
+        SmfSplitter.split(file, split);
+
+        Sequence actual = MidiSystem.getSequence(split);
+        assertEquals(expected.getResolution(), actual.getResolution());
+        assertEquals(expected.getTracks().length, actual.getTracks().length);
+        for (int t = 0; t < expected.getTracks().length; t++) {
+            assertSameEvents(expected.getTracks()[t], actual.getTracks()[t]);
+        }
+    }
+
+    private static void add(Track track, int command, int channel, int data1, int data2, long tick) throws Exception
+    {
+        track.add(new MidiEvent(new ShortMessage(command, channel, data1, data2), tick));
+    }
+
+    @Test
+    public void splitMatchesSequenceSplitter() throws Exception
+    {
+        assertSplitLikeSequenceSplitter(polyphonic(), folder.newFile("split.mid"));
+    }
+
+    @Test
+    public void splitKeepsTempoAndChannelWideEventsOfEveryTrack() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        //conductor track at 100BPM, slowing to 60BPM half way through
+        Track conductor = sequence.createTrack();
+        byte[] tempo = {0x09, 0x27, (byte) 0xC0};
+        conductor.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        byte[] slower = {0x0F, 0x42, 0x40};
+        conductor.add(new MidiEvent(new MetaMessage(0x51, slower, slower.length), 960));
+        Track keys = sequence.createTrack();
+        add(keys, ShortMessage.PROGRAM_CHANGE, 1, 5, 0, 0);
+        add(keys, ShortMessage.NOTE_ON, 1, 60, 100, 0);
+        add(keys, ShortMessage.NOTE_ON, 2, 60, 100, 0);
+        add(keys, ShortMessage.CONTROL_CHANGE, 1, 7, 90, 480);
+        add(keys, ShortMessage.POLY_PRESSURE, 1, 60, 40, 600);
+        add(keys, ShortMessage.NOTE_OFF, 1, 60, 0, 960);
+        add(keys, ShortMessage.NOTE_ON, 2, 60, 0, 960);
+        add(keys, ShortMessage.NOTE_ON, 1, 64, 100, 960);
+        add(keys, ShortMessage.PITCH_BEND, 1, 0, 80, 1200);
+        add(keys, ShortMessage.NOTE_OFF, 1, 64, 0, 1440);
+        byte[] sysex = {(byte) 0xF0, 0x7E, 0x7F, 0x09, 0x01, (byte) 0xF7};
+        keys.add(new MidiEvent(new SysexMessage(sysex, sysex.length), 1440));
+        Track bass = sequence.createTrack();
+        add(bass, ShortMessage.NOTE_ON, 0, 36, 100, 0);
+        add(bass, ShortMessage.CHANNEL_PRESSURE, 0, 30, 0, 1000);
+        add(bass, ShortMessage.NOTE_OFF, 0, 36, 0, 1920);
+        File file = folder.newFile("band.mid");
+        MidiSystem.write(sequence, 1, file);
+
+        File split = folder.newFile("band_split.mid");
+        assertSplitLikeSequenceSplitter(file, split);
+        //channel 1 note 60 and 64, channel 2 note 60, then the bass
+        assertEquals(4, MidiSystem.getSequence(split).getTracks().length);
+    }
+}
@@ -0,0 +1,83 @@
+package com.skyefractal.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks notes are packed into the fewest monophonic voices.
+ */
+public class VoiceAllocatorTest
+{
+    private static VoiceAllocator.Note note(long on, long off, int pitch)
+    {
+        return new VoiceAllocator.Note(on, off, 0, pitch, 100, 0);
+    }
+
+    @Test
+    public void voiceCountIsMaximumOverlap()
+    {
+        List<VoiceAllocator.Note> notes = new ArrayList<>(Arrays.asList(
+                note(0, 960, 60), note(0, 960, 64), note(0, 1920, 67),
+                //starts exactly when the first two end so reuses a voice
+                note(960, 1920, 72), note(1920, 2880, 60), note(1920, 2880, 62), note(1920, 2880, 64)));
+        assertEquals(3, new VoiceAllocator().allocate(notes));
+    }
+
+    @Test
+    public void rangedVoicesTakeMatchingNotes()
+    {
+        List<int[]> ranges = Collections.singletonList(new int[]{0, 59});
+        List<VoiceAllocator.Note> notes = new ArrayList<>(Arrays.asList(
+                note(0, 960, 40), note(0, 960, 72), note(960, 1920, 45)));
+        assertEquals(2, new VoiceAllocator(ranges).allocate(notes));
+        for (VoiceAllocator.Note n : notes) {
+            assertEquals(n.pitch < 60 ? 0 : 1, n.getVoice());
+        }
+    }
+
+    @Test
+    public void voiceStemsNeverOverlap() throws Exception
+    {
+        Sequence sequence;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("polyphonic.mid")) {
+            sequence = MidiSystem.getSequence(in);
+        }
+        Sequence byNote = new SequenceSplitter(SequenceSplitter.Mode.NOTE, new ArrayList<int[]>()).split(sequence);
+        Sequence byVoice = new SequenceSplitter(SequenceSplitter.Mode.VOICE, new ArrayList<int[]>()).split(sequence);
+        assertTrue(byVoice.getTracks().length <= byNote.getTracks().length);
+
+        int noteOns = 0;
+        for (Track track : byVoice.getTracks()) {
+            boolean sounding = false;
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (!(event.getMessage() instanceof ShortMessage)) {
+                    continue;
+                }
+                ShortMessage msg = (ShortMessage) event.getMessage();
+                if (msg.getCommand() == ShortMessage.NOTE_ON && msg.getData2() > 0) {
+                    assertTrue("overlapping notes at tick " + event.getTick(), !sounding);
+                    sounding = true;
+                    noteOns++;
+                }
+                else if (msg.getCommand() == ShortMessage.NOTE_OFF || msg.getCommand() == ShortMessage.NOTE_ON) {
+                    sounding = false;
+                }
+            }
+        }
+        assertTrue(noteOns > 0);
+    }
+}
@@ -0,0 +1,110 @@
+package com.skyefractal.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.audio.FlacEncoder;
+import com.skyefractal.audio.WavWriter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks finished takes survive a reload and that changed tracks and damaged stems are recorded again.
+ */
+public class SessionManifestTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Track track(Sequence sequence, int note) throws Exception
+    {
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0), 480));
+        return track;
+    }
+
+    private File stem(int track) throws Exception
+    {
+        File wav = new File(folder.getRoot(), "recording_" + track + ".wav");
+        try (WavWriter writer = new WavWriter(wav, AudioHelp.CD_AUDIO)) {
+            byte[] noise = new byte[40000];
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = (byte) (i * 31 + track);
+            }
+            writer.write(noise, 0, noise.length);
+        }
+        return wav;
+    }
+
+    @Test
+    public void keepsWholeTakesOnly() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        track(sequence, 60);
+        track(sequence, 62);
+        Track third = track(sequence, 64);
+        File file = new File(folder.getRoot(), SessionManifest.FILE_NAME);
+        SessionManifest manifest = new SessionManifest(file, "song.mid");
+        manifest.add(0, sequence, stem(0));
+        manifest.add(1, sequence, stem(1));
+        manifest.add(2, sequence, stem(2));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        //a glitch in one stem
+        try (RandomAccessFile damaged = new RandomAccessFile(stem(1), "rw")) {
+            damaged.seek(WavWriter.HEADER_SIZE + 1000);
+            damaged.write(0x55);
+        }
+        //and the third track edited since it was recorded
+        third.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 67, 100), 240));
+
+        SessionManifest loaded = SessionManifest.load(file, "song.mid");
+        assertEquals(10000, loaded.getTake(0).getFrames());
+        assertTrue(loaded.isComplete(0, sequence));
+        assertFalse(loaded.isComplete(1, sequence));
+        assertFalse(loaded.isComplete(2, sequence));
+        assertNull(loaded.getTake(3));
+    }
+
+    @Test
+    public void aTempoChangeInAnotherTrackCounts() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track conductor = sequence.createTrack();
+        track(sequence, 60);
+        File file = new File(folder.getRoot(), SessionManifest.FILE_NAME);
+        new SessionManifest(file, "song.mid").add(1, sequence, stem(1));
+        assertTrue(SessionManifest.load(file, "song.mid").isComplete(1, sequence));
+
+        //the note off is later in time at 100BPM, though its tick is the same
+        byte[] tempo = {0x09, 0x27, (byte) 0xC0};
+        conductor.add(new MidiEvent(new MetaMessage(0x51, tempo, tempo.length), 0));
+        assertFalse(SessionManifest.load(file, "song.mid").isComplete(1, sequence));
+    }
+
+    @Test
+    public void compressedStemsStillCount() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        track(sequence, 48);
+        File file = new File(folder.getRoot(), SessionManifest.FILE_NAME);
+        File wav = stem(0);
+        new SessionManifest(file, "song.mid").add(0, sequence, wav);
+        FlacEncoder.encode(wav, new File(folder.getRoot(), "recording_0.flac"));
+        assertTrue(wav.delete());
+        assertTrue(SessionManifest.load(file, "song.mid").isComplete(0, sequence));
+    }
+}
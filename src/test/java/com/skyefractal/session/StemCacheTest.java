@@ -0,0 +1,85 @@
+package com.skyefractal.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks fingerprints change with what is heard and nothing else, and that the cache stays within its limits.
+ */
+public class StemCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Sequence sequence(int note, String name) throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        Track track = sequence.createTrack();
+        track.add(new MidiEvent(new MetaMessage(0x03, name.getBytes("ISO-8859-1"), name.length()), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, note, 100), 0));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, note, 0), 480));
+        return sequence;
+    }
+
+    @Test
+    public void fingerprintFollowsWhatIsHeard() throws Exception
+    {
+        String key = StemCache.fingerprint(sequence(60, "bass"), 0, "rig a");
+        //a new track name changes nothing
+        assertEquals(key, StemCache.fingerprint(sequence(60, "lead"), 0, "rig a"));
+        assertNotEquals(key, StemCache.fingerprint(sequence(61, "bass"), 0, "rig a"));
+        assertNotEquals(key, StemCache.fingerprint(sequence(60, "bass"), 0, "rig b"));
+        //half the tempo moves the note off
+        Sequence slower = sequence(60, "bass");
+        slower.getTracks()[0].add(new MidiEvent(new MetaMessage(0x51, new byte[]{0x0F, 0x42, 0x40}, 3), 0));
+        assertNotEquals(key, StemCache.fingerprint(slower, 0, "rig a"));
+    }
+
+    @Test
+    public void fetchesStoredStemsAndEvictsTheOldest() throws Exception
+    {
+        StemCache cache = new StemCache(new File(folder.getRoot(), "cache"));
+        cache.setMaxBytes(2500);
+        File[] stems = new File[3];
+        for (int i = 0; i < stems.length; i++) {
+            stems[i] = folder.newFile("recording_" + i + ".wav");
+            Files.write(stems[i].toPath(), new byte[1000 + i]);
+            cache.store("key" + i, stems[i]);
+            //oldest first, whatever the file system's timestamp resolution
+            new File(cache.getDir(), "key" + i + ".wav").setLastModified(System.currentTimeMillis()
+                    - TimeUnit.MINUTES.toMillis(10 - i));
+        }
+        cache.evict();
+        File out = new File(folder.getRoot(), "out.wav");
+        assertFalse(cache.fetch("key0", out));
+        assertTrue(cache.fetch("key2", out));
+        assertArrayEquals(new byte[1002], Files.readAllBytes(out.toPath()));
+        assertTrue(cache.fetch("key1", out));
+        assertEquals(2, cache.getHits());
+
+        //unused for an hour is too old for a limit of no days at all
+        for (int i = 1; i < stems.length; i++) {
+            new File(cache.getDir(), "key" + i + ".wav").setLastModified(System.currentTimeMillis()
+                    - TimeUnit.HOURS.toMillis(1));
+        }
+        cache.setMaxAgeDays(0);
+        assertEquals(2, cache.evict());
+        assertFalse(cache.fetch("key1", out));
+    }
+}
@@ -0,0 +1,164 @@
+package com.skyefractal.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.RecordingOptions;
+import com.skyefractal.audio.AudioHelp;
+import com.skyefractal.audio.AudioRecorder;
+import com.skyefractal.metrics.SessionMetrics;
+import com.skyefractal.metrics.TakeMetrics;
+import com.skyefractal.midi.DirectPlayer;
+import com.skyefractal.midi.TrackPlayer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a few short tracks back to back on a loopback rig and checks the stems, the order they are handed
+ * on, the gap between takes and that a failed take is counted and left out of the manifest.
+ */
+public class TakePipelineTest
+{
+    private static final int TRACKS = 3;
+    //track 2 cannot be played
+    private static final int BROKEN = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void deleteStems()
+    {
+        //the pipeline always writes to the working directory
+        for (int track = 0; track < TRACKS; track++) {
+            new File("./recording_" + track + ".wav").delete();
+        }
+    }
+
+    private static Sequence sequence() throws Exception
+    {
+        Sequence sequence = new Sequence(Sequence.PPQ, 480);
+        for (int i = 0; i < TRACKS; i++) {
+            Track track = sequence.createTrack();
+            //a quarter of a second each at 120BPM
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60 + i, 100), 0));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60 + i, 0), 240));
+        }
+        return sequence;
+    }
+
+    /**
+     * Fails to start one track, as a synth that has gone away would.
+     */
+    private static class BrokenPlayer implements TrackPlayer {
+        private final TrackPlayer player;
+
+        BrokenPlayer(TrackPlayer player) {
+            this.player = player;
+        }
+
+        @Override
+        public Sequence getSequence() {
+            return player.getSequence();
+        }
+
+        @Override
+        public void start(int track, long fromTick) {
+            if (track == BROKEN) {
+                throw new IllegalStateException("synth went away");
+            }
+            player.start(track, fromTick);
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return player.isPlaying();
+        }
+
+        @Override
+        public boolean awaitEnd(long timeout, TimeUnit unit) throws InterruptedException {
+            return player.awaitEnd(timeout, unit);
+        }
+
+        @Override
+        public void stop() {
+            player.stop();
+        }
+
+        @Override
+        public void close() {
+            player.close();
+        }
+    }
+
+    @Test
+    public void recordsTakesInOrderAndSkipsFailures() throws Exception
+    {
+        SessionMetrics.get().reset();
+        Sequence sequence = sequence();
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<Integer>());
+        RecordingOptions options = new RecordingOptions() {
+            @Override
+            public void takeFinished(int track, Sequence sequence, File stem) throws IOException,
+                    InterruptedException {
+                finished.add(track);
+                super.takeFinished(track, sequence, stem);
+            }
+        };
+        SessionManifest manifest = new SessionManifest(new File(folder.getRoot(), SessionManifest.FILE_NAME),
+                "test.mid");
+        options.setManifest(manifest);
+
+        Rig rig = Rig.loopback("loopback");
+        TakePipeline pipeline;
+        try (TrackPlayer player = new BrokenPlayer(new DirectPlayer(sequence, rig.getReceiver()))) {
+            pipeline = new TakePipeline(rig.getLine(AudioHelp.CD_AUDIO), player, options, 0);
+            try {
+                pipeline.setSource("loopback");
+                pipeline.record(sequence, Arrays.asList(0, 1, 2), null);
+            }
+            finally {
+                pipeline.close();
+            }
+        }
+
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(Arrays.asList(0, 1), finished);
+        assertNull(manifest.getTake(BROKEN));
+        long preRoll = AudioRecorder.PRE_ROLL_SECONDS * 44100L;
+        for (int track = 0; track < BROKEN; track++) {
+            SessionManifest.Take take = manifest.getTake(track);
+            assertNotNull(take);
+            assertEquals(new File("./recording_" + track + ".wav").getPath(), take.getStem());
+            //the pre-roll, the note and a tail of under a second
+            assertTrue("track " + track + " has " + take.getFrames() + " frames",
+                    take.getFrames() >= preRoll + 11025 && take.getFrames() < preRoll + 11025 + 44100);
+            assertTrue(manifest.isComplete(track, sequence));
+        }
+
+        TakeMetrics[] takes = SessionMetrics.get().getTakes();
+        assertEquals(TRACKS, takes.length);
+        assertEquals(0, takes[0].getGapMillis(), 0);
+        //the line stays running between takes, so the second starts soon after the first ends
+        assertEquals(1, takes[1].getTrack());
+        assertTrue(takes[1].getGapMillis() > 0);
+        assertTrue(takes[1].getGapMillis() < 1000);
+        assertTrue(pipeline.getMaxGapMillis() > 0);
+    }
+}
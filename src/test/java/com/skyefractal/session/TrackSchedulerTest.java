@@ -0,0 +1,35 @@
+package com.skyefractal.session;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks how tracks are shared between rigs.
+ */
+public class TrackSchedulerTest
+{
+    @Test
+    public void longestTracksAreSpreadFirst()
+    {
+        long[] lengths = {10, 70, 30, 40, 20, 50};
+        List<List<Integer>> assigned = TrackScheduler.balance(lengths, 3);
+        //70 / 50+20 / 40+30, then the last goes to the lowest numbered of the three tied rigs
+        assertEquals(Arrays.asList(1, 0), assigned.get(0));
+        assertEquals(Arrays.asList(5, 4), assigned.get(1));
+        assertEquals(Arrays.asList(3, 2), assigned.get(2));
+    }
+
+    @Test
+    public void moreRigsThanTracksLeavesRigsIdle()
+    {
+        List<List<Integer>> assigned = TrackScheduler.balance(new long[]{5, 5}, 4);
+        assertEquals(Arrays.asList(0), assigned.get(0));
+        assertEquals(Arrays.asList(1), assigned.get(1));
+        assertEquals(0, assigned.get(2).size());
+        assertEquals(0, assigned.get(3).size());
+    }
+}
@@ -0,0 +1,106 @@
+package com.skyefractal.sim;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.skyefractal.audio.AudioHelp;
+import org.junit.Test;
+
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Checks the loopback stand-ins behave like a synth and a line, and that a simulated input lets go of its lines.
+ */
+public class LoopbackLineTest
+{
+    @Test
+    public void loopbackLinePlaysTheSoundingNoteInRealTime() throws Exception
+    {
+        AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, false);
+        LoopbackReceiver receiver = new LoopbackReceiver();
+        LoopbackLine line = new LoopbackLine(receiver, format);
+        line.open(format);
+        line.start();
+        byte[] buffer = new byte[800];
+
+        long start = System.nanoTime();
+        assertEquals(800, line.read(buffer, 0, buffer.length));
+        //400 frames at 8k is 50ms
+        assertTrue(System.nanoTime() - start >= 45000000L);
+        assertEquals(0, peak(buffer));
+
+        receiver.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 69, 100), -1);
+        line.read(buffer, 0, buffer.length);
+        assertTrue(peak(buffer) > 8000);
+
+        //the frames captured before the note off still have the tone in them, the next read does not
+        receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 69, 0), -1);
+        line.read(buffer, 0, buffer.length);
+        line.read(buffer, 0, buffer.length);
+        assertEquals(0, peak(buffer));
+        line.close();
+    }
+
+    @Test
+    public void loopbackLineLosesWhatItCannotHold() throws Exception
+    {
+        AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, false);
+        LoopbackLine line = new LoopbackLine(new LoopbackReceiver(), format);
+        //50ms of buffer, and a read held up for longer than that every 100ms
+        line.open(format, 800);
+        line.setOverrunEverySeconds(0.1);
+        line.start();
+        byte[] buffer = new byte[160];
+        for (int i = 0; i < 30; i++) {
+            assertEquals(160, line.read(buffer, 0, buffer.length));
+        }
+        assertTrue(line.getOverruns() >= 2);
+
+        //a line left unread overflows by itself
+        LoopbackLine unread = new LoopbackLine(new LoopbackReceiver(), format);
+        unread.open(format, 800);
+        unread.start();
+        Thread.sleep(100);
+        assertEquals(800, unread.available());
+        unread.read(buffer, 0, buffer.length);
+        assertEquals(1, unread.getOverruns());
+        line.close();
+        unread.close();
+    }
+
+    @Test
+    public void closedLinesAreForgottenButTheirOverrunsKept() throws Exception
+    {
+        SimulatedInput input = new SimulatedInput("Sim Input 1", new LoopbackReceiver());
+        DataLine.Info info = new DataLine.Info(TargetDataLine.class, AudioHelp.CD_AUDIO);
+        byte[] buffer = new byte[4];
+        for (int i = 0; i < 3; i++) {
+            LoopbackLine line = (LoopbackLine) input.getLine(info);
+            //1ms of buffer left unread overflows straight away
+            line.open(AudioHelp.CD_AUDIO, 176);
+            line.start();
+            Thread.sleep(5);
+            line.read(buffer, 0, buffer.length);
+            line.close();
+        }
+        TargetDataLine open = (TargetDataLine) input.getLine(info);
+        open.open(AudioHelp.CD_AUDIO);
+        assertEquals(1, input.getTargetLines().length);
+        assertEquals(3, input.getOverruns());
+        open.close();
+        assertEquals(0, input.getTargetLines().length);
+        assertEquals(3, input.getOverruns());
+    }
+
+    private static int peak(byte[] buffer)
+    {
+        int peak = 0;
+        for (int i = 0; i < buffer.length; i += 2) {
+            peak = Math.max(peak, Math.abs((short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8))));
+        }
+        return peak;
+    }
+}